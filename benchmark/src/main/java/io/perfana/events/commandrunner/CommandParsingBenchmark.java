@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the scheduled event settings, rendering the command template
+ * and creating the {@code sh -c} command list, as done for each {@code run-command} event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandParsingBenchmark {
+
+    private static final String SETTINGS = "name=k8sCommand;app=myapp;namespace=mynamespace;replicas=3";
+    private static final String COMMAND = "kubectl -n __namespace__ scale --replicas=__replicas__ --timeout=1m deployment __app__";
+
+    private final CommandTemplate template = CommandTemplate.compile(COMMAND);
+
+    private Map<String, String> parsedSettings;
+    private String replacedCommand;
+
+    @Setup
+    public void setup() {
+        parsedSettings = CommandRunnerEvent.parseSettings(SETTINGS);
+        replacedCommand = template.render(parsedSettings);
+    }
+
+    @Benchmark
+    public Map<String, String> parseSettings() {
+        return CommandRunnerEvent.parseSettings(SETTINGS);
+    }
+
+    @Benchmark
+    public String renderTemplate() {
+        return template.render(parsedSettings);
+    }
+
+    @Benchmark
+    public List<String> createCommandListWithShWrapper() {
+        return CommandRunnerEvent.createCommandListWithShWrapper(replacedCommand);
+    }
+
+    @Benchmark
+    public List<String> scheduledEventCommand() {
+        Map<String, String> settings = CommandRunnerEvent.parseSettings(SETTINGS);
+        String command = template.render(settings);
+        return CommandRunnerEvent.createCommandListWithShWrapper(command);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static io.perfana.events.commandrunner.PrefixedRedirectOutput.RedirectType.STDOUT;
+
+/**
+ * Throughput of {@link PrefixedRedirectOutput}: writes 64 KiB of output per operation in 1024 byte
+ * chunks, like the zt-exec stream pumper, to a null output stream.
+ * Multiply ops/s by 64 KiB for the bytes per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrefixedRedirectOutputBenchmark {
+
+    private static final int CHUNK_SIZE = 1024;
+    private static final int BYTES_PER_OPERATION = 64 * CHUNK_SIZE;
+
+    @Param({ "40", "120", "1000" })
+    public int lineLength;
+
+    private byte[] data;
+    private PrefixedRedirectOutput output;
+
+    @Setup
+    public void setup() {
+        data = createLines(lineLength, BYTES_PER_OPERATION);
+        output = new PrefixedRedirectOutput("benchmark: ", OutputStream.nullOutputStream(), STDOUT);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        output.close();
+    }
+
+    @Benchmark
+    public void writeChunks() throws IOException {
+        for (int off = 0; off < data.length; off += CHUNK_SIZE) {
+            output.write(data, off, CHUNK_SIZE);
+        }
+    }
+
+    private static byte[] createLines(int lineLength, int size) {
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 'x');
+        for (int i = lineLength - 1; i < size; i += lineLength) {
+            data[i] = '\n';
+        }
+        return data;
+    }
+}
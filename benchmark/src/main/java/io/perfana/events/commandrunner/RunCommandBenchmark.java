@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.EventMessageBusSimple;
+import io.perfana.eventscheduler.api.config.TestConfig;
+import io.perfana.eventscheduler.log.EventLoggerStdOut;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spawn to exit latency of a trivial command: {@code beforeTest} runs the command via
+ * {@code runCommand} and waits for it to finish.
+ *
+ * The log lines of each run are written to a null stream, so the console is not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RunCommandBenchmark {
+
+    @Param({ "true" })
+    public String command;
+
+    /** Without a shell saves one fork and exec per command. */
+    @Param({ "false", "true" })
+    public boolean directExec;
+
+    private CommandRunnerEvent event;
+    private PrintStream originalOut;
+
+    @Setup
+    public void setup() {
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("benchmark");
+        eventConfig.setEnabled(true);
+        eventConfig.setOnBeforeTest(command);
+        eventConfig.setDirectExec(directExec);
+        event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(),
+                new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        event.afterTest();
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public void spawnToExit() {
+        event.beforeTest();
+    }
+}
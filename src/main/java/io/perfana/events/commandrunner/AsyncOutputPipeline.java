@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.api.EventLogger;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decouples the process stream pumps from slow sinks such as a console or a CI log collector.
+ *
+ * Streams created via {@link #streamTo(OutputStream)} copy each write (a chunk of complete
+ * lines when used behind a {@link PrefixedRedirectOutput}) into a bounded ring buffer.
+ * A single writer thread drains the ring in batches: consecutive chunks for the same sink
+ * are written with one write call and each sink is flushed once per batch.
+ *
+ * When the ring is full the {@link OverflowPolicy} decides what happens. Dropped lines are counted.
+ * After {@link #close()} all writes go directly to the sink.
+ */
+@ThreadSafe
+class AsyncOutputPipeline implements AutoCloseable {
+
+    private static final int MAX_BATCH = 256;
+    private static final int INITIAL_SLOT_SIZE = 256;
+    private static final long CLOSE_TIMEOUT_MILLIS = 5_000;
+
+    private final EventLogger logger;
+    private final OverflowPolicy overflowPolicy;
+    private final byte lineEnd;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    @GuardedBy("lock")
+    private final Slot[] ring;
+    @GuardedBy("lock")
+    private int head;
+    @GuardedBy("lock")
+    private int count;
+    @GuardedBy("lock")
+    private boolean closed;
+
+    private final AtomicLong droppedLines = new AtomicLong();
+
+    // only used by the writer thread
+    private byte[] drainBuffer = new byte[INITIAL_SLOT_SIZE * MAX_BATCH];
+    private final OutputStream[] batchSinks = new OutputStream[MAX_BATCH];
+    private final int[] batchEnds = new int[MAX_BATCH];
+    private final Map<OutputStream, Boolean> sinksToFlush = new IdentityHashMap<>();
+
+    private final Thread writer;
+
+    AsyncOutputPipeline(String name, int capacity, OverflowPolicy overflowPolicy, EventLogger logger) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity of async output buffer should be at least 1: " + capacity);
+        }
+        this.logger = logger;
+        this.overflowPolicy = Objects.requireNonNull(overflowPolicy);
+        byte[] newLine = System.lineSeparator().getBytes();
+        this.lineEnd = newLine[newLine.length - 1];
+        this.ring = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Slot();
+        }
+        this.writer = new Thread(this::drainLoop, "async-output-" + name);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @return output stream that queues all bytes written to it for the given sink
+     */
+    OutputStream streamTo(OutputStream sink) {
+        return new QueueingOutputStream(sink);
+    }
+
+    long getDroppedLines() {
+        return droppedLines.get();
+    }
+
+    private void enqueue(OutputStream sink, byte[] bytes, int off, int len) throws IOException {
+        lock.lock();
+        try {
+            while (!closed && count == ring.length) {
+                switch (overflowPolicy) {
+                    case BLOCK:
+                        try {
+                            notFull.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            droppedLines.addAndGet(countLines(bytes, off, len));
+                            return;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        Slot oldest = ring[head];
+                        droppedLines.addAndGet(countLines(oldest.data, 0, oldest.length));
+                        oldest.clear();
+                        head = (head + 1) % ring.length;
+                        count--;
+                        break;
+                    case DROP_NEWEST:
+                        droppedLines.addAndGet(countLines(bytes, off, len));
+                        return;
+                    default:
+                        throw new IllegalStateException("Unknown overflow policy: " + overflowPolicy);
+                }
+            }
+            if (!closed) {
+                ring[(head + count) % ring.length].set(sink, bytes, off, len);
+                count++;
+                notEmpty.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // closed: no writer thread anymore
+        synchronized (sink) {
+            sink.write(bytes, off, len);
+        }
+    }
+
+    private void drainLoop() {
+        while (true) {
+            int batchSize;
+            lock.lock();
+            try {
+                while (count == 0 && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (count == 0) {
+                    return;
+                }
+                batchSize = takeBatch();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            writeBatch(batchSize);
+        }
+    }
+
+    @GuardedBy("lock")
+    private int takeBatch() {
+        int batchSize = 0;
+        int length = 0;
+        while (count > 0 && batchSize < MAX_BATCH) {
+            Slot slot = ring[head];
+            if (length + slot.length > drainBuffer.length) {
+                drainBuffer = Arrays.copyOf(drainBuffer, Math.max(drainBuffer.length * 2, length + slot.length));
+            }
+            System.arraycopy(slot.data, 0, drainBuffer, length, slot.length);
+            length += slot.length;
+            batchSinks[batchSize] = slot.sink;
+            batchEnds[batchSize] = length;
+            batchSize++;
+            slot.clear();
+            head = (head + 1) % ring.length;
+            count--;
+        }
+        return batchSize;
+    }
+
+    private void writeBatch(int batchSize) {
+        int start = 0;
+        for (int i = 0; i < batchSize; i++) {
+            OutputStream sink = batchSinks[i];
+            // merge consecutive chunks for the same sink
+            if (i + 1 < batchSize && batchSinks[i + 1] == sink) {
+                continue;
+            }
+            int end = batchEnds[i];
+            try {
+                synchronized (sink) {
+                    sink.write(drainBuffer, start, end - start);
+                }
+                sinksToFlush.put(sink, Boolean.TRUE);
+            } catch (IOException e) {
+                logger.warn("Failed to write async output: " + e.getMessage());
+            }
+            start = end;
+        }
+        for (OutputStream sink : sinksToFlush.keySet()) {
+            try {
+                sink.flush();
+            } catch (IOException e) {
+                logger.warn("Failed to flush async output: " + e.getMessage());
+            }
+        }
+        sinksToFlush.clear();
+        Arrays.fill(batchSinks, 0, batchSize, null);
+    }
+
+    private int countLines(byte[] bytes, int off, int len) {
+        int lines = 0;
+        for (int i = off; i < off + len; i++) {
+            if (bytes[i] == lineEnd) {
+                lines++;
+            }
+        }
+        // a chunk without line end is (part of) one line
+        return Math.max(lines, 1);
+    }
+
+    /**
+     * Writes all queued output and stops the writer thread. A second close does nothing.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join(CLOSE_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long dropped = droppedLines.get();
+        if (dropped > 0) {
+            logger.warn("Async output dropped " + dropped + " lines because the output buffer was full (overflow policy: " + overflowPolicy + ")");
+        }
+    }
+
+    private static final class Slot {
+        private OutputStream sink;
+        private byte[] data = new byte[INITIAL_SLOT_SIZE];
+        private int length;
+
+        void set(OutputStream sink, byte[] bytes, int off, int len) {
+            if (data.length < len) {
+                data = new byte[Math.max(len, data.length * 2)];
+            }
+            System.arraycopy(bytes, off, data, 0, len);
+            this.sink = sink;
+            this.length = len;
+        }
+
+        void clear() {
+            sink = null;
+            length = 0;
+        }
+    }
+
+    private final class QueueingOutputStream extends OutputStream {
+
+        private final OutputStream sink;
+
+        QueueingOutputStream(OutputStream sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            Objects.checkFromIndexSize(off, len, bytes.length);
+            if (len > 0) {
+                enqueue(sink, bytes, off, len);
+            }
+        }
+
+        @Override
+        public void close() {
+            // the sink is shared, it is not closed by one of the process streams
+        }
+    }
+
+    public enum OverflowPolicy {
+        /** Wait until the writer thread has made room: the process output stalls when the sink is slow. */
+        BLOCK,
+        /** Replace the oldest queued output. */
+        DROP_OLDEST,
+        /** Discard the new output. */
+        DROP_NEWEST;
+
+        static OverflowPolicy parse(String policy) {
+            try {
+                return valueOf(policy.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown async output overflow policy [" + policy + "], use one of " + Arrays.toString(values()), e);
+            }
+        }
+    }
+}
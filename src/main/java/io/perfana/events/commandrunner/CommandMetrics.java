@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counters and latency histograms of the commands of one command runner (participant), per command type
+ * (beforeTest, keepAlive, scheduledEvent, ...): spawn latency, duration, exit codes and output bytes and lines.
+ *
+ * The output counters are updated by {@link PrefixedRedirectOutput} for each write, so they are {@link LongAdder}s.
+ */
+@ThreadSafe
+class CommandMetrics {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    private final String participant;
+    private final ConcurrentMap<String, CommandTypeMetrics> commandTypes = new ConcurrentSkipListMap<>();
+
+    CommandMetrics(String participant) {
+        this.participant = participant;
+    }
+
+    String getParticipant() {
+        return participant;
+    }
+
+    CommandTypeMetrics commandType(String commandType) {
+        return commandTypes.computeIfAbsent(commandType, type -> new CommandTypeMetrics());
+    }
+
+    /**
+     * @return flat summary, e.g. {@code keepAlive.durationMillis.p99=12.3}, of command types that ran a command
+     */
+    Map<String, String> summary() {
+        Map<String, String> summary = new LinkedHashMap<>();
+        commandTypes.forEach((type, metrics) -> {
+            if (metrics.getStarted() == 0 && metrics.getCacheHits() == 0) {
+                return;
+            }
+            summary.put(type + ".commands", String.valueOf(metrics.getStarted()));
+            if (metrics.getCacheHits() > 0) {
+                summary.put(type + ".cacheHits", String.valueOf(metrics.getCacheHits()));
+            }
+            metrics.exitCodes.forEach((exitCode, count) -> summary.put(type + ".exitCode." + exitCode, String.valueOf(count.sum())));
+            putLatency(summary, type + ".spawnLatencyMillis", metrics.spawnLatency);
+            putLatency(summary, type + ".durationMillis", metrics.duration);
+            summary.put(type + ".stdoutBytes", String.valueOf(metrics.stdout.getBytes()));
+            summary.put(type + ".stdoutLines", String.valueOf(metrics.stdout.getLines()));
+            summary.put(type + ".stderrBytes", String.valueOf(metrics.stderr.getBytes()));
+            summary.put(type + ".stderrLines", String.valueOf(metrics.stderr.getLines()));
+        });
+        return summary;
+    }
+
+    private static void putLatency(Map<String, String> summary, String key, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        summary.put(key + ".p50", millis(histogram.percentileMicros(0.5)));
+        summary.put(key + ".p99", millis(histogram.percentileMicros(0.99)));
+        summary.put(key + ".max", millis(histogram.getMaxMicros()));
+    }
+
+    private static String millis(long micros) {
+        return String.format(Locale.ROOT, "%.3f", micros / 1000.0);
+    }
+
+    /**
+     * Write the metrics of all participants in the Prometheus text format.
+     */
+    static void writePrometheus(StringBuilder out, Collection<CommandMetrics> allMetrics) {
+        writeSummary(out, "command_runner_spawn_latency_seconds", "Time to start the process of a command", allMetrics, m -> m.spawnLatency);
+        writeSummary(out, "command_runner_command_duration_seconds", "Time from start to end of a command", allMetrics, m -> m.duration);
+
+        out.append("# HELP command_runner_commands_total Ended commands by exit code, -1 when the command failed or was cancelled\n");
+        out.append("# TYPE command_runner_commands_total counter\n");
+        for (CommandMetrics metrics : allMetrics) {
+            metrics.commandTypes.forEach((type, m) -> m.exitCodes.forEach((exitCode, count) ->
+                    out.append("command_runner_commands_total").append(labels(metrics.participant, type, "exit_code", String.valueOf(exitCode)))
+                            .append(' ').append(count.sum()).append('\n')));
+        }
+        out.append("# HELP command_runner_cache_hits_total Commands not run because the result was in the result cache\n");
+        out.append("# TYPE command_runner_cache_hits_total counter\n");
+        for (CommandMetrics metrics : allMetrics) {
+            metrics.commandTypes.forEach((type, m) -> {
+                if (m.getCacheHits() > 0) {
+                    out.append("command_runner_cache_hits_total").append(labels(metrics.participant, type, null, null))
+                            .append(' ').append(m.getCacheHits()).append('\n');
+                }
+            });
+        }
+        writeStreamCounter(out, "command_runner_output_bytes_total", "Bytes written by the commands", allMetrics, PrefixedRedirectOutput.Counters::getBytes);
+        writeStreamCounter(out, "command_runner_output_lines_total", "Lines written by the commands", allMetrics, PrefixedRedirectOutput.Counters::getLines);
+    }
+
+    private static void writeSummary(StringBuilder out, String name, String help, Collection<CommandMetrics> allMetrics, Function<CommandTypeMetrics, LatencyHistogram> selector) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (CommandMetrics metrics : allMetrics) {
+            metrics.commandTypes.forEach((type, m) -> {
+                LatencyHistogram histogram = selector.apply(m);
+                if (histogram.getCount() == 0) {
+                    return;
+                }
+                for (double quantile : QUANTILES) {
+                    out.append(name).append(labels(metrics.participant, type, "quantile", String.valueOf(quantile)))
+                            .append(' ').append(seconds(histogram.percentileMicros(quantile))).append('\n');
+                }
+                out.append(name).append("_sum").append(labels(metrics.participant, type, null, null))
+                        .append(' ').append(seconds(histogram.getSumMicros())).append('\n');
+                out.append(name).append("_count").append(labels(metrics.participant, type, null, null))
+                        .append(' ').append(histogram.getCount()).append('\n');
+            });
+        }
+    }
+
+    private static void writeStreamCounter(StringBuilder out, String name, String help, Collection<CommandMetrics> allMetrics, ToLongFunction<PrefixedRedirectOutput.Counters> value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (CommandMetrics metrics : allMetrics) {
+            metrics.commandTypes.forEach((type, m) -> {
+                out.append(name).append(labels(metrics.participant, type, "stream", "stdout"))
+                        .append(' ').append(value.applyAsLong(m.stdout)).append('\n');
+                out.append(name).append(labels(metrics.participant, type, "stream", "stderr"))
+                        .append(' ').append(value.applyAsLong(m.stderr)).append('\n');
+            });
+        }
+    }
+
+    private static String labels(String participant, String commandType, String extraName, String extraValue) {
+        StringBuilder labels = new StringBuilder("{participant=\"").append(escape(participant))
+                .append("\",command=\"").append(escape(commandType)).append('"');
+        if (extraName != null) {
+            labels.append(',').append(extraName).append("=\"").append(escape(extraValue)).append('"');
+        }
+        return labels.append('}').toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1_000_000.0);
+    }
+
+    @ThreadSafe
+    static final class CommandTypeMetrics {
+        private final LongAdder started = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+        private final LatencyHistogram spawnLatency = new LatencyHistogram();
+        private final LatencyHistogram duration = new LatencyHistogram();
+        private final ConcurrentMap<Integer, LongAdder> exitCodes = new ConcurrentHashMap<>();
+        private final PrefixedRedirectOutput.Counters stdout = new PrefixedRedirectOutput.Counters();
+        private final PrefixedRedirectOutput.Counters stderr = new PrefixedRedirectOutput.Counters();
+
+        /**
+         * @param spawnNanos time to start the process, negative when no new process was started
+         */
+        void started(long spawnNanos) {
+            started.increment();
+            if (spawnNanos >= 0) {
+                spawnLatency.recordNanos(spawnNanos);
+            }
+        }
+
+        /**
+         * @param exitCode -1 when the command failed or was cancelled
+         */
+        void ended(long durationNanos, int exitCode) {
+            duration.recordNanos(durationNanos);
+            exitCodes.computeIfAbsent(exitCode, code -> new LongAdder()).increment();
+        }
+
+        /**
+         * The command did not run: the result was replayed from the result cache.
+         */
+        void cacheHit() {
+            cacheHits.increment();
+        }
+
+        long getStarted() {
+            return started.sum();
+        }
+
+        long getCacheHits() {
+            return cacheHits.sum();
+        }
+
+        LatencyHistogram getSpawnLatency() {
+            return spawnLatency;
+        }
+
+        LatencyHistogram getDuration() {
+            return duration;
+        }
+
+        PrefixedRedirectOutput.Counters output(PrefixedRedirectOutput.RedirectType redirectType) {
+            return redirectType == PrefixedRedirectOutput.RedirectType.STDERR ? stderr : stdout;
+        }
+    }
+}
@@ -24,12 +24,25 @@ import io.perfana.eventscheduler.api.message.EventMessageBus;
 import io.perfana.eventscheduler.exception.EventSchedulerRuntimeException;
 import io.perfana.eventscheduler.exception.handler.StopTestRunException;
 import io.perfana.eventscheduler.util.TestRunConfigUtil;
-import org.zeroturnaround.exec.ProcessExecutor;
 import org.zeroturnaround.exec.ProcessResult;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -40,10 +53,65 @@ import static io.perfana.events.commandrunner.PrefixedRedirectOutput.RedirectTyp
 
 public class CommandRunnerEvent extends EventAdapter<CommandRunnerEventContext> {
 
-    private Map<String, Future<ProcessResult>> futures = new ConcurrentHashMap<>();
+    private Map<String, ProcessFuture> futures = new ConcurrentHashMap<>();
 
     private final boolean isWindows;
 
+    private final AsyncOutputPipeline asyncOutput;
+    private final OutputPolicy outputPolicy;
+    private final CommandMetrics metrics;
+    // null when keep-alive output is not parsed
+    private final KeepAliveSamples keepAliveSamples;
+    private final KeepAliveTracker keepAliveTracker;
+    // null when the result cache is disabled
+    private final ResultCache resultCache;
+    // null when no JFR recordings or thread dumps are configured
+    private final JavaDiagnostics javaDiagnostics;
+    private volatile MetricsEndpoint metricsEndpoint;
+    private final OutputStream stdout;
+    private final OutputStream stderr;
+
+    private final ProcessThreadPool processThreadPool;
+
+    private final HookCoordinator hookCoordinator;
+    private final RunCommandRouter runCommandRouter;
+    // groups of this command runner, to route run-command events
+    private final Set<String> groups;
+    private final StdinPipes stdinPipes;
+    // the pipes from other participants to the stdin of the commands of this one
+    private final Map<StdinSource.Source, StdinPipe> stdinPipesIn = new HashMap<>();
+    // null when the number of concurrent commands is not limited
+    private final Semaphore commandPermits;
+
+    private final String pluginName;
+
+    // variables for the command templates of the hooks
+    private final Map<String, String> hookVariables;
+
+    private final AtomicBoolean goSent = new AtomicBoolean(false);
+    // set by a stop output matcher, causes a stop test run request on next keep-alive
+    private final AtomicReference<String> stopRequest = new AtomicReference<>();
+
+    // only used from keepAlive and the end of test events, which are not called concurrently
+    private KeepAliveWorker keepAliveWorker;
+    private boolean keepAliveWorkerFailed = false;
+
+    // created on first command, null when resource sampling is disabled or not supported
+    private ProcessResourceSampler resourceSampler;
+    private boolean resourceSamplerChecked = false;
+
+    // started in beforeTest, null when disabled
+    private volatile PrewarmedShells prewarmedShells;
+    // to calculate the scheduled time of scheduled events
+    private volatile long startTestMillis = 0;
+
+    // opened on first command, null when output capture is disabled
+    private OutputCapture outputCapture;
+    private boolean outputCaptureChecked = false;
+
+    // command prefix per command type, prepared on first command
+    private Map<String, List<String>> placementPrefixes;
+
     enum AllowedCustomEvents {
         runcommand("run-command");
 
@@ -76,8 +144,54 @@ public class CommandRunnerEvent extends EventAdapter<CommandRunnerEventContext>
     }
 
     public CommandRunnerEvent(CommandRunnerEventContext eventContext, TestContext testContext, EventMessageBus messageBus, EventLogger logger) {
+        this(eventContext, testContext, messageBus, logger, ProcessThreadPool.shared(), new HookCoordinator(), new RunCommandRouter(), new StdinPipes());
+    }
+
+    CommandRunnerEvent(CommandRunnerEventContext eventContext, TestContext testContext, EventMessageBus messageBus, EventLogger logger,
+                       ProcessThreadPool processThreadPool, HookCoordinator hookCoordinator, RunCommandRouter runCommandRouter, StdinPipes stdinPipes) {
         super(eventContext, testContext, messageBus, logger);
+        this.pluginName = CommandRunnerEvent.class.getSimpleName() + "-" + eventContext.getName();
+        this.hookVariables = Map.of(CommandTemplate.TEST_RUN_ID, testContext.getTestRunId());
+        this.processThreadPool = processThreadPool;
+        this.hookCoordinator = hookCoordinator;
+        if (eventContext.isConcurrentHooks()) {
+            hookCoordinator.addParticipant(testContext.getTestRunId());
+        }
+        this.runCommandRouter = runCommandRouter;
+        this.groups = Set.copyOf(eventContext.getGroups());
+        runCommandRouter.register(eventContext.getName(), eventContext.getGroups());
+        hookCoordinator.dependencies().add(testContext.getTestRunId(), eventContext.getName(), eventContext.getDependsOn());
+        this.stdinPipes = stdinPipes;
+        for (StdinSource.Source source : eventContext.getStdinSources().participantSources()) {
+            stdinPipesIn.put(source, stdinPipes.connect(testContext.getTestRunId(), eventContext.getName(), source, eventContext.getStdinPipeBufferKb() * 1024));
+        }
+        int maxConcurrentCommands = eventContext.getMaxConcurrentCommands();
+        this.commandPermits = maxConcurrentCommands > 0 ? new Semaphore(maxConcurrentCommands) : null;
+        this.outputPolicy = new OutputPolicy(eventContext.getOutputPolicy(), eventContext.getOutputRateLimitLinesPerSecond(), eventContext.getOutputSampleRate(), eventContext.isMatchSuppressedOutput());
+        this.metrics = new CommandMetrics(eventContext.getName());
+        this.keepAliveTracker = new KeepAliveTracker(eventContext.getKeepAliveOverlap(), TimeUnit.SECONDS.toMillis(eventContext.getOnKeepAliveTimeoutSeconds()), eventContext.isAdaptiveKeepAliveTimeout());
+        this.keepAliveSamples = eventContext.isParseKeepAliveOutput() || !eventContext.getKeepAliveThresholds().isEmpty()
+                ? new KeepAliveSamples()
+                : null;
+        this.resultCache = eventContext.getResultCacheDir().isEmpty()
+                ? null
+                : new ResultCache(Paths.get(eventContext.getResultCacheDir()), eventContext.getResultCacheMaxSizeMb() * 1024L * 1024L);
+        this.javaDiagnostics = eventContext.isJfrRecording() || eventContext.isThreadDumpOnKeepAliveFailure()
+                ? new JavaDiagnostics(eventContext.getName(), Paths.get(eventContext.getJavaDiagnosticsDir(), testContext.getTestRunId()),
+                        eventContext.isJfrRecording(), eventContext.getJfrSettings(), JavaDiagnostics.JCMD,
+                        task -> processThreadPool.newThread(task).start(), logger)
+                : null;
         isWindows = systemGetPropertyNullSafe("os.name", logger).startsWith("Windows");
+        if (eventContext.isAsyncOutput()) {
+            asyncOutput = new AsyncOutputPipeline(eventContext.getName(), eventContext.getAsyncOutputBufferSize(), eventContext.getAsyncOutputOverflowPolicy(), logger);
+            stdout = asyncOutput.streamTo(System.out);
+            stderr = asyncOutput.streamTo(System.err);
+        }
+        else {
+            asyncOutput = null;
+            stdout = System.out;
+            stderr = System.err;
+        }
         this.eventMessageBus.addReceiver(m -> logger.debug("Received message: " + m));
     }
 
@@ -91,23 +205,22 @@ public class CommandRunnerEvent extends EventAdapter<CommandRunnerEventContext>
 
     @Override
     public void customEvent(CustomEvent scheduleEvent) {
+        long firedMillis = System.currentTimeMillis();
         String eventName = scheduleEvent.getName();
         try {
             if (runcommand.hasEventName(eventName)) {
-                Map<String, String> parsedSettings = parseSettings(scheduleEvent.getSettings());
-
-                // if name is set, only run the command if the name matches
-                String name = parsedSettings.get("name");
-                if (name != null && !eventContext.getName().equals(name)) {
-                    logger.info("Ignoring event [" + eventName + "] for [" + name + "], this is [" + eventContext.getName() + "]");
+                // settings are parsed once for all command runners
+                RunCommandRouter.Route route = runCommandRouter.route(scheduleEvent.getSettings(), logger);
+                if (!route.isFor(eventContext.getName(), groups)) {
+                    logger.debug("Ignoring event [" + eventName + "] for [" + route.getSettings().get(RunCommandRouter.NAME) + "], this is [" + eventContext.getName() + "]");
                     return;
                 }
 
-                String command = eventContext.getOnScheduledEvent();
-                command = parsedSettings.entrySet().stream()
-                        .reduce(command, (k, v) -> k.replaceAll("__" + v.getKey() + "__", v.getValue()), String::concat);
+                Map<String, String> variables = new HashMap<>(route.getSettings());
+                variables.put(CommandTemplate.TEST_RUN_ID, testContext.getTestRunId());
+                String command = eventContext.getOnScheduledEventTemplate().render(variables);
 
-                runCommand(command, "scheduledEvent");
+                runScheduledCommand(command, scheduledStartMillis(scheduleEvent, firedMillis));
             } else {
                 logger.warn("ignoring unknown event [" + eventName + "]");
             }
@@ -119,8 +232,6 @@ public class CommandRunnerEvent extends EventAdapter<CommandRunnerEventContext>
     @Override
     public void beforeTest() {
 
-        String pluginName = CommandRunnerEvent.class.getSimpleName() + "-" + eventContext.getName();
-
         // default sending of command is disabled: might contain secrets
         if (eventContext.isSendTestRunConfig()) {
             String tags = "command-runner";
@@ -128,89 +239,499 @@ public class CommandRunnerEvent extends EventAdapter<CommandRunnerEventContext>
             this.eventMessageBus.send(message);
         }
 
-        runBeforeTestNoWait(pluginName);
-        runBeforeTest(pluginName);
+        startMetricsEndpoint();
+        startPrewarmedShells();
 
+        DependencyGraph dependencies = hookCoordinator.dependencies();
+        int participants = dependencies.participantsWithDependencies(testContext.getTestRunId());
+        if (participants == 0) {
+            runBeforeTestNoWait();
+            awaitHook("beforeTest", runBeforeTest());
+            return;
+        }
+
+        // the before test commands start when the participants this one depends on are ready
+        long dependsOnTimeoutSeconds = eventContext.getDependsOnTimeoutSeconds() > 0
+                ? eventContext.getDependsOnTimeoutSeconds()
+                : eventContext.getOnBeforeTestTimeoutSeconds();
+        CompletableFuture<Integer> done = dependencies.dependenciesReady(testContext.getTestRunId(), eventContext.getName())
+                .orTimeout(dependsOnTimeoutSeconds, TimeUnit.SECONDS)
+                .exceptionally(failure -> {
+                    Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                    if (cause instanceof TimeoutException) {
+                        throw new EventSchedulerRuntimeException("Dependencies " + eventContext.getDependsOn() + " of " + eventContext.getName()
+                                + " not ready within " + dependsOnTimeoutSeconds + " seconds (dependsOnTimeoutSeconds)");
+                    }
+                    throw cause instanceof RuntimeException ? (RuntimeException) cause : new CompletionException(cause);
+                })
+                .thenComposeAsync(ready -> {
+                    dependencies.started(testContext.getTestRunId(), eventContext.getName());
+                    runBeforeTestNoWait();
+                    return runBeforeTest();
+                }, task -> processThreadPool.newThread(task).start());
+        done.whenComplete((exitCode, failure) -> {
+            if (failure != null) {
+                dependencies.failed(testContext.getTestRunId(), eventContext.getName(), failure);
+            }
+            else if (exitCode != 0) {
+                dependencies.failed(testContext.getTestRunId(), eventContext.getName(),
+                        new EventSchedulerRuntimeException("beforeTest of " + eventContext.getName() + " ended with exit code " + exitCode));
+            }
+            else if (!eventContext.getOutputMatchers().hasAction(OutputMatchers.Action.GO)) {
+                participantReady();
+            }
+            // else ready when the go output matcher sends Go!
+        });
+        // like concurrent hooks: the last participant of the graph to be called waits for all participants
+        hookCoordinator.arrive(testContext.getTestRunId(), "beforeTest", eventContext.getName(), done, participants, hookDeadline(), logger);
     }
 
-    private void runBeforeTest(String pluginName) {
-        String command = eventContext.getOnBeforeTest();
+    /**
+     * @return completes with the exit code of the before test command
+     */
+    private CompletableFuture<Integer> runBeforeTest() {
+        return hookDone(eventContext.getOnBeforeTestTemplate(), "beforeTest", eventContext.getOnBeforeTestTimeoutSeconds())
+                .thenApply(exitCode -> {
+                    if (eventContext.isReadyForStartParticipant()) {
+                        if (eventContext.getOutputMatchers().hasAction(OutputMatchers.Action.GO)) {
+                            logger.info("Go! is sent when the go output matcher matches");
+                        }
+                        else {
+                            sendGo();
+                        }
+                    }
+                    return exitCode;
+                });
+    }
 
-        if (command.isEmpty()) {
-            logger.debug("No command to run for beforeTest");
+    private void sendGo() {
+        if (goSent.compareAndSet(false, true)) {
+            this.eventMessageBus.send(EventMessage.builder().pluginName(pluginName).message("Go!").build());
+        }
+    }
+
+    /**
+     * Participants that depend on this one can start, reports the critical path when this was the last participant.
+     */
+    private void participantReady() {
+        hookCoordinator.dependencies().ready(testContext.getTestRunId(), eventContext.getName()).ifPresent(criticalPath -> {
+            logger.info("Critical path of beforeTest: " + criticalPath);
+            this.eventMessageBus.send(EventMessage.builder()
+                    .pluginName(pluginName)
+                    .message("beforeTest critical path: " + criticalPath)
+                    .variable("criticalPath", criticalPath)
+                    .build());
+        });
+    }
+
+    /**
+     * @param commandType the command that printed the line
+     */
+    private void outputMatched(OutputMatchers.Spec matcher, String line, String commandType) {
+        switch (matcher.getAction()) {
+            case GO:
+                // the service is started by the before test commands, not e.g. by a keep-alive
+                if (!"beforeTest".equals(commandType) && !"beforeTestNoWait".equals(commandType)) {
+                    break;
+                }
+                if (eventContext.isReadyForStartParticipant() && !goSent.get()) {
+                    logger.info("Output matcher [" + matcher + "] matched, sending Go!");
+                    sendGo();
+                }
+                participantReady();
+                break;
+            case STOP:
+                if (stopRequest.compareAndSet(null, "Output matcher [" + matcher + "] matched line: " + line)) {
+                    logger.info("Output matcher [" + matcher + "] matched, will request to stop test run");
+                }
+                break;
+            case MESSAGE:
+                this.eventMessageBus.send(EventMessage.builder()
+                        .pluginName(pluginName)
+                        .message(line)
+                        .variable("matcher", matcher.getPattern())
+                        .build());
+                break;
+            default:
+                logger.warn("Unknown output matcher action: " + matcher.getAction());
+        }
+    }
+
+    private PrefixedRedirectOutput prefixedOutput(OutputStream target, PrefixedRedirectOutput.RedirectType redirectType, String commandType) {
+        return prefixedOutput(target, redirectType, commandType, eventContext.getName(), null);
+    }
+
+    /**
+     * @param recorder also gets the lines, e.g. for the result cache, null for none
+     */
+    private PrefixedRedirectOutput prefixedOutput(OutputStream target, PrefixedRedirectOutput.RedirectType redirectType, String commandType, String outputName,
+                                                  PrefixedRedirectOutput.LineListener recorder) {
+        List<PrefixedRedirectOutput.LineListener> listeners = new ArrayList<>(4);
+        if (recorder != null) {
+            listeners.add(recorder);
+        }
+        OutputCapture capture = outputCapture();
+        if (capture != null) {
+            listeners.add(capture.newLineListener(eventContext.getName(), commandType));
+        }
+        if (keepAliveSamples != null && redirectType == STDOUT && "keepAlive".equals(commandType)) {
+            listeners.add(keepAliveSamples.newLineListener());
+        }
+
+        PrefixedRedirectOutput.LineListener lineListener;
+        if (listeners.size() > 1) {
+            lineListener = (bytes, offset, length, type) -> {
+                for (PrefixedRedirectOutput.LineListener listener : listeners) {
+                    listener.onLine(bytes, offset, length, type);
+                }
+            };
         }
         else {
-            Future<ProcessResult> beforeTestCommandFuture = runCommand(command, "beforeTest");
+            lineListener = listeners.isEmpty() ? null : listeners.get(0);
+        }
+        // only the matchers skip suppressed lines, see matchSuppressedOutput
+        OutputMatchers outputMatchers = eventContext.getOutputMatchers();
+        PrefixedRedirectOutput.LineListener matcherListener = outputMatchers.isEmpty() ? null : outputMatchers.newLineListener((matcher, line) -> outputMatched(matcher, line, commandType));
+        return new PrefixedRedirectOutput(outputName + ": ", target, redirectType, lineListener, matcherListener, outputPolicy,
+                metrics.commandType(commandType).output(redirectType));
+    }
 
-            if (beforeTestCommandFuture == null) {
-                logger.debug("No result available for beforeTest command");
-            } else {
-                waitForCommandToFinishOrTimeout(beforeTestCommandFuture);
+    private synchronized Map<String, List<String>> placementPrefixes() {
+        if (placementPrefixes == null) {
+            ProcessPlacement placement = eventContext.getProcessPlacements();
+            if (placement.isEmpty()) {
+                placementPrefixes = Collections.emptyMap();
+            }
+            else if (isWindows) {
+                logger.warn("Process placements are not supported on Windows, ignored: " + placement);
+                placementPrefixes = Collections.emptyMap();
+            }
+            else {
+                placementPrefixes = placement.prefixes(System.getenv("PATH"), ProcessPlacement.CGROUP_ROOT, logger);
+                placementPrefixes.forEach((commandType, prefix) -> logger.info("Process placement of " + commandType + ": " + prefix));
             }
         }
+        return placementPrefixes;
+    }
 
-        if (eventContext.isReadyForStartParticipant()) {
-            this.eventMessageBus.send(EventMessage.builder().pluginName(pluginName).message("Go!").build());
+    private synchronized OutputCapture outputCapture() {
+        if (!outputCaptureChecked) {
+            outputCaptureChecked = true;
+            String dir = eventContext.getOutputCaptureDir();
+            if (!dir.isEmpty()) {
+                Path file = Paths.get(dir, testContext.getTestRunId() + ".jsonl");
+                try {
+                    outputCapture = OutputCapture.open(file, logger);
+                    logger.info("Capture output of commands to [" + outputCapture.getFile() + "]");
+                } catch (IOException e) {
+                    logger.warn("Cannot capture output to [" + file + "]: " + e.getMessage());
+                }
+            }
+        }
+        return outputCapture;
+    }
+
+    private void releaseOutputCapture() {
+        OutputCapture capture;
+        synchronized (this) {
+            capture = outputCapture;
+            outputCapture = null;
+        }
+        if (capture != null) {
+            capture.release();
         }
     }
 
-    private void runBeforeTestNoWait(String pluginName) {
-        String command = eventContext.getOnBeforeTestNoWait();
+    private void runBeforeTestNoWait() {
+        String command = eventContext.getOnBeforeTestNoWaitTemplate().render(hookVariables);
 
         if (command.isEmpty()) {
-            logger.debug("No command to run for beforeTest");
+            logger.debug("No command to run for beforeTestNoWait");
             return;
         }
 
-        Future<ProcessResult> future = runCommand(command, "beforeTest");
+        ProcessFuture future = runCommand(command, "beforeTestNoWait");
         if (future != null) {
             futures.put("beforeTestNoWait", future);
         } else {
-            logger.debug("No result available for beforeTest command");
+            logger.debug("No result available for beforeTestNoWait command");
         }
+    }
 
-        if (future == null) {
-            logger.debug("No result available for beforeTest command");
+    /**
+     * Run the command of a hook, or with fan-out targets and a {@code __target__} in the command, run it for each target.
+     *
+     * @return completes with the exit code of the command, 0 when there is no command or all targets succeeded
+     */
+    private CompletableFuture<Integer> hookDone(CommandTemplate template, String commandType, long timeoutSeconds) {
+        List<String> targets = eventContext.getFanOutTargets();
+        if (targets.isEmpty() || !template.getVariableNames().contains(FanOut.TARGET)) {
+            String command = template.render(hookVariables);
+            if (resultCache != null && "beforeTest".equals(commandType) && !command.isEmpty()) {
+                return cachedCommandDone(command, commandType, timeoutSeconds);
+            }
+            return commandDone(runCommand(command, commandType), commandType, timeoutSeconds);
+        }
+        long targetTimeoutSeconds = eventContext.getFanOutTimeoutSeconds() > 0 ? eventContext.getFanOutTimeoutSeconds() : timeoutSeconds;
+        FanOut fanOut = new FanOut(commandType, targets, eventContext.getFanOutParallelism(), targetTimeoutSeconds,
+                target -> {
+                    Map<String, String> variables = new HashMap<>(hookVariables);
+                    variables.put(FanOut.TARGET, target);
+                    return runCommand(template.render(variables), commandType, eventContext.getName() + "[" + target + "]");
+                },
+                task -> processThreadPool.newThread(task).start(),
+                logger);
+
+        CompletableFuture<FanOut.Results> allEnded = fanOut.start();
+        AtomicBoolean timedOut = new AtomicBoolean(false);
+        if (timeoutSeconds > 0) {
+            // the timeout of the hook is for all targets together
+            allEnded.copy().orTimeout(timeoutSeconds, TimeUnit.SECONDS).whenComplete((results, failure) -> {
+                if (failure instanceof TimeoutException) {
+                    timedOut.set(true);
+                    fanOut.cancel("timed out after " + timeoutSeconds + " seconds");
+                }
+            });
         }
+
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        allEnded.whenComplete((results, failure) -> {
+            if (failure != null) {
+                done.completeExceptionally(new EventSchedulerRuntimeException("Fan-out " + commandType + " failed.", failure));
+                return;
+            }
+            sendFanOutResults(results);
+            if (results.isSuccess()) {
+                logger.info(results.toString());
+                done.complete(0);
+            }
+            else {
+                logger.warn(results.toString());
+                String timeout = timedOut.get() ? "Fan-out " + commandType + " timed out after " + timeoutSeconds + " seconds, cancelled targets. " : "";
+                done.completeExceptionally(new EventSchedulerRuntimeException(timeout + results));
+            }
+        });
+        return done;
     }
 
-    private void waitForCommandToFinishOrTimeout(Future<ProcessResult> command) {
-        if (command == null) {
-            logger.warn("No command to wait for");
-            return;
+    /**
+     * Run an idempotent command, or replay its result when the command, its inputs and its environment are in the result cache.
+     */
+    private CompletableFuture<Integer> cachedCommandDone(String command, String commandType, long timeoutSeconds) {
+        String key;
+        try {
+            key = ResultCache.key(command, eventContext.getResultCacheInputs(), resultCacheEnv());
+        } catch (UncheckedIOException e) {
+            logger.warn("Not using the result cache for " + commandType + ": " + e.getMessage());
+            return commandDone(runCommand(command, commandType), commandType, timeoutSeconds);
         }
 
+        Optional<ResultCache.Result> cached = resultCache.lookup(key);
+        if (cached.isPresent()) {
+            ResultCache.Result result = cached.get();
+            logger.info("Result cache hit for " + commandType + ", not running [" + command + "]. Exit code: " + result.getExitCode());
+            if (eventContext.isResultCacheReplayOutput()) {
+                replayOutput(result, commandType);
+            }
+            metrics.commandType(commandType).cacheHit();
+            return CompletableFuture.completedFuture(result.getExitCode());
+        }
+
+        ResultCache.Recorder recorder = resultCache.recorder(key, eventContext.isResultCacheReplayOutput());
+        ProcessFuture processFuture = runCommand(command, commandType, eventContext.getName(), recorder);
+        if (processFuture == null) {
+            return CompletableFuture.completedFuture(0);
+        }
+        return commandDone(processFuture, commandType, timeoutSeconds).thenApply(exitCode -> {
+            // a failure might not happen next time: only successful results are cached
+            if (exitCode != 0) {
+                return exitCode;
+            }
+            try {
+                recorder.store(exitCode);
+                int evicted = resultCache.evict();
+                logger.info("Stored result of " + commandType + " in result cache [" + resultCache.getDir() + "]"
+                        + (evicted > 0 ? ", evicted " + evicted + " least recently used results" : ""));
+            } catch (IOException e) {
+                logger.warn("Cannot store result of " + commandType + " in result cache [" + resultCache.getDir() + "]: " + e.getMessage());
+            }
+            return exitCode;
+        });
+    }
+
+    private Map<String, String> resultCacheEnv() {
+        Map<String, String> env = new HashMap<>();
+        for (String name : eventContext.getResultCacheEnv()) {
+            String value = System.getenv(name);
+            env.put(name, value == null ? "<unset>" : value);
+        }
+        return env;
+    }
+
+    /**
+     * Print the cached output like the output of the command, output matchers see the lines as well.
+     */
+    private void replayOutput(ResultCache.Result result, String commandType) {
+        String outputName = eventContext.getName() + "[cached]";
+        // not closed: that would close stdout and stderr
+        PrefixedRedirectOutput out = prefixedOutput(stdout, STDOUT, commandType, outputName, null);
+        PrefixedRedirectOutput err = prefixedOutput(stderr, STDERR, commandType, outputName, null);
         try {
-            ProcessResult processResult = command.get(120, TimeUnit.SECONDS);
+            for (ResultCache.Line line : result.getLines()) {
+                (line.getType() == STDERR ? err : out).write(line.getBytes());
+            }
+            out.flush();
+            err.flush();
+        } catch (IOException e) {
+            logger.warn("Cannot replay cached output of " + commandType + ": " + e.getMessage());
+        }
+    }
+
+    private void sendFanOutResults(FanOut.Results results) {
+        Map<String, String> variables = new LinkedHashMap<>();
+        variables.put("success", String.valueOf(results.isSuccess()));
+        for (FanOut.TargetResult target : results.getTargets()) {
+            variables.put(target.getTarget() + ".exitCode", String.valueOf(target.getExitCode()));
+            variables.put(target.getTarget() + ".durationMillis", String.valueOf(target.getDurationMillis()));
+        }
+        this.eventMessageBus.send(EventMessage.builder()
+                .pluginName(pluginName)
+                .message(results.toString())
+                .variables(variables)
+                .build());
+    }
+
+    /**
+     * @param command null when there is no command to run
+     * @param timeoutSeconds when the command runs longer it is cancelled, 0 is no timeout
+     * @return completes with the exit code when the command has ended, 0 when there is no command,
+     * exceptionally with an EventSchedulerRuntimeException when it failed or timed out
+     */
+    private CompletableFuture<Integer> commandDone(ProcessFuture command, String commandType, long timeoutSeconds) {
+        if (command == null) {
+            return CompletableFuture.completedFuture(0);
+        }
+        CompletableFuture<Integer> ended = command.thenApply(processResult -> {
             if (processResult.getExitValue() != 0) {
-                logger.warn("Command did not end successfully. Exit code: " + processResult.getExitValue());
+                logger.warn("Command " + commandType + " did not end successfully. Exit code: " + processResult.getExitValue());
+            }
+            else {
+                logger.info("Command " + commandType + " ended.");
+            }
+            return processResult.getExitValue();
+        });
+        if (timeoutSeconds > 0) {
+            ended = ended.orTimeout(timeoutSeconds, TimeUnit.SECONDS);
+        }
+        CompletableFuture<Integer> done = new CompletableFuture<>();
+        ended.whenComplete((exitCode, failure) -> {
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            if (cause == null) {
+                done.complete(exitCode);
+            }
+            else if (cause instanceof TimeoutException) {
+                // not on the thread of the timeout: it is shared and stopping the processes can take the grace period
+                processThreadPool.newThread(() -> {
+                    ProcessTree.Termination termination = command.terminate();
+                    logger.info("Cancelled " + commandType + " command: " + termination);
+                    done.completeExceptionally(new EventSchedulerRuntimeException("Command " + commandType + " timed out after " + timeoutSeconds + " seconds, cancelled command.", cause));
+                }).start();
             }
             else {
-                logger.info("Command ended. Is done: " + command.isDone());
+                done.completeExceptionally(new EventSchedulerRuntimeException("Command " + commandType + " failed.", cause));
             }
+        });
+        return done;
+    }
+
+    /**
+     * @return how long the hook coordinator waits for the other participants: the longest hook timeout, zero for no limit
+     */
+    private Duration hookDeadline() {
+        long[] timeouts = { eventContext.getOnBeforeTestTimeoutSeconds(), eventContext.getOnAfterTestTimeoutSeconds(), eventContext.getOnAbortTimeoutSeconds() };
+        if (Arrays.stream(timeouts).anyMatch(timeout -> timeout <= 0)) {
+            return Duration.ZERO;
+        }
+        return Duration.ofSeconds(Arrays.stream(timeouts).max().orElse(0));
+    }
+
+    /**
+     * Wait for the hook to be done. With concurrentHooks, only the last participant waits, for the hooks of all participants.
+     */
+    private void awaitHook(String hook, CompletableFuture<?> done) {
+        if (eventContext.isConcurrentHooks()) {
+            hookCoordinator.arrive(testContext.getTestRunId(), hook, eventContext.getName(), done, hookDeadline(), logger);
+            return;
+        }
+        try {
+            done.get();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             logger.warn("Command got interrupted");
         } catch (ExecutionException e) {
-            throw new EventSchedulerRuntimeException("Command failed.", e);
-        } catch (TimeoutException e) {
-            command.cancel(true);
-            throw new EventSchedulerRuntimeException("Command timed out, cancelled command.", e);
+            Throwable cause = e.getCause();
+            throw cause instanceof EventSchedulerRuntimeException
+                    ? (EventSchedulerRuntimeException) cause
+                    : new EventSchedulerRuntimeException(hook + " failed.", cause);
         }
     }
 
     @Override
     public void startTest() {
-        String command = eventContext.getOnStartTest();
-        Future<ProcessResult> future = runCommand(command, "startTest");
+        startTestMillis = System.currentTimeMillis();
+        String command = eventContext.getOnStartTestTemplate().render(hookVariables);
+        ProcessFuture future = runCommand(command, "startTest");
         if (future != null) {
             futures.put("startTest", future);
         }
+        watchJavaProcesses();
+    }
+
+    /**
+     * Look for Java processes in the startTest and beforeTestNoWait commands, e.g. the load generator and stub services.
+     */
+    private void watchJavaProcesses() {
+        if (javaDiagnostics == null) {
+            return;
+        }
+        for (String commandType : List.of("beforeTestNoWait", "startTest")) {
+            ProcessFuture future = futures.get(commandType);
+            if (future != null && future.getProcess() != null) {
+                javaDiagnostics.watch(future.getProcess().toHandle());
+            }
+        }
+    }
+
+    private void javaThreadDumps(String reason) {
+        if (javaDiagnostics != null && eventContext.isThreadDumpOnKeepAliveFailure()) {
+            javaDiagnostics.threadDumps(reason);
+        }
+    }
+
+    private void stopJavaDiagnostics() {
+        if (javaDiagnostics == null) {
+            return;
+        }
+        List<Path> recordings = javaDiagnostics.stop();
+        if (!recordings.isEmpty()) {
+            logger.info("JFR recordings: " + recordings);
+            this.eventMessageBus.send(EventMessage.builder()
+                    .pluginName(pluginName)
+                    .message("JFR recordings of " + recordings.size() + " Java processes")
+                    .variable("files", recordings.stream().map(Path::toString).collect(Collectors.joining(",")))
+                    .build());
+        }
     }
 
     @Override
     public void keepAlive() {
 
+        String matcherStopRequest = stopRequest.get();
+        if (matcherStopRequest != null) {
+            logger.info(matcherStopRequest);
+            throw new StopTestRunException(matcherStopRequest);
+        }
+
         Future<ProcessResult> future = futures.get("startTest");
 
         if (isContinueOnKeepAliveParticipant() && future != null && future.isDone()) {
@@ -220,36 +741,23 @@ public class CommandRunnerEvent extends EventAdapter<CommandRunnerEventContext>
             throw new StopTestRunException(message);
         }
 
-        String keepAliveCommand = eventContext.getOnKeepAlive();
-
-        Future<ProcessResult> processResultFuture = runCommand(keepAliveCommand, "keepAlive");
+        String keepAliveCommand = eventContext.getOnKeepAliveTemplate().render(hookVariables);
 
-        if (processResultFuture == null) {
-            return;
-        }
+        OptionalInt keepAliveExitValue = runKeepAliveCheck(keepAliveCommand);
+        checkKeepAliveSamples();
 
-        ProcessResult processResult;
-        try {
-            processResult = processResultFuture.get(30, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            logger.warn("Keep-alive command got interrupted! " + e.getMessage());
-            Thread.currentThread().interrupt();
-            return;
-        } catch (ExecutionException e) {
-            logger.warn("Keep-alive command cannot be executed! " + e.getMessage());
-            return;
-        } catch (TimeoutException e) {
-            logger.warn("Keep-alive command got timeout! " + e.getMessage());
+        if (keepAliveExitValue.isEmpty()) {
             return;
         }
 
-        int exitValue = processResult.getExitValue();
+        int exitValue = keepAliveExitValue.getAsInt();
         if (exitValue != 0) {
             String stopMessage = isContinueOnKeepAliveParticipant()
                     ? "Is continueOnKeepAliveParticipant: will request a stop test run."
                     : "Is no continueOnKeepAliveParticipant: will not request a stop test run.";
             String message = "Received failed (non-zero) exit value for keep-alive command (exit: " + exitValue + "). ";
             logger.info(message + stopMessage);
+            javaThreadDumps("keep-alive exit code " + exitValue);
             if (isContinueOnKeepAliveParticipant()) {
                 logger.info("This is a continueOnKeepAlive participant, will request to stop test run.");
                 throw new StopTestRunException(message);
@@ -260,68 +768,628 @@ public class CommandRunnerEvent extends EventAdapter<CommandRunnerEventContext>
         }
     }
 
+    /**
+     * Send the samples parsed from the output of the keep-alive command and check the thresholds.
+     */
+    private void checkKeepAliveSamples() {
+        if (keepAliveSamples == null) {
+            return;
+        }
+        SortedMap<String, Double> samples = keepAliveSamples.drain();
+        if (samples.isEmpty()) {
+            return;
+        }
+        Map<String, String> variables = new LinkedHashMap<>();
+        samples.forEach((name, value) -> variables.put(name, KeepAliveSamples.format(value)));
+        this.eventMessageBus.send(EventMessage.builder()
+                .pluginName(pluginName)
+                .message("Keep-alive samples")
+                .variables(variables)
+                .build());
+
+        List<String> breached = eventContext.getKeepAliveThresholds().breached(samples);
+        if (!breached.isEmpty()) {
+            String message = "Keep-alive threshold breached: " + String.join(", ", breached) + ", will request to stop test run.";
+            logger.info(message);
+            javaThreadDumps("keep-alive threshold breached");
+            throw new StopTestRunException(message);
+        }
+    }
+
+    private OptionalInt runKeepAliveCheck(String keepAliveCommand) {
+        if (keepAliveCommand.isEmpty()) {
+            logger.debug("No command to run for keepAlive");
+            return OptionalInt.empty();
+        }
+
+        KeepAliveWorker worker = keepAliveWorker();
+        if (worker != null) {
+            String command = createCommandListWithShWrapper(keepAliveCommand).get(2);
+            logger.info("About to run keepAlive in persistent keep-alive worker [" + command + "]");
+            CommandMetrics.CommandTypeMetrics keepAliveMetrics = metrics.commandType("keepAlive");
+            keepAliveMetrics.started(-1);
+            long start = System.nanoTime();
+            int exitValue = -1;
+            try {
+                exitValue = worker.check(command, eventContext.getOnKeepAliveTimeoutSeconds(), TimeUnit.SECONDS);
+                return OptionalInt.of(exitValue);
+            } catch (InterruptedException e) {
+                logger.warn("Keep-alive command got interrupted! " + e.getMessage());
+                Thread.currentThread().interrupt();
+                return OptionalInt.empty();
+            } catch (TimeoutException e) {
+                logger.warn("Keep-alive command got timeout, persistent keep-alive worker is stopped! " + e.getMessage());
+                return OptionalInt.empty();
+            } catch (IOException e) {
+                logger.warn("Persistent keep-alive worker failed, falling back to a new process per keep-alive: " + e.getMessage());
+            } finally {
+                keepAliveMetrics.ended(System.nanoTime() - start, exitValue);
+            }
+        }
+
+        // a failure of a check that was late should not go unnoticed
+        OptionalInt lateExitValue = endedLateExitValue();
+        if (lateExitValue.isPresent() && lateExitValue.getAsInt() != 0) {
+            return lateExitValue;
+        }
+
+        ProcessFuture check = keepAliveTracker.inFlight();
+        if (check != null) {
+            if (keepAliveTracker.isOverdue()) {
+                cancelKeepAliveCheck(check);
+                check = null;
+            }
+            else if (keepAliveTracker.getOverlap() == KeepAliveTracker.Overlap.SKIP) {
+                keepAliveTracker.skipped();
+                logger.info("Skip keepAlive: previous check is still running for " + keepAliveTracker.inFlightMillis() + " ms");
+                return OptionalInt.empty();
+            }
+            else {
+                keepAliveTracker.coalesced();
+                logger.info("Wait for running keepAlive check instead of starting a new one");
+            }
+        }
+        if (check == null) {
+            try {
+                check = runCommand(keepAliveCommand, "keepAlive");
+            } catch (EventSchedulerRuntimeException e) {
+                logger.warn(e.getMessage());
+                return OptionalInt.empty();
+            }
+            if (check == null) {
+                return OptionalInt.empty();
+            }
+            keepAliveTracker.started(check);
+        }
+
+        long waitMillis = keepAliveTracker.waitMillis();
+        try {
+            ProcessResult result = waitMillis > 0 ? check.get(waitMillis, TimeUnit.MILLISECONDS) : check.get();
+            keepAliveTracker.evaluated(check);
+            return OptionalInt.of(result.getExitValue());
+        } catch (InterruptedException e) {
+            logger.warn("Keep-alive command got interrupted! " + e.getMessage());
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            logger.warn("Keep-alive command cannot be executed! " + e.getMessage());
+        } catch (TimeoutException e) {
+            keepAliveTracker.late(check);
+            logger.warn("Keep-alive command did not finish within " + waitMillis + " ms, it keeps running until the next keepAlive");
+        }
+        return OptionalInt.empty();
+    }
+
+    /**
+     * @return true while a keep-alive check runs, also when it is late
+     */
+    boolean isKeepAliveCheckRunning() {
+        return keepAliveTracker.inFlight() != null;
+    }
+
+    /**
+     * @return the exit code of the late check when it has ended, empty when there is none
+     */
+    private OptionalInt endedLateExitValue() {
+        ProcessFuture endedLate = keepAliveTracker.endedLate();
+        if (endedLate == null) {
+            return OptionalInt.empty();
+        }
+        try {
+            int exitValue = endedLate.join().getExitValue();
+            logger.info("Late keep-alive check ended with exit code " + exitValue);
+            return OptionalInt.of(exitValue);
+        } catch (CompletionException | CancellationException e) {
+            logger.warn("Late keep-alive command cannot be executed! " + e.getMessage());
+            return OptionalInt.empty();
+        }
+    }
+
+    private void cancelKeepAliveCheck(ProcessFuture check) {
+        keepAliveTracker.cancelled(check);
+        logger.warn("Keep-alive check is running longer than " + eventContext.getOnKeepAliveTimeoutSeconds() + " seconds, cancel it");
+        // stopping the processes can take the grace period
+        processThreadPool.newThread(() -> {
+            ProcessTree.Termination termination = check.terminate();
+            logger.info("Cancelled keepAlive check: " + termination);
+        }).start();
+    }
+
+    /**
+     * @return the persistent keep-alive worker, or null when not enabled or it is no longer running
+     */
+    private KeepAliveWorker keepAliveWorker() {
+        if (!eventContext.isPersistentKeepAlive() || isWindows || keepAliveWorkerFailed) {
+            return null;
+        }
+        if (keepAliveWorker == null) {
+            try {
+                keepAliveWorker = new KeepAliveWorker(processThreadPool,
+                        ProcessPlacement.placed(placementPrefixes(), "keepAlive", List.of("sh")),
+                        Duration.ofSeconds(eventContext.getCancelGracePeriodSeconds()),
+                        prefixedOutput(stdout, STDOUT, "keepAlive"),
+                        prefixedOutput(stderr, STDERR, "keepAlive"),
+                        logger);
+            } catch (IOException e) {
+                logger.warn("Cannot start persistent keep-alive worker, using a new process per keep-alive: " + e.getMessage());
+                keepAliveWorkerFailed = true;
+                return null;
+            }
+        }
+        if (!keepAliveWorker.isAlive()) {
+            logger.warn("Persistent keep-alive worker is not running anymore, using a new process per keep-alive from now on");
+            keepAliveWorker.close();
+            keepAliveWorkerFailed = true;
+            return null;
+        }
+        return keepAliveWorker;
+    }
+
+    private void stopKeepAliveWorker() {
+        if (keepAliveWorker != null) {
+            keepAliveWorker.close();
+        }
+        // there is no next keep-alive for a late check that has ended since the last one
+        OptionalInt lateExitValue = endedLateExitValue();
+        if (lateExitValue.isPresent() && lateExitValue.getAsInt() != 0) {
+            String message = "Late keep-alive check failed with exit code " + lateExitValue.getAsInt() + " after the last keep-alive";
+            logger.warn(message);
+            javaThreadDumps("keep-alive exit code " + lateExitValue.getAsInt());
+            this.eventMessageBus.send(EventMessage.builder().pluginName(pluginName).message(message).build());
+        }
+        cancelCommand(eventContext.getOnKeepAlive(), keepAliveTracker.inFlight());
+    }
+
     @Override
     public void abortTest() {
-        cancelCommand();
-        abortCommand();
+        CompletableFuture<Integer> done;
+        try {
+            stopKeepAliveWorker();
+            // before the commands are cancelled: the recordings are written by the Java processes
+            stopJavaDiagnostics();
+            cancelCommand();
+            disconnectStdinPipes();
+
+            done = hookDone(eventContext.getOnAbortTemplate(), "abortCommand", eventContext.getOnAbortTimeoutSeconds())
+                    .whenComplete((result, failure) -> finishTest());
+        } catch (RuntimeException e) {
+            // with concurrentHooks the other participants wait for this one to arrive
+            done = CompletableFuture.failedFuture(e);
+        }
+        awaitHook("abortTest", done);
     }
 
     @Override
     public void afterTest() {
-        cancelCommand();
+        CompletableFuture<Integer> done;
+        try {
+            stopKeepAliveWorker();
+            stopJavaDiagnostics();
+            cancelCommand();
+            disconnectStdinPipes();
 
-        String onAfterTestCommand = eventContext.getOnAfterTest();
-        if (onAfterTestCommand.isEmpty()) {
-            logger.debug("No command to run for afterTest");
-            return;
+            done = hookDone(eventContext.getOnAfterTestTemplate(), "afterTest", eventContext.getOnAfterTestTimeoutSeconds())
+                    .whenComplete((result, failure) -> finishTest());
+        } catch (RuntimeException e) {
+            // with concurrentHooks the other participants wait for this one to arrive
+            done = CompletableFuture.failedFuture(e);
+        }
+        awaitHook("afterTest", done);
+    }
+
+    /**
+     * Ends what was started for the test run, after the afterTest or abort hook.
+     */
+    private void finishTest() {
+        stopPrewarmedShells();
+        sendResourceSummary();
+        sendMetricsSummary();
+        stopMetricsEndpoint();
+        releaseOutputCapture();
+
+        long suppressedLines = outputPolicy.getSuppressedLines();
+        if (suppressedLines > 0) {
+            logger.info("Output policy " + outputPolicy.getMode() + " suppressed " + suppressedLines + " output lines");
+        }
+        if (asyncOutput != null) {
+            asyncOutput.close();
         }
-        Future<ProcessResult> future = runCommand(onAfterTestCommand, "afterTest");
-        waitForCommandToFinishOrTimeout(future);
+        logger.info("Shared " + processThreadPool.describe());
+    }
+
+    /**
+     * @return completes when the command has ended, null when there is no command
+     */
+    private ProcessFuture runCommand(String command, String commandType) {
+        return runCommand(command, commandType, eventContext.getName());
     }
 
-    private Future<ProcessResult> runCommand(String command, String commandType) {
+    /**
+     * @param outputName shown in front of each output line of the command
+     */
+    private ProcessFuture runCommand(String command, String commandType, String outputName) {
+        return runCommand(command, commandType, outputName, null);
+    }
+
+    /**
+     * @param recorder also gets the output lines, null for none
+     * @throws EventSchedulerRuntimeException when the command cannot be started, also when maxConcurrentCommands commands are running
+     */
+    private ProcessFuture runCommand(String command, String commandType, String outputName, PrefixedRedirectOutput.LineListener recorder) {
         if (command.isEmpty()) {
             logger.debug("No command to run for " + commandType);
             return null;
         }
         logger.info("About to run " + commandType + " [" + command + "]");
 
-        String newTestRunId = testContext.getTestRunId();
-        command = command.replace("__testRunId__", newTestRunId);
+        // before the stdin pipe is claimed: a command that does not run should not keep the producer waiting
+        if (commandPermits != null && !commandPermits.tryAcquire()) {
+            throw new EventSchedulerRuntimeException("Not running " + commandType + ": already " + eventContext.getMaxConcurrentCommands() + " commands running (maxConcurrentCommands)");
+        }
 
-        List<String> commandList;
+        StdinSource.Source stdinSource = eventContext.getStdinSources().forCommandType(commandType).orElse(null);
+        Consumer<OutputStream> stdinReceiver = null;
+        List<String> commandList = commandList(command);
+        if (stdinSource != null && stdinSource.getFile() != null) {
+            Path file = stdinSource.getFile();
+            if (!Files.isReadable(file)) {
+                releaseCommandPermit();
+                throw new EventSchedulerRuntimeException("Cannot read stdin file of " + commandType + ": " + file);
+            }
+            if (isWindows) {
+                stdinReceiver = stdin -> processThreadPool.newThread(() -> transferFile(file, stdin)).start();
+            }
+            else {
+                // the process reads the file itself: no copies in this JVM
+                commandList = stdinRedirected(file, commandList);
+            }
+        }
+        else if (stdinSource != null) {
+            StdinPipe pipe = stdinPipesIn.get(stdinSource);
+            if (pipe.claim()) {
+                logger.info("Stdin of " + commandType + " is the stdout of " + pipe.getName());
+                stdinReceiver = stdin -> processThreadPool.newThread(() -> transferPipe(pipe, stdin)).start();
+            }
+            else {
+                logger.warn("Stdin pipe " + pipe + " is already read by another command, " + commandType + " gets no stdin");
+            }
+        }
+        commandList = ProcessPlacement.placed(placementPrefixes(), commandType, commandList);
 
-        if (isWindows) {
-            commandList = createCommandList(command);
+        // stdout goes to the participants that read it instead of to the console, like a pipe in a shell
+        List<StdinPipe> stdoutPipes = stdinPipes.from(testContext.getTestRunId(), eventContext.getName(), commandType);
+        OutputStream out;
+        if (stdoutPipes.isEmpty()) {
+            out = prefixedOutput(stdout, STDOUT, commandType, outputName, recorder);
         }
         else {
-            commandList = createCommandListWithShWrapper(command);
+            logger.info("Stdout of " + commandType + " goes to " + stdoutPipes);
+            out = StdinPipes.outputTo(stdoutPipes);
         }
 
-        commandList = injectTestRunIdInCommandList(commandList);
-
-        Future<ProcessResult> myProcessResult;
+        long spawnStart = System.nanoTime();
+        ProcessFuture processFuture;
         try {
-            myProcessResult = new ProcessExecutor()
+            processFuture = processThreadPool.start(processThreadPool.newProcessExecutor(this::releaseCommandPermit)
                 .command(commandList)
-                .redirectOutput(new PrefixedRedirectOutput(eventContext.getName() + ": ", System.out, STDOUT))
-                .redirectError(new PrefixedRedirectOutput(eventContext.getName() + ": ", System.err, STDERR))
-                .start().getFuture();
+                .redirectErrorStream(false)
+                .streams(processThreadPool.newPumpStreamHandler(
+                        out,
+                        prefixedOutput(stderr, STDERR, commandType, outputName, recorder),
+                        stdinReceiver)));
         } catch (IOException e) {
+            stdoutPipes.forEach(StdinPipe::closeWriter);
             throw new EventSchedulerRuntimeException("Failed to run command: " + command, e);
+        } catch (RejectedExecutionException e) {
+            stdoutPipes.forEach(StdinPipe::closeWriter);
+            throw new EventSchedulerRuntimeException("Failed to run command, no process threads available: " + command, e);
+        }
+        if (!stdoutPipes.isEmpty()) {
+            // the stream pumps are done when the process future completes
+            processFuture.whenComplete((result, failure) -> stdoutPipes.forEach(StdinPipe::closeWriter));
         }
-        return myProcessResult;
+
+        recordCommand(commandType, processFuture, System.nanoTime() - spawnStart);
+
+        ProcessResourceSampler sampler = resourceSampler();
+        if (sampler != null) {
+            sampler.track(processFuture.getProcess().pid(), commandType);
+        }
+        processFuture.setGracePeriod(Duration.ofSeconds(eventContext.getCancelGracePeriodSeconds()));
+        return processFuture;
     }
 
-    public static List<String> createCommandList(String command) {
-        return Arrays.asList(command.split("\\s+"));
+    /**
+     * The shell opens the file as stdin and execs the command.
+     */
+    static List<String> stdinRedirected(Path file, List<String> command) {
+        List<String> redirected = new ArrayList<>(command.size() + 4);
+        redirected.add("sh");
+        redirected.add("-c");
+        redirected.add("exec \"$@\" < \"$0\"");
+        redirected.add(file.toString());
+        redirected.addAll(command);
+        return redirected;
+    }
+
+    private void transferFile(Path file, OutputStream stdin) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             WritableByteChannel target = Channels.newChannel(stdin)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+        } catch (IOException e) {
+            // e.g. the process does not read all of its stdin
+            logger.debug("Stopped writing " + file + " to stdin: " + e.getMessage());
+        }
+    }
+
+    private void transferPipe(StdinPipe pipe, OutputStream stdin) {
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream target = stdin) {
+            int read;
+            while ((read = pipe.read(buffer, 0, buffer.length)) >= 0) {
+                target.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            logger.debug("Stopped writing " + pipe + " to stdin: " + e.getMessage());
+        } finally {
+            pipe.closeReader();
+            logger.info("Stdin pipe " + pipe + " transferred " + pipe.getTransferredBytes() + " bytes"
+                    + (pipe.getDiscardedBytes() > 0 ? ", discarded " + pipe.getDiscardedBytes() + " bytes" : ""));
+        }
     }
 
-    private List<String> injectTestRunIdInCommandList(List<String> commandList) {
-        String testRunId = testContext.getTestRunId();
-        return commandList.stream()
-                .map(s -> s.replace("__testRunId__", testRunId))
-                .collect(Collectors.toList());
+    private void disconnectStdinPipes() {
+        stdinPipesIn.forEach((source, pipe) -> stdinPipes.disconnect(testContext.getTestRunId(), source, pipe));
+    }
+
+    /**
+     * @param spawnNanos time to start the process, negative when no new process was started
+     */
+    private void recordCommand(String commandType, ProcessFuture processFuture, long spawnNanos) {
+        CommandMetrics.CommandTypeMetrics typeMetrics = metrics.commandType(commandType);
+        typeMetrics.started(spawnNanos);
+        long start = System.nanoTime();
+        processFuture.whenComplete((result, failure) ->
+                typeMetrics.ended(System.nanoTime() - start, failure == null ? result.getExitValue() : -1));
+    }
+
+    private void startMetricsEndpoint() {
+        int port = eventContext.getMetricsPort();
+        if (port <= 0 || metricsEndpoint != null) {
+            return;
+        }
+        try {
+            metricsEndpoint = MetricsEndpoint.open(port, metrics, logger);
+            logger.info("Serving command metrics on http://localhost:" + metricsEndpoint.getPort() + MetricsEndpoint.PATH);
+        } catch (IOException e) {
+            logger.warn("Cannot serve command metrics on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    private void stopMetricsEndpoint() {
+        MetricsEndpoint endpoint = metricsEndpoint;
+        metricsEndpoint = null;
+        if (endpoint != null) {
+            endpoint.release(metrics);
+        }
+    }
+
+    private void sendMetricsSummary() {
+        Map<String, String> summary = metrics.summary();
+        keepAliveTracker.summary().forEach((key, value) -> summary.put("keepAlive." + key, value));
+        if (summary.isEmpty()) {
+            return;
+        }
+        String prefix = "event." + eventContext.getName() + ".metrics.";
+        Map<String, String> lines = new LinkedHashMap<>();
+        summary.forEach((key, value) -> lines.put(prefix + key, value));
+        logger.info("Command metrics " + summary);
+        EventMessage message = TestRunConfigUtil.createTestRunConfigMessageKeys(pluginName, lines, "command-runner");
+        this.eventMessageBus.send(message);
+    }
+
+    private synchronized ProcessResourceSampler resourceSampler() {
+        if (!resourceSamplerChecked) {
+            resourceSamplerChecked = true;
+            long interval = eventContext.getResourceSamplingIntervalMillis();
+            if (interval > 0) {
+                if (ProcessResourceSampler.isSupported()) {
+                    String file = eventContext.getResourceTimeSeriesFile().replace("__testRunId__", testContext.getTestRunId());
+                    Path timeSeriesFile = file.isEmpty() ? null : Paths.get(file);
+                    resourceSampler = new ProcessResourceSampler(eventContext.getName(), interval, timeSeriesFile, logger);
+                }
+                else {
+                    logger.warn("Resource sampling is not supported on this system: no /proc file system");
+                }
+            }
+        }
+        return resourceSampler;
+    }
+
+    private void sendResourceSummary() {
+        ProcessResourceSampler sampler;
+        synchronized (this) {
+            sampler = resourceSampler;
+            resourceSampler = null;
+        }
+        if (sampler == null) {
+            return;
+        }
+        Map<String, String> summary = sampler.stop();
+        if (summary.isEmpty()) {
+            return;
+        }
+        String prefix = "event." + eventContext.getName() + ".resources.";
+        Map<String, String> lines = new LinkedHashMap<>();
+        summary.forEach((key, value) -> lines.put(prefix + key, value));
+        logger.info("Resource usage of commands " + summary);
+        EventMessage message = TestRunConfigUtil.createTestRunConfigMessageKeys(pluginName, lines, "command-runner");
+        this.eventMessageBus.send(message);
+    }
+
+    private void startPrewarmedShells() {
+        int size = eventContext.getPrewarmedShells();
+        if (size <= 0 || eventContext.getOnScheduledEvent().isEmpty() || prewarmedShells != null) {
+            return;
+        }
+        if (isWindows) {
+            logger.warn("Pre-warmed shells are not available on Windows");
+            return;
+        }
+        PrewarmedShells shells = new PrewarmedShells(size, this::startPrewarmedShell, processThreadPool, logger);
+        shells.fill();
+        prewarmedShells = shells;
+    }
+
+    private PrewarmedShells.Shell startPrewarmedShell() throws IOException {
+        AtomicBoolean used = new AtomicBoolean(false);
+        AtomicReference<OutputStream> stdin = new AtomicReference<>();
+        ProcessFuture processFuture = processThreadPool.start(processThreadPool.newProcessExecutor(() -> {
+                    // release only when a command was run, see Shell.run
+                    if (!used.compareAndSet(false, true)) {
+                        releaseCommandPermit();
+                    }
+                })
+                .command(ProcessPlacement.placed(placementPrefixes(), "scheduledEvent", List.of("sh")))
+                .redirectErrorStream(false)
+                .streams(processThreadPool.newPumpStreamHandler(
+                        prefixedOutput(stdout, STDOUT, "scheduledEvent"),
+                        prefixedOutput(stderr, STDERR, "scheduledEvent"),
+                        stdin::set)));
+        processFuture.setGracePeriod(Duration.ofSeconds(eventContext.getCancelGracePeriodSeconds()));
+        return new PrewarmedShells.Shell(processFuture, stdin.get(), used);
+    }
+
+    /**
+     * @return the number of pre-warmed shells that are started and idle
+     */
+    int idlePrewarmedShells() {
+        PrewarmedShells shells = prewarmedShells;
+        return shells == null ? 0 : shells.idleCount();
+    }
+
+    private void stopPrewarmedShells() {
+        PrewarmedShells shells = prewarmedShells;
+        prewarmedShells = null;
+        if (shells != null) {
+            shells.close();
+        }
+    }
+
+    /**
+     * @return start of test plus the duration of the event, or when the event was fired when that is not known
+     */
+    private long scheduledStartMillis(CustomEvent scheduleEvent, long firedMillis) {
+        long startTest = startTestMillis;
+        Duration duration = scheduleEvent.getDuration();
+        return startTest > 0 && duration != null ? startTest + duration.toMillis() : firedMillis;
+    }
+
+    private void runScheduledCommand(String command, long scheduledMillis) {
+        Future<ProcessResult> future = runInPrewarmedShell(command);
+        boolean prewarmed = future != null;
+        if (!prewarmed) {
+            future = runCommand(command, "scheduledEvent");
+        }
+        long actualMillis = System.currentTimeMillis();
+        if (future == null) {
+            return;
+        }
+        long delayMillis = actualMillis - scheduledMillis;
+        logger.info("Started scheduledEvent " + (prewarmed ? "in pre-warmed shell " : "") + delayMillis + " ms after scheduled time [" + command + "]");
+        this.eventMessageBus.send(EventMessage.builder()
+                .pluginName(pluginName)
+                .message("Started scheduled event command")
+                .variable("scheduledStartTime", Instant.ofEpochMilli(scheduledMillis).toString())
+                .variable("actualStartTime", Instant.ofEpochMilli(actualMillis).toString())
+                .variable("startDelayMillis", String.valueOf(delayMillis))
+                .variable("prewarmedShell", String.valueOf(prewarmed))
+                .build());
+    }
+
+    /**
+     * @return null when there is no pre-warmed shell available
+     */
+    private ProcessFuture runInPrewarmedShell(String command) {
+        PrewarmedShells shells = prewarmedShells;
+        PrewarmedShells.Shell shell = shells == null ? null : shells.take();
+        if (shell == null) {
+            if (shells != null) {
+                logger.info("No idle pre-warmed shell, starting a new process");
+            }
+            return null;
+        }
+        if (commandPermits != null && !commandPermits.tryAcquire()) {
+            shell.close();
+            return null;
+        }
+        logger.info("About to run scheduledEvent in pre-warmed shell [" + command + "]");
+        try {
+            ProcessFuture future = shell.run(command);
+            if (future == null) {
+                releaseCommandPermit();
+                return null;
+            }
+            recordCommand("scheduledEvent", future, -1);
+            ProcessResourceSampler sampler = resourceSampler();
+            if (sampler != null) {
+                sampler.track(shell.pid(), "scheduledEvent");
+            }
+            return future;
+        } catch (IOException e) {
+            logger.warn("Failed to run command in pre-warmed shell, starting a new process: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void releaseCommandPermit() {
+        if (commandPermits != null) {
+            commandPermits.release();
+        }
+    }
+
+    /**
+     * @return the command with a shell wrapper, or without for a simple command when directExec is enabled
+     */
+    private List<String> commandList(String command) {
+        if (eventContext.isDirectExec()) {
+            // on Windows the executable is looked up when the process is started
+            List<String> direct = isWindows
+                    ? DirectExec.tokenizeWindows(command)
+                    : DirectExec.commandList(command, System.getenv());
+            if (direct != null && !direct.isEmpty()) {
+                logger.debug("Run without shell: " + direct);
+                return direct;
+            }
+        }
+        return isWindows ? createCommandList(command) : createCommandListWithShWrapper(command);
+    }
+
+    public static List<String> createCommandList(String command) {
+        return Arrays.asList(command.split("\\s+"));
     }
 
     private Map<String, String> createTestRunConfigLines() {
@@ -351,16 +1419,6 @@ public class CommandRunnerEvent extends EventAdapter<CommandRunnerEventContext>
         return commandList;
     }
 
-    private void abortCommand() {
-        String abortCommand = eventContext.getOnAbort();
-        if (abortCommand.isEmpty()) {
-            logger.debug("No command to run for abortCommand");
-            return;
-        }
-        Future<ProcessResult> future = runCommand(abortCommand, "abortCommand");
-        waitForCommandToFinishOrTimeout(future);
-    }
-
     private void cancelCommand() {
         String command = eventContext.getOnStartTest();
         for (String key : futures.keySet()) {
@@ -368,13 +1426,13 @@ public class CommandRunnerEvent extends EventAdapter<CommandRunnerEventContext>
         }
     }
 
-    private void cancelCommand(String command, Future<ProcessResult> future) {
+    private void cancelCommand(String command, ProcessFuture future) {
         if (future != null) {
             logger.debug("There is a future for [ " + command + "]");
             if (!future.isDone()) {
                 logger.info("About to cancel [" + command + "] for [" + testContext.getTestRunId() + "]");
-                boolean cancel = future.cancel(true);
-                logger.debug("Cancel [" + cancel + "] for [" + testContext.getTestRunId() + "]");
+                ProcessTree.Termination termination = future.terminate();
+                logger.info("Cancelled [" + command + "] for [" + testContext.getTestRunId() + "]: " + termination);
             }
             else {
                 logger.info("No cancel needed for finished command for [" + testContext.getTestRunId() + "]");
@@ -18,6 +18,9 @@ package io.perfana.events.commandrunner;
 import io.perfana.eventscheduler.api.config.EventConfig;
 import net.jcip.annotations.NotThreadSafe;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @NotThreadSafe
 public class CommandRunnerEventConfig extends EventConfig {
 
@@ -32,9 +35,97 @@ public class CommandRunnerEventConfig extends EventConfig {
 
     private boolean sendTestRunConfig = false;
 
+    private boolean asyncOutput = false;
+    private int asyncOutputBufferSize = 1024;
+    private String asyncOutputOverflowPolicy = AsyncOutputPipeline.OverflowPolicy.BLOCK.name();
+
+    private int maxConcurrentCommands = 0;
+    private boolean persistentKeepAlive = false;
+    private List<String> outputMatchers = new ArrayList<>();
+    private long resourceSamplingIntervalMillis = 0;
+    private String resourceTimeSeriesFile = "";
+    private String outputCaptureDir = "";
+    private int prewarmedShells = 0;
+    private boolean concurrentHooks = false;
+    private long onBeforeTestTimeoutSeconds = 120;
+    private long onAfterTestTimeoutSeconds = 120;
+    private long onAbortTimeoutSeconds = 120;
+    private long onKeepAliveTimeoutSeconds = 30;
+    private long cancelGracePeriodSeconds = 5;
+    private String outputPolicy = OutputPolicy.Mode.PASS_THROUGH.name();
+    private int outputRateLimitLinesPerSecond = 1000;
+    private int outputSampleRate = 100;
+    private boolean matchSuppressedOutput = true;
+    private int metricsPort = 0;
+    private List<String> fanOutTargets = new ArrayList<>();
+    private int fanOutParallelism = 8;
+    private long fanOutTimeoutSeconds = 0;
+    private boolean parseKeepAliveOutput = false;
+    private List<String> keepAliveThresholds = new ArrayList<>();
+    private String keepAliveOverlap = KeepAliveTracker.Overlap.SKIP.name();
+    private boolean adaptiveKeepAliveTimeout = false;
+    private boolean directExec = false;
+    private List<String> dependsOn = new ArrayList<>();
+    private String resultCacheDir = "";
+    private List<String> resultCacheInputs = new ArrayList<>();
+    private List<String> resultCacheEnv = new ArrayList<>();
+    private int resultCacheMaxSizeMb = 1024;
+    private boolean resultCacheReplayOutput = true;
+    private List<String> groups = new ArrayList<>();
+    private boolean jfrRecording = false;
+    private String jfrSettings = "default";
+    private boolean threadDumpOnKeepAliveFailure = false;
+    private String javaDiagnosticsDir = "java-diagnostics";
+    private List<String> processPlacements = new ArrayList<>();
+    private List<String> stdinSources = new ArrayList<>();
+    private int stdinPipeBufferKb = 1024;
+    private long dependsOnTimeoutSeconds = 0;
+
     @Override
     public CommandRunnerEventContext toContext() {
-        return new CommandRunnerEventContext(super.toContext(), onBeforeTest, onBeforeTestNoWait, onStartTest, onKeepAlive, onAbort, onAfterTest, onScheduledEvent, sendTestRunConfig);
+        return new CommandRunnerEventContext(super.toContext(), onBeforeTest, onBeforeTestNoWait, onStartTest, onKeepAlive, onAbort, onAfterTest, onScheduledEvent, sendTestRunConfig,
+                asyncOutput, asyncOutputBufferSize, AsyncOutputPipeline.OverflowPolicy.parse(asyncOutputOverflowPolicy),
+                maxConcurrentCommands,
+                persistentKeepAlive,
+                OutputMatchers.parse(outputMatchers),
+                resourceSamplingIntervalMillis,
+                resourceTimeSeriesFile,
+                outputCaptureDir,
+                prewarmedShells,
+                concurrentHooks,
+                onBeforeTestTimeoutSeconds,
+                onAfterTestTimeoutSeconds,
+                onAbortTimeoutSeconds,
+                onKeepAliveTimeoutSeconds,
+                cancelGracePeriodSeconds,
+                OutputPolicy.Mode.parse(outputPolicy),
+                outputRateLimitLinesPerSecond,
+                outputSampleRate,
+                matchSuppressedOutput,
+                metricsPort,
+                List.copyOf(fanOutTargets),
+                fanOutParallelism,
+                fanOutTimeoutSeconds,
+                parseKeepAliveOutput,
+                KeepAliveThresholds.parse(keepAliveThresholds),
+                KeepAliveTracker.Overlap.parse(keepAliveOverlap),
+                adaptiveKeepAliveTimeout,
+                directExec,
+                List.copyOf(dependsOn),
+                resultCacheDir,
+                List.copyOf(resultCacheInputs),
+                List.copyOf(resultCacheEnv),
+                resultCacheMaxSizeMb,
+                resultCacheReplayOutput,
+                List.copyOf(groups),
+                jfrRecording,
+                jfrSettings,
+                threadDumpOnKeepAliveFailure,
+                javaDiagnosticsDir,
+                ProcessPlacement.parse(processPlacements),
+                StdinSource.parse(stdinSources),
+                stdinPipeBufferKb,
+                dependsOnTimeoutSeconds);
     }
 
     public String getOnBeforeTest() {
@@ -97,6 +188,358 @@ public class CommandRunnerEventConfig extends EventConfig {
         this.onScheduledEvent = onScheduledEvent;
     }
 
+    public boolean isAsyncOutput() {
+        return asyncOutput;
+    }
+
+    public void setAsyncOutput(boolean asyncOutput) {
+        this.asyncOutput = asyncOutput;
+    }
+
+    public int getAsyncOutputBufferSize() {
+        return asyncOutputBufferSize;
+    }
+
+    public void setAsyncOutputBufferSize(int asyncOutputBufferSize) {
+        this.asyncOutputBufferSize = asyncOutputBufferSize;
+    }
+
+    public String getAsyncOutputOverflowPolicy() {
+        return asyncOutputOverflowPolicy;
+    }
+
+    public void setAsyncOutputOverflowPolicy(String asyncOutputOverflowPolicy) {
+        this.asyncOutputOverflowPolicy = asyncOutputOverflowPolicy;
+    }
+
+    public int getMaxConcurrentCommands() {
+        return maxConcurrentCommands;
+    }
+
+    public void setMaxConcurrentCommands(int maxConcurrentCommands) {
+        this.maxConcurrentCommands = maxConcurrentCommands;
+    }
+
+    public boolean isPersistentKeepAlive() {
+        return persistentKeepAlive;
+    }
+
+    public void setPersistentKeepAlive(boolean persistentKeepAlive) {
+        this.persistentKeepAlive = persistentKeepAlive;
+    }
+
+    public List<String> getOutputMatchers() {
+        return outputMatchers;
+    }
+
+    public void setOutputMatchers(List<String> outputMatchers) {
+        this.outputMatchers = outputMatchers;
+    }
+
+    public long getResourceSamplingIntervalMillis() {
+        return resourceSamplingIntervalMillis;
+    }
+
+    public void setResourceSamplingIntervalMillis(long resourceSamplingIntervalMillis) {
+        this.resourceSamplingIntervalMillis = resourceSamplingIntervalMillis;
+    }
+
+    public String getResourceTimeSeriesFile() {
+        return resourceTimeSeriesFile;
+    }
+
+    public void setResourceTimeSeriesFile(String resourceTimeSeriesFile) {
+        this.resourceTimeSeriesFile = resourceTimeSeriesFile;
+    }
+
+    public String getOutputCaptureDir() {
+        return outputCaptureDir;
+    }
+
+    public void setOutputCaptureDir(String outputCaptureDir) {
+        this.outputCaptureDir = outputCaptureDir;
+    }
+
+    public int getPrewarmedShells() {
+        return prewarmedShells;
+    }
+
+    public void setPrewarmedShells(int prewarmedShells) {
+        this.prewarmedShells = prewarmedShells;
+    }
+
+    public boolean isConcurrentHooks() {
+        return concurrentHooks;
+    }
+
+    public void setConcurrentHooks(boolean concurrentHooks) {
+        this.concurrentHooks = concurrentHooks;
+    }
+
+    public long getOnBeforeTestTimeoutSeconds() {
+        return onBeforeTestTimeoutSeconds;
+    }
+
+    public void setOnBeforeTestTimeoutSeconds(long onBeforeTestTimeoutSeconds) {
+        this.onBeforeTestTimeoutSeconds = onBeforeTestTimeoutSeconds;
+    }
+
+    public long getOnAfterTestTimeoutSeconds() {
+        return onAfterTestTimeoutSeconds;
+    }
+
+    public void setOnAfterTestTimeoutSeconds(long onAfterTestTimeoutSeconds) {
+        this.onAfterTestTimeoutSeconds = onAfterTestTimeoutSeconds;
+    }
+
+    public long getOnAbortTimeoutSeconds() {
+        return onAbortTimeoutSeconds;
+    }
+
+    public void setOnAbortTimeoutSeconds(long onAbortTimeoutSeconds) {
+        this.onAbortTimeoutSeconds = onAbortTimeoutSeconds;
+    }
+
+    public long getOnKeepAliveTimeoutSeconds() {
+        return onKeepAliveTimeoutSeconds;
+    }
+
+    public void setOnKeepAliveTimeoutSeconds(long onKeepAliveTimeoutSeconds) {
+        this.onKeepAliveTimeoutSeconds = onKeepAliveTimeoutSeconds;
+    }
+
+    public long getCancelGracePeriodSeconds() {
+        return cancelGracePeriodSeconds;
+    }
+
+    public void setCancelGracePeriodSeconds(long cancelGracePeriodSeconds) {
+        this.cancelGracePeriodSeconds = cancelGracePeriodSeconds;
+    }
+
+    public String getOutputPolicy() {
+        return outputPolicy;
+    }
+
+    public void setOutputPolicy(String outputPolicy) {
+        this.outputPolicy = outputPolicy;
+    }
+
+    public int getOutputRateLimitLinesPerSecond() {
+        return outputRateLimitLinesPerSecond;
+    }
+
+    public void setOutputRateLimitLinesPerSecond(int outputRateLimitLinesPerSecond) {
+        this.outputRateLimitLinesPerSecond = outputRateLimitLinesPerSecond;
+    }
+
+    public int getOutputSampleRate() {
+        return outputSampleRate;
+    }
+
+    public void setOutputSampleRate(int outputSampleRate) {
+        this.outputSampleRate = outputSampleRate;
+    }
+
+    public boolean isMatchSuppressedOutput() {
+        return matchSuppressedOutput;
+    }
+
+    public void setMatchSuppressedOutput(boolean matchSuppressedOutput) {
+        this.matchSuppressedOutput = matchSuppressedOutput;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    public List<String> getFanOutTargets() {
+        return fanOutTargets;
+    }
+
+    public void setFanOutTargets(List<String> fanOutTargets) {
+        this.fanOutTargets = fanOutTargets;
+    }
+
+    public int getFanOutParallelism() {
+        return fanOutParallelism;
+    }
+
+    public void setFanOutParallelism(int fanOutParallelism) {
+        this.fanOutParallelism = fanOutParallelism;
+    }
+
+    public long getFanOutTimeoutSeconds() {
+        return fanOutTimeoutSeconds;
+    }
+
+    public void setFanOutTimeoutSeconds(long fanOutTimeoutSeconds) {
+        this.fanOutTimeoutSeconds = fanOutTimeoutSeconds;
+    }
+
+    public boolean isParseKeepAliveOutput() {
+        return parseKeepAliveOutput;
+    }
+
+    public void setParseKeepAliveOutput(boolean parseKeepAliveOutput) {
+        this.parseKeepAliveOutput = parseKeepAliveOutput;
+    }
+
+    public List<String> getKeepAliveThresholds() {
+        return keepAliveThresholds;
+    }
+
+    public void setKeepAliveThresholds(List<String> keepAliveThresholds) {
+        this.keepAliveThresholds = keepAliveThresholds;
+    }
+
+    public String getKeepAliveOverlap() {
+        return keepAliveOverlap;
+    }
+
+    public void setKeepAliveOverlap(String keepAliveOverlap) {
+        this.keepAliveOverlap = keepAliveOverlap;
+    }
+
+    public boolean isAdaptiveKeepAliveTimeout() {
+        return adaptiveKeepAliveTimeout;
+    }
+
+    public void setAdaptiveKeepAliveTimeout(boolean adaptiveKeepAliveTimeout) {
+        this.adaptiveKeepAliveTimeout = adaptiveKeepAliveTimeout;
+    }
+
+    public boolean isDirectExec() {
+        return directExec;
+    }
+
+    public void setDirectExec(boolean directExec) {
+        this.directExec = directExec;
+    }
+
+    public List<String> getDependsOn() {
+        return dependsOn;
+    }
+
+    public void setDependsOn(List<String> dependsOn) {
+        this.dependsOn = dependsOn;
+    }
+
+    public String getResultCacheDir() {
+        return resultCacheDir;
+    }
+
+    public void setResultCacheDir(String resultCacheDir) {
+        this.resultCacheDir = resultCacheDir;
+    }
+
+    public List<String> getResultCacheInputs() {
+        return resultCacheInputs;
+    }
+
+    public void setResultCacheInputs(List<String> resultCacheInputs) {
+        this.resultCacheInputs = resultCacheInputs;
+    }
+
+    public List<String> getResultCacheEnv() {
+        return resultCacheEnv;
+    }
+
+    public void setResultCacheEnv(List<String> resultCacheEnv) {
+        this.resultCacheEnv = resultCacheEnv;
+    }
+
+    public int getResultCacheMaxSizeMb() {
+        return resultCacheMaxSizeMb;
+    }
+
+    public void setResultCacheMaxSizeMb(int resultCacheMaxSizeMb) {
+        this.resultCacheMaxSizeMb = resultCacheMaxSizeMb;
+    }
+
+    public boolean isResultCacheReplayOutput() {
+        return resultCacheReplayOutput;
+    }
+
+    public void setResultCacheReplayOutput(boolean resultCacheReplayOutput) {
+        this.resultCacheReplayOutput = resultCacheReplayOutput;
+    }
+
+    public List<String> getGroups() {
+        return groups;
+    }
+
+    public void setGroups(List<String> groups) {
+        this.groups = groups;
+    }
+
+    public boolean isJfrRecording() {
+        return jfrRecording;
+    }
+
+    public void setJfrRecording(boolean jfrRecording) {
+        this.jfrRecording = jfrRecording;
+    }
+
+    public String getJfrSettings() {
+        return jfrSettings;
+    }
+
+    public void setJfrSettings(String jfrSettings) {
+        this.jfrSettings = jfrSettings;
+    }
+
+    public boolean isThreadDumpOnKeepAliveFailure() {
+        return threadDumpOnKeepAliveFailure;
+    }
+
+    public void setThreadDumpOnKeepAliveFailure(boolean threadDumpOnKeepAliveFailure) {
+        this.threadDumpOnKeepAliveFailure = threadDumpOnKeepAliveFailure;
+    }
+
+    public String getJavaDiagnosticsDir() {
+        return javaDiagnosticsDir;
+    }
+
+    public void setJavaDiagnosticsDir(String javaDiagnosticsDir) {
+        this.javaDiagnosticsDir = javaDiagnosticsDir;
+    }
+
+    public List<String> getProcessPlacements() {
+        return processPlacements;
+    }
+
+    public void setProcessPlacements(List<String> processPlacements) {
+        this.processPlacements = processPlacements;
+    }
+
+    public List<String> getStdinSources() {
+        return stdinSources;
+    }
+
+    public void setStdinSources(List<String> stdinSources) {
+        this.stdinSources = stdinSources;
+    }
+
+    public int getStdinPipeBufferKb() {
+        return stdinPipeBufferKb;
+    }
+
+    public void setStdinPipeBufferKb(int stdinPipeBufferKb) {
+        this.stdinPipeBufferKb = stdinPipeBufferKb;
+    }
+
+    public long getDependsOnTimeoutSeconds() {
+        return dependsOnTimeoutSeconds;
+    }
+
+    public void setDependsOnTimeoutSeconds(long dependsOnTimeoutSeconds) {
+        this.dependsOnTimeoutSeconds = dependsOnTimeoutSeconds;
+    }
+
     @Override
     public String toString() {
         return "CommandRunnerEventConfig{" +
@@ -108,6 +551,50 @@ public class CommandRunnerEventConfig extends EventConfig {
                 ", onAfterTest='" + onAfterTest + '\'' +
                 ", onCustomEvent='" + onScheduledEvent + '\'' +
                 ", sendTestRunConfig=" + sendTestRunConfig +
+                ", asyncOutput=" + asyncOutput +
+                ", asyncOutputBufferSize=" + asyncOutputBufferSize +
+                ", asyncOutputOverflowPolicy='" + asyncOutputOverflowPolicy + '\'' +
+                ", maxConcurrentCommands=" + maxConcurrentCommands +
+                ", persistentKeepAlive=" + persistentKeepAlive +
+                ", outputMatchers=" + outputMatchers +
+                ", resourceSamplingIntervalMillis=" + resourceSamplingIntervalMillis +
+                ", resourceTimeSeriesFile='" + resourceTimeSeriesFile + '\'' +
+                ", outputCaptureDir='" + outputCaptureDir + '\'' +
+                ", prewarmedShells=" + prewarmedShells +
+                ", concurrentHooks=" + concurrentHooks +
+                ", onBeforeTestTimeoutSeconds=" + onBeforeTestTimeoutSeconds +
+                ", onAfterTestTimeoutSeconds=" + onAfterTestTimeoutSeconds +
+                ", onAbortTimeoutSeconds=" + onAbortTimeoutSeconds +
+                ", onKeepAliveTimeoutSeconds=" + onKeepAliveTimeoutSeconds +
+                ", cancelGracePeriodSeconds=" + cancelGracePeriodSeconds +
+                ", outputPolicy='" + outputPolicy + '\'' +
+                ", outputRateLimitLinesPerSecond=" + outputRateLimitLinesPerSecond +
+                ", outputSampleRate=" + outputSampleRate +
+                ", matchSuppressedOutput=" + matchSuppressedOutput +
+                ", metricsPort=" + metricsPort +
+                ", fanOutTargets=" + fanOutTargets +
+                ", fanOutParallelism=" + fanOutParallelism +
+                ", fanOutTimeoutSeconds=" + fanOutTimeoutSeconds +
+                ", parseKeepAliveOutput=" + parseKeepAliveOutput +
+                ", keepAliveThresholds=" + keepAliveThresholds +
+                ", keepAliveOverlap='" + keepAliveOverlap + '\'' +
+                ", adaptiveKeepAliveTimeout=" + adaptiveKeepAliveTimeout +
+                ", directExec=" + directExec +
+                ", dependsOn=" + dependsOn +
+                ", resultCacheDir='" + resultCacheDir + '\'' +
+                ", resultCacheInputs=" + resultCacheInputs +
+                ", resultCacheEnv=" + resultCacheEnv +
+                ", resultCacheMaxSizeMb=" + resultCacheMaxSizeMb +
+                ", resultCacheReplayOutput=" + resultCacheReplayOutput +
+                ", groups=" + groups +
+                ", jfrRecording=" + jfrRecording +
+                ", jfrSettings='" + jfrSettings + '\'' +
+                ", threadDumpOnKeepAliveFailure=" + threadDumpOnKeepAliveFailure +
+                ", javaDiagnosticsDir='" + javaDiagnosticsDir + '\'' +
+                ", processPlacements=" + processPlacements +
+                ", stdinSources=" + stdinSources +
+                ", stdinPipeBufferKb=" + stdinPipeBufferKb +
+                ", dependsOnTimeoutSeconds=" + dependsOnTimeoutSeconds +
                 '}';
     }
 
@@ -18,7 +18,9 @@ package io.perfana.events.commandrunner;
 import io.perfana.eventscheduler.api.config.EventContext;
 import net.jcip.annotations.Immutable;
 
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 @Immutable
 public class CommandRunnerEventContext extends EventContext {
@@ -31,8 +33,103 @@ public class CommandRunnerEventContext extends EventContext {
     private final String onAfterTest;
     private final String onScheduledEvent;
     private final boolean sendTestRunConfig;
+    private final boolean asyncOutput;
+    private final int asyncOutputBufferSize;
+    private final AsyncOutputPipeline.OverflowPolicy asyncOutputOverflowPolicy;
+    private final int maxConcurrentCommands;
+    private final boolean persistentKeepAlive;
+    private final OutputMatchers outputMatchers;
+    private final long resourceSamplingIntervalMillis;
+    private final String resourceTimeSeriesFile;
 
-    protected CommandRunnerEventContext(EventContext context, String onBeforeTest, String onBeforeTestNoWait, String onStartTest, String onKeepAlive, String onAbort, String onAfterTest, String onCustomEvent, boolean sendTestRunConfig) {
+    // parsed once, the hooks only have the test run id as variable
+    private final CommandTemplate onStartTestTemplate;
+    private final CommandTemplate onBeforeTestTemplate;
+    private final CommandTemplate onBeforeTestNoWaitTemplate;
+    private final CommandTemplate onKeepAliveTemplate;
+    private final CommandTemplate onAbortTemplate;
+    private final CommandTemplate onAfterTestTemplate;
+    private final CommandTemplate onScheduledEventTemplate;
+    private final String outputCaptureDir;
+    private final int prewarmedShells;
+    private final boolean concurrentHooks;
+    private final long onBeforeTestTimeoutSeconds;
+    private final long onAfterTestTimeoutSeconds;
+    private final long onAbortTimeoutSeconds;
+    private final long onKeepAliveTimeoutSeconds;
+    private final long cancelGracePeriodSeconds;
+    private final OutputPolicy.Mode outputPolicy;
+    private final int outputRateLimitLinesPerSecond;
+    private final int outputSampleRate;
+    private final boolean matchSuppressedOutput;
+    private final int metricsPort;
+    private final List<String> fanOutTargets;
+    private final int fanOutParallelism;
+    private final long fanOutTimeoutSeconds;
+    private final boolean parseKeepAliveOutput;
+    private final KeepAliveThresholds keepAliveThresholds;
+    private final KeepAliveTracker.Overlap keepAliveOverlap;
+    private final boolean adaptiveKeepAliveTimeout;
+    private final boolean directExec;
+    private final List<String> dependsOn;
+    private final String resultCacheDir;
+    private final List<String> resultCacheInputs;
+    private final List<String> resultCacheEnv;
+    private final int resultCacheMaxSizeMb;
+    private final boolean resultCacheReplayOutput;
+    private final List<String> groups;
+    private final boolean jfrRecording;
+    private final String jfrSettings;
+    private final boolean threadDumpOnKeepAliveFailure;
+    private final String javaDiagnosticsDir;
+    private final ProcessPlacement processPlacements;
+    private final StdinSource stdinSources;
+    private final int stdinPipeBufferKb;
+    private final long dependsOnTimeoutSeconds;
+
+    protected CommandRunnerEventContext(EventContext context, String onBeforeTest, String onBeforeTestNoWait, String onStartTest, String onKeepAlive, String onAbort, String onAfterTest, String onCustomEvent, boolean sendTestRunConfig,
+                                        boolean asyncOutput, int asyncOutputBufferSize, AsyncOutputPipeline.OverflowPolicy asyncOutputOverflowPolicy,
+                                        int maxConcurrentCommands,
+                                        boolean persistentKeepAlive,
+                                        OutputMatchers outputMatchers,
+                                        long resourceSamplingIntervalMillis,
+                                        String resourceTimeSeriesFile,
+                                        String outputCaptureDir,
+                                        int prewarmedShells,
+                                        boolean concurrentHooks,
+                                        long onBeforeTestTimeoutSeconds,
+                                        long onAfterTestTimeoutSeconds,
+                                        long onAbortTimeoutSeconds,
+                                        long onKeepAliveTimeoutSeconds,
+                                        long cancelGracePeriodSeconds,
+                                        OutputPolicy.Mode outputPolicy,
+                                        int outputRateLimitLinesPerSecond,
+                                        int outputSampleRate,
+                                        boolean matchSuppressedOutput,
+                                        int metricsPort,
+                                        List<String> fanOutTargets,
+                                        int fanOutParallelism,
+                                        long fanOutTimeoutSeconds,
+                                        boolean parseKeepAliveOutput,
+                                        KeepAliveThresholds keepAliveThresholds,
+                                        KeepAliveTracker.Overlap keepAliveOverlap,
+                                        boolean adaptiveKeepAliveTimeout,
+                                        boolean directExec,
+                                        List<String> dependsOn,
+                                        String resultCacheDir,
+                                        List<String> resultCacheInputs,
+                                        List<String> resultCacheEnv,
+                                        int resultCacheMaxSizeMb,
+                                        boolean resultCacheReplayOutput,
+                                        List<String> groups,
+                                        boolean jfrRecording,
+                                        String jfrSettings,
+                                        boolean threadDumpOnKeepAliveFailure,
+                                        String javaDiagnosticsDir,
+                                        ProcessPlacement processPlacements,
+                                        StdinSource stdinSources,
+                                        int stdinPipeBufferKb,
+                                        long dependsOnTimeoutSeconds) {
         super(context, CommandRunnerEventFactory.class.getName());
         this.onStartTest = onStartTest;
         this.onBeforeTest = onBeforeTest;
@@ -42,6 +139,61 @@ public class CommandRunnerEventContext extends EventContext {
         this.onAfterTest = onAfterTest;
         this.onScheduledEvent = onCustomEvent;
         this.sendTestRunConfig = sendTestRunConfig;
+        this.asyncOutput = asyncOutput;
+        this.asyncOutputBufferSize = asyncOutputBufferSize;
+        this.asyncOutputOverflowPolicy = asyncOutputOverflowPolicy;
+        this.maxConcurrentCommands = maxConcurrentCommands;
+        this.persistentKeepAlive = persistentKeepAlive;
+        this.outputMatchers = outputMatchers;
+        this.resourceSamplingIntervalMillis = resourceSamplingIntervalMillis;
+        this.resourceTimeSeriesFile = resourceTimeSeriesFile;
+
+        Set<String> hookVariables = Set.of(CommandTemplate.TEST_RUN_ID);
+        // the hooks that wait for their command can fan out to targets
+        Set<String> fanOutVariables = fanOutTargets.isEmpty() ? hookVariables : Set.of(CommandTemplate.TEST_RUN_ID, FanOut.TARGET);
+        this.onStartTestTemplate = CommandTemplate.compile(onStartTest, hookVariables);
+        this.onBeforeTestTemplate = CommandTemplate.compile(onBeforeTest, fanOutVariables);
+        this.onBeforeTestNoWaitTemplate = CommandTemplate.compile(onBeforeTestNoWait, hookVariables);
+        this.onKeepAliveTemplate = CommandTemplate.compile(onKeepAlive, hookVariables);
+        this.onAbortTemplate = CommandTemplate.compile(onAbort, fanOutVariables);
+        this.onAfterTestTemplate = CommandTemplate.compile(onAfterTest, fanOutVariables);
+        this.onScheduledEventTemplate = CommandTemplate.compile(onScheduledEvent);
+        this.outputCaptureDir = outputCaptureDir;
+        this.prewarmedShells = prewarmedShells;
+        this.concurrentHooks = concurrentHooks;
+        this.onBeforeTestTimeoutSeconds = onBeforeTestTimeoutSeconds;
+        this.onAfterTestTimeoutSeconds = onAfterTestTimeoutSeconds;
+        this.onAbortTimeoutSeconds = onAbortTimeoutSeconds;
+        this.onKeepAliveTimeoutSeconds = onKeepAliveTimeoutSeconds;
+        this.cancelGracePeriodSeconds = cancelGracePeriodSeconds;
+        this.outputPolicy = outputPolicy;
+        this.outputRateLimitLinesPerSecond = outputRateLimitLinesPerSecond;
+        this.outputSampleRate = outputSampleRate;
+        this.matchSuppressedOutput = matchSuppressedOutput;
+        this.metricsPort = metricsPort;
+        this.fanOutTargets = fanOutTargets;
+        this.fanOutParallelism = fanOutParallelism;
+        this.fanOutTimeoutSeconds = fanOutTimeoutSeconds;
+        this.parseKeepAliveOutput = parseKeepAliveOutput;
+        this.keepAliveThresholds = keepAliveThresholds;
+        this.keepAliveOverlap = keepAliveOverlap;
+        this.adaptiveKeepAliveTimeout = adaptiveKeepAliveTimeout;
+        this.directExec = directExec;
+        this.dependsOn = dependsOn;
+        this.resultCacheDir = resultCacheDir;
+        this.resultCacheInputs = resultCacheInputs;
+        this.resultCacheEnv = resultCacheEnv;
+        this.resultCacheMaxSizeMb = resultCacheMaxSizeMb;
+        this.resultCacheReplayOutput = resultCacheReplayOutput;
+        this.groups = groups;
+        this.jfrRecording = jfrRecording;
+        this.jfrSettings = jfrSettings;
+        this.threadDumpOnKeepAliveFailure = threadDumpOnKeepAliveFailure;
+        this.javaDiagnosticsDir = javaDiagnosticsDir;
+        this.processPlacements = processPlacements;
+        this.stdinSources = stdinSources;
+        this.stdinPipeBufferKb = stdinPipeBufferKb;
+        this.dependsOnTimeoutSeconds = dependsOnTimeoutSeconds;
     }
 
     public String getOnStartTest() {
@@ -76,6 +228,210 @@ public class CommandRunnerEventContext extends EventContext {
         return sendTestRunConfig;
     }
 
+    public boolean isAsyncOutput() {
+        return asyncOutput;
+    }
+
+    public int getAsyncOutputBufferSize() {
+        return asyncOutputBufferSize;
+    }
+
+    public AsyncOutputPipeline.OverflowPolicy getAsyncOutputOverflowPolicy() {
+        return asyncOutputOverflowPolicy;
+    }
+
+    public int getMaxConcurrentCommands() {
+        return maxConcurrentCommands;
+    }
+
+    public boolean isPersistentKeepAlive() {
+        return persistentKeepAlive;
+    }
+
+    public OutputMatchers getOutputMatchers() {
+        return outputMatchers;
+    }
+
+    public long getResourceSamplingIntervalMillis() {
+        return resourceSamplingIntervalMillis;
+    }
+
+    public String getResourceTimeSeriesFile() {
+        return resourceTimeSeriesFile;
+    }
+
+    CommandTemplate getOnStartTestTemplate() {
+        return onStartTestTemplate;
+    }
+
+    CommandTemplate getOnBeforeTestTemplate() {
+        return onBeforeTestTemplate;
+    }
+
+    CommandTemplate getOnBeforeTestNoWaitTemplate() {
+        return onBeforeTestNoWaitTemplate;
+    }
+
+    CommandTemplate getOnKeepAliveTemplate() {
+        return onKeepAliveTemplate;
+    }
+
+    CommandTemplate getOnAbortTemplate() {
+        return onAbortTemplate;
+    }
+
+    CommandTemplate getOnAfterTestTemplate() {
+        return onAfterTestTemplate;
+    }
+
+    CommandTemplate getOnScheduledEventTemplate() {
+        return onScheduledEventTemplate;
+    }
+
+    public String getOutputCaptureDir() {
+        return outputCaptureDir;
+    }
+
+    public int getPrewarmedShells() {
+        return prewarmedShells;
+    }
+
+    public boolean isConcurrentHooks() {
+        return concurrentHooks;
+    }
+
+    public long getOnBeforeTestTimeoutSeconds() {
+        return onBeforeTestTimeoutSeconds;
+    }
+
+    public long getOnAfterTestTimeoutSeconds() {
+        return onAfterTestTimeoutSeconds;
+    }
+
+    public long getOnAbortTimeoutSeconds() {
+        return onAbortTimeoutSeconds;
+    }
+
+    public long getOnKeepAliveTimeoutSeconds() {
+        return onKeepAliveTimeoutSeconds;
+    }
+
+    public long getCancelGracePeriodSeconds() {
+        return cancelGracePeriodSeconds;
+    }
+
+    public OutputPolicy.Mode getOutputPolicy() {
+        return outputPolicy;
+    }
+
+    public int getOutputRateLimitLinesPerSecond() {
+        return outputRateLimitLinesPerSecond;
+    }
+
+    public int getOutputSampleRate() {
+        return outputSampleRate;
+    }
+
+    public boolean isMatchSuppressedOutput() {
+        return matchSuppressedOutput;
+    }
+
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public List<String> getFanOutTargets() {
+        return fanOutTargets;
+    }
+
+    public int getFanOutParallelism() {
+        return fanOutParallelism;
+    }
+
+    public long getFanOutTimeoutSeconds() {
+        return fanOutTimeoutSeconds;
+    }
+
+    public boolean isParseKeepAliveOutput() {
+        return parseKeepAliveOutput;
+    }
+
+    public KeepAliveThresholds getKeepAliveThresholds() {
+        return keepAliveThresholds;
+    }
+
+    public KeepAliveTracker.Overlap getKeepAliveOverlap() {
+        return keepAliveOverlap;
+    }
+
+    public boolean isAdaptiveKeepAliveTimeout() {
+        return adaptiveKeepAliveTimeout;
+    }
+
+    public boolean isDirectExec() {
+        return directExec;
+    }
+
+    public List<String> getDependsOn() {
+        return dependsOn;
+    }
+
+    public String getResultCacheDir() {
+        return resultCacheDir;
+    }
+
+    public List<String> getResultCacheInputs() {
+        return resultCacheInputs;
+    }
+
+    public List<String> getResultCacheEnv() {
+        return resultCacheEnv;
+    }
+
+    public int getResultCacheMaxSizeMb() {
+        return resultCacheMaxSizeMb;
+    }
+
+    public boolean isResultCacheReplayOutput() {
+        return resultCacheReplayOutput;
+    }
+
+    public List<String> getGroups() {
+        return groups;
+    }
+
+    public boolean isJfrRecording() {
+        return jfrRecording;
+    }
+
+    public String getJfrSettings() {
+        return jfrSettings;
+    }
+
+    public boolean isThreadDumpOnKeepAliveFailure() {
+        return threadDumpOnKeepAliveFailure;
+    }
+
+    public String getJavaDiagnosticsDir() {
+        return javaDiagnosticsDir;
+    }
+
+    public ProcessPlacement getProcessPlacements() {
+        return processPlacements;
+    }
+
+    public StdinSource getStdinSources() {
+        return stdinSources;
+    }
+
+    public int getStdinPipeBufferKb() {
+        return stdinPipeBufferKb;
+    }
+
+    public long getDependsOnTimeoutSeconds() {
+        return dependsOnTimeoutSeconds;
+    }
+
     @Override
     public String toString() {
         return "CommandRunnerEventContext{" +
@@ -87,6 +443,50 @@ public class CommandRunnerEventContext extends EventContext {
                 ", onAfterTest='" + onAfterTest + '\'' +
                 ", onScheduledEvent='" + onScheduledEvent + '\'' +
                 ", sendTestRunConfig=" + sendTestRunConfig +
+                ", asyncOutput=" + asyncOutput +
+                ", asyncOutputBufferSize=" + asyncOutputBufferSize +
+                ", asyncOutputOverflowPolicy=" + asyncOutputOverflowPolicy +
+                ", maxConcurrentCommands=" + maxConcurrentCommands +
+                ", persistentKeepAlive=" + persistentKeepAlive +
+                ", outputMatchers=" + outputMatchers +
+                ", resourceSamplingIntervalMillis=" + resourceSamplingIntervalMillis +
+                ", resourceTimeSeriesFile='" + resourceTimeSeriesFile + '\'' +
+                ", outputCaptureDir='" + outputCaptureDir + '\'' +
+                ", prewarmedShells=" + prewarmedShells +
+                ", concurrentHooks=" + concurrentHooks +
+                ", onBeforeTestTimeoutSeconds=" + onBeforeTestTimeoutSeconds +
+                ", onAfterTestTimeoutSeconds=" + onAfterTestTimeoutSeconds +
+                ", onAbortTimeoutSeconds=" + onAbortTimeoutSeconds +
+                ", onKeepAliveTimeoutSeconds=" + onKeepAliveTimeoutSeconds +
+                ", cancelGracePeriodSeconds=" + cancelGracePeriodSeconds +
+                ", outputPolicy=" + outputPolicy +
+                ", outputRateLimitLinesPerSecond=" + outputRateLimitLinesPerSecond +
+                ", outputSampleRate=" + outputSampleRate +
+                ", matchSuppressedOutput=" + matchSuppressedOutput +
+                ", metricsPort=" + metricsPort +
+                ", fanOutTargets=" + fanOutTargets +
+                ", fanOutParallelism=" + fanOutParallelism +
+                ", fanOutTimeoutSeconds=" + fanOutTimeoutSeconds +
+                ", parseKeepAliveOutput=" + parseKeepAliveOutput +
+                ", keepAliveThresholds=" + keepAliveThresholds +
+                ", keepAliveOverlap=" + keepAliveOverlap +
+                ", adaptiveKeepAliveTimeout=" + adaptiveKeepAliveTimeout +
+                ", directExec=" + directExec +
+                ", dependsOn=" + dependsOn +
+                ", resultCacheDir='" + resultCacheDir + '\'' +
+                ", resultCacheInputs=" + resultCacheInputs +
+                ", resultCacheEnv=" + resultCacheEnv +
+                ", resultCacheMaxSizeMb=" + resultCacheMaxSizeMb +
+                ", resultCacheReplayOutput=" + resultCacheReplayOutput +
+                ", groups=" + groups +
+                ", jfrRecording=" + jfrRecording +
+                ", jfrSettings='" + jfrSettings + '\'' +
+                ", threadDumpOnKeepAliveFailure=" + threadDumpOnKeepAliveFailure +
+                ", javaDiagnosticsDir='" + javaDiagnosticsDir + '\'' +
+                ", processPlacements=" + processPlacements +
+                ", stdinSources=" + stdinSources +
+                ", stdinPipeBufferKb=" + stdinPipeBufferKb +
+                ", dependsOnTimeoutSeconds=" + dependsOnTimeoutSeconds +
                 '}';
     }
 
@@ -96,11 +496,11 @@ public class CommandRunnerEventContext extends EventContext {
         if (o == null || getClass() != o.getClass()) return false;
         if (!super.equals(o)) return false;
         CommandRunnerEventContext that = (CommandRunnerEventContext) o;
-        return sendTestRunConfig == that.sendTestRunConfig && Objects.equals(onStartTest, that.onStartTest) && Objects.equals(onBeforeTest, that.onBeforeTest) && Objects.equals(onBeforeTestNoWait, that.onBeforeTestNoWait) && Objects.equals(onKeepAlive, that.onKeepAlive) && Objects.equals(onAbort, that.onAbort) && Objects.equals(onAfterTest, that.onAfterTest);
+        return sendTestRunConfig == that.sendTestRunConfig && asyncOutput == that.asyncOutput && asyncOutputBufferSize == that.asyncOutputBufferSize && asyncOutputOverflowPolicy == that.asyncOutputOverflowPolicy && maxConcurrentCommands == that.maxConcurrentCommands && persistentKeepAlive == that.persistentKeepAlive && resourceSamplingIntervalMillis == that.resourceSamplingIntervalMillis && prewarmedShells == that.prewarmedShells && concurrentHooks == that.concurrentHooks && onBeforeTestTimeoutSeconds == that.onBeforeTestTimeoutSeconds && onAfterTestTimeoutSeconds == that.onAfterTestTimeoutSeconds && onAbortTimeoutSeconds == that.onAbortTimeoutSeconds && onKeepAliveTimeoutSeconds == that.onKeepAliveTimeoutSeconds && cancelGracePeriodSeconds == that.cancelGracePeriodSeconds && outputPolicy == that.outputPolicy && outputRateLimitLinesPerSecond == that.outputRateLimitLinesPerSecond && outputSampleRate == that.outputSampleRate && matchSuppressedOutput == that.matchSuppressedOutput && metricsPort == that.metricsPort && fanOutParallelism == that.fanOutParallelism && fanOutTimeoutSeconds == that.fanOutTimeoutSeconds && parseKeepAliveOutput == that.parseKeepAliveOutput && keepAliveOverlap == that.keepAliveOverlap && adaptiveKeepAliveTimeout == that.adaptiveKeepAliveTimeout && directExec == that.directExec && resultCacheMaxSizeMb == that.resultCacheMaxSizeMb && resultCacheReplayOutput == that.resultCacheReplayOutput && jfrRecording == that.jfrRecording && threadDumpOnKeepAliveFailure == that.threadDumpOnKeepAliveFailure && stdinPipeBufferKb == that.stdinPipeBufferKb && dependsOnTimeoutSeconds == that.dependsOnTimeoutSeconds && Objects.equals(onStartTest, that.onStartTest) && Objects.equals(onBeforeTest, that.onBeforeTest) && Objects.equals(onBeforeTestNoWait, that.onBeforeTestNoWait) && Objects.equals(onKeepAlive, that.onKeepAlive) && Objects.equals(onAbort, that.onAbort) && Objects.equals(onAfterTest, that.onAfterTest) && Objects.equals(outputMatchers, that.outputMatchers) && Objects.equals(resourceTimeSeriesFile, that.resourceTimeSeriesFile) && Objects.equals(outputCaptureDir, that.outputCaptureDir) && Objects.equals(fanOutTargets, that.fanOutTargets) && Objects.equals(keepAliveThresholds, that.keepAliveThresholds) && Objects.equals(dependsOn, that.dependsOn) && Objects.equals(resultCacheDir, that.resultCacheDir) && Objects.equals(resultCacheInputs, that.resultCacheInputs) && Objects.equals(resultCacheEnv, that.resultCacheEnv) && Objects.equals(groups, that.groups) && Objects.equals(jfrSettings, that.jfrSettings) && Objects.equals(javaDiagnosticsDir, that.javaDiagnosticsDir) && Objects.equals(processPlacements, that.processPlacements) && Objects.equals(stdinSources, that.stdinSources);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(super.hashCode(), onStartTest, onBeforeTest, onBeforeTestNoWait, onKeepAlive, onAbort, onAfterTest, sendTestRunConfig);
+        return Objects.hash(super.hashCode(), onStartTest, onBeforeTest, onBeforeTestNoWait, onKeepAlive, onAbort, onAfterTest, sendTestRunConfig, asyncOutput, asyncOutputBufferSize, asyncOutputOverflowPolicy, maxConcurrentCommands, persistentKeepAlive, outputMatchers, resourceSamplingIntervalMillis, resourceTimeSeriesFile, outputCaptureDir, prewarmedShells, concurrentHooks, onBeforeTestTimeoutSeconds, onAfterTestTimeoutSeconds, onAbortTimeoutSeconds, onKeepAliveTimeoutSeconds, cancelGracePeriodSeconds, outputPolicy, outputRateLimitLinesPerSecond, outputSampleRate, matchSuppressedOutput, metricsPort, fanOutTargets, fanOutParallelism, fanOutTimeoutSeconds, parseKeepAliveOutput, keepAliveThresholds, keepAliveOverlap, adaptiveKeepAliveTimeout, directExec, dependsOn, resultCacheDir, resultCacheInputs, resultCacheEnv, resultCacheMaxSizeMb, resultCacheReplayOutput, groups, jfrRecording, jfrSettings, threadDumpOnKeepAliveFailure, javaDiagnosticsDir, processPlacements, stdinSources, stdinPipeBufferKb, dependsOnTimeoutSeconds);
     }
 }
@@ -23,8 +23,20 @@ import io.perfana.eventscheduler.api.message.EventMessageBus;
 
 public class CommandRunnerEventFactory implements EventFactory<CommandRunnerEventContext> {
 
+    // shared by all command runner events: wait and stream pump threads are reused
+    private final ProcessThreadPool processThreadPool = ProcessThreadPool.shared();
+
+    // lets the command runners with concurrentHooks run their hook commands at the same time
+    private final HookCoordinator hookCoordinator = new HookCoordinator();
+
+    // run-command events are parsed once and routed by name, glob or group
+    private final RunCommandRouter runCommandRouter = new RunCommandRouter();
+
+    // pipes the stdout of a participant to the stdin of another one
+    private final StdinPipes stdinPipes = new StdinPipes();
+
     @Override
     public Event create(CommandRunnerEventContext eventContext, TestContext testContext, EventMessageBus messageBus, EventLogger eventLogger) {
-        return new CommandRunnerEvent(eventContext, testContext, messageBus, eventLogger);
+        return new CommandRunnerEvent(eventContext, testContext, messageBus, eventLogger, processThreadPool, hookCoordinator, runCommandRouter, stdinPipes);
     }
 }
@@ -20,11 +20,23 @@ import io.perfana.eventscheduler.api.EventGenerator;
 import io.perfana.eventscheduler.api.EventGeneratorProperties;
 import io.perfana.eventscheduler.api.EventLogger;
 
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
 
+/**
+ * Generates {@code run-command} events from a schedule file or a schedule expression, see {@link StreamingSchedule}.
+ * The schedule is validated once when generated: the number of events and the densest window are logged.
+ */
 public class CommandRunnerEventGenerator implements EventGenerator {
 
+    static final String SCHEDULE_FILE = "scheduleFile";
+    static final String SCHEDULE_EXPRESSION = "scheduleExpression";
+    static final String SCHEDULE_SETTINGS = "scheduleSettings";
+    static final String SCHEDULE_DESCRIPTION = "scheduleDescription";
+    static final String SCHEDULE_VALIDATION_WINDOW = "scheduleValidationWindow";
+
     private final EventLogger logger;
     private final EventGeneratorProperties properties;
 
@@ -35,6 +47,33 @@ public class CommandRunnerEventGenerator implements EventGenerator {
 
     @Override
     public List<CustomEvent> generate() {
-        return Collections.emptyList();
+        String file = property(SCHEDULE_FILE);
+        String expression = property(SCHEDULE_EXPRESSION);
+        if (file == null && expression == null) {
+            logger.info("No " + SCHEDULE_FILE + " or " + SCHEDULE_EXPRESSION + " set, no events generated");
+            return Collections.emptyList();
+        }
+        if (file != null && expression != null) {
+            throw new IllegalArgumentException("Use either " + SCHEDULE_FILE + " or " + SCHEDULE_EXPRESSION + ", not both");
+        }
+        StreamingSchedule schedule = file != null
+                ? StreamingSchedule.file(Paths.get(file))
+                : StreamingSchedule.expression(expression, property(SCHEDULE_SETTINGS), description());
+
+        String window = property(SCHEDULE_VALIDATION_WINDOW);
+        Duration validationWindow = window == null ? Duration.ofSeconds(10) : StreamingSchedule.parseTime(window);
+        StreamingSchedule.Validation validation = schedule.validate(validationWindow);
+        logger.info("Schedule from " + schedule.describe() + ": " + validation);
+        return schedule;
+    }
+
+    private String description() {
+        String description = property(SCHEDULE_DESCRIPTION);
+        return description == null ? "scheduled command" : description;
+    }
+
+    private String property(String name) {
+        String value = properties.getProperty(name);
+        return value == null || value.trim().isEmpty() ? null : value.trim();
     }
 }
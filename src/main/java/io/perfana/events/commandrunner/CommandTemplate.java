@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.Immutable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A command with {@code __name__} placeholders, parsed once into literal and placeholder segments.
+ *
+ * Rendering is a single pass that copies the segments and inserts the variable values as is:
+ * no regular expressions are involved, so values containing {@code $} or {@code \} are inserted unchanged.
+ *
+ * A placeholder name starts with a letter or digit, followed by letters, digits, {@code .}, {@code -}
+ * or single underscores.
+ */
+@Immutable
+class CommandTemplate {
+
+    static final String TEST_RUN_ID = "testRunId";
+
+    private static final CommandTemplate EMPTY = new CommandTemplate("", new String[] { "" }, new String[0]);
+
+    private final String command;
+    // literals.length == names.length + 1: literal, name, literal, name, ..., literal
+    private final String[] literals;
+    private final String[] names;
+    private final int literalsLength;
+
+    private CommandTemplate(String command, String[] literals, String[] names) {
+        this.command = command;
+        this.literals = literals;
+        this.names = names;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalsLength = length;
+    }
+
+    /**
+     * Every {@code __name__} in the command is a placeholder.
+     */
+    static CommandTemplate compile(String command) {
+        return compile(command, null);
+    }
+
+    /**
+     * Only {@code __name__} with a name in {@code variableNames} is a placeholder, other
+     * {@code __name__} parts (e.g. {@code __init__.py}) stay as is. With null, every name is a placeholder.
+     */
+    static CommandTemplate compile(String command, Set<String> variableNames) {
+        if (command == null || command.isEmpty()) {
+            return EMPTY;
+        }
+        List<String> literals = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int length = command.length();
+        int i = 0;
+        while (i < length) {
+            int end = command.startsWith("__", i) ? placeholderEnd(command, i + 2) : -1;
+            if (end == -1) {
+                literal.append(command.charAt(i));
+                i++;
+                continue;
+            }
+            String name = command.substring(i + 2, end);
+            if (variableNames != null && !variableNames.contains(name)) {
+                // the closing underscores can open the next placeholder
+                literal.append(command, i, end);
+                i = end;
+                continue;
+            }
+            literals.add(literal.toString());
+            literal.setLength(0);
+            names.add(name);
+            i = end + 2;
+        }
+        literals.add(literal.toString());
+        return new CommandTemplate(command, literals.toArray(new String[0]), names.toArray(new String[0]));
+    }
+
+    /**
+     * @return index of the closing {@code __} of a placeholder name starting at {@code start}, or -1 when there is no valid name
+     */
+    private static int placeholderEnd(String command, int start) {
+        int length = command.length();
+        if (start >= length || !Character.isLetterOrDigit(command.charAt(start))) {
+            return -1;
+        }
+        int i = start + 1;
+        while (i < length) {
+            if (command.startsWith("__", i)) {
+                return i;
+            }
+            char c = command.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '.' || c == '-' || c == '_')) {
+                return -1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * @throws IllegalArgumentException when a variable of a placeholder is missing
+     */
+    String render(Map<String, String> variables) {
+        if (names.length == 0) {
+            return literals[0];
+        }
+        StringBuilder result = new StringBuilder(literalsLength + 16 * names.length);
+        result.append(literals[0]);
+        Set<String> missing = null;
+        for (int i = 0; i < names.length; i++) {
+            String value = variables.get(names[i]);
+            if (value == null) {
+                if (missing == null) {
+                    missing = new LinkedHashSet<>();
+                }
+                missing.add(names[i]);
+            }
+            else {
+                result.append(value);
+            }
+            result.append(literals[i + 1]);
+        }
+        if (missing != null) {
+            throw new IllegalArgumentException("Missing variables " + missing + " for command [" + command + "], available variables are " + variables.keySet());
+        }
+        return result.toString();
+    }
+
+    boolean isEmpty() {
+        return command.isEmpty();
+    }
+
+    List<String> getVariableNames() {
+        List<String> result = new ArrayList<>();
+        for (String name : names) {
+            if (!result.contains(name)) {
+                result.add(name);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public String toString() {
+        return command;
+    }
+}
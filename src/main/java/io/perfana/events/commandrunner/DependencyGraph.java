@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.exception.EventSchedulerRuntimeException;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code dependsOn} relations of the command runners of a test run: the before test commands of a
+ * participant start when all participants it depends on are ready. A participant is ready when it sends Go!
+ * or when its before test commands end successfully.
+ *
+ * When the last participant of a graph with dependencies is ready, the critical path is known: the chain of
+ * participants that determined when the before test phase was done.
+ */
+@ThreadSafe
+class DependencyGraph {
+
+    @GuardedBy("this")
+    private final Map<String, Map<String, Node>> graphs = new HashMap<>();
+
+    synchronized void add(String testRunId, String participant, List<String> dependsOn) {
+        graphs.computeIfAbsent(testRunId, id -> new LinkedHashMap<>()).put(participant, new Node(participant, dependsOn));
+    }
+
+    /**
+     * @return the number of participants when a participant of the test run has dependencies, else 0
+     */
+    synchronized int participantsWithDependencies(String testRunId) {
+        Map<String, Node> graph = graphs.getOrDefault(testRunId, Collections.emptyMap());
+        return graph.values().stream().anyMatch(node -> !node.dependsOn.isEmpty()) ? graph.size() : 0;
+    }
+
+    /**
+     * @return completes when all dependencies are ready, exceptionally when a dependency failed,
+     * is unknown or depends on this participant
+     */
+    CompletableFuture<Void> dependenciesReady(String testRunId, String participant) {
+        List<CompletableFuture<Void>> dependencies = new ArrayList<>();
+        synchronized (this) {
+            Map<String, Node> graph = graphs.getOrDefault(testRunId, Collections.emptyMap());
+            Node node = graph.get(participant);
+            if (node == null || node.dependsOn.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            try {
+                checkCycle(graph, node, new ArrayList<>());
+            } catch (EventSchedulerRuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            for (String name : node.dependsOn) {
+                Node dependency = graph.get(name);
+                dependencies.add(dependency.ready.handle((result, failure) -> {
+                    if (failure != null) {
+                        throw new EventSchedulerRuntimeException("Dependency " + name + " of " + participant + " failed", failure);
+                    }
+                    return null;
+                }));
+            }
+        }
+        return CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[0]));
+    }
+
+    @GuardedBy("this")
+    private static void checkCycle(Map<String, Node> graph, Node node, List<String> path) {
+        if (path.contains(node.name)) {
+            path.add(node.name);
+            throw new EventSchedulerRuntimeException("Cycle in dependsOn: " + String.join(" -> ", path));
+        }
+        path.add(node.name);
+        for (String name : node.dependsOn) {
+            Node dependency = graph.get(name);
+            if (dependency == null) {
+                throw new EventSchedulerRuntimeException("Unknown dependency " + name + " of " + node.name + ", known: " + graph.keySet());
+            }
+            checkCycle(graph, dependency, path);
+        }
+        path.remove(path.size() - 1);
+    }
+
+    synchronized void started(String testRunId, String participant) {
+        Node node = node(testRunId, participant);
+        if (node != null && node.startNanos == 0) {
+            node.startNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Mark the participant ready, only the first call counts.
+     *
+     * @return the critical path when this was the last participant of a graph with dependencies
+     */
+    Optional<String> ready(String testRunId, String participant) {
+        Node node;
+        synchronized (this) {
+            node = node(testRunId, participant);
+            if (node == null || node.ready.isDone()) {
+                return Optional.empty();
+            }
+            node.readyNanos = System.nanoTime();
+        }
+        node.ready.complete(null);
+        return criticalPath(testRunId);
+    }
+
+    void failed(String testRunId, String participant, Throwable cause) {
+        Node node;
+        synchronized (this) {
+            node = node(testRunId, participant);
+        }
+        if (node != null) {
+            node.ready.completeExceptionally(cause);
+        }
+    }
+
+    @GuardedBy("this")
+    private Node node(String testRunId, String participant) {
+        return graphs.getOrDefault(testRunId, Collections.emptyMap()).get(participant);
+    }
+
+    /**
+     * @return e.g. {@code db-mock 1200 ms -> warm-cache 3400 ms, total 4650 ms}, empty when not all participants
+     * are ready, the path is already reported or there are no dependencies
+     */
+    private synchronized Optional<String> criticalPath(String testRunId) {
+        Map<String, Node> graph = graphs.getOrDefault(testRunId, Collections.emptyMap());
+        boolean hasDependencies = false;
+        Node last = null;
+        for (Node node : graph.values()) {
+            if (!node.ready.isDone() || node.ready.isCompletedExceptionally()) {
+                return Optional.empty();
+            }
+            hasDependencies |= !node.dependsOn.isEmpty();
+            if (last == null || node.readyNanos - last.readyNanos > 0) {
+                last = node;
+            }
+        }
+        if (!hasDependencies || last == null) {
+            return Optional.empty();
+        }
+        // the dependency that was ready last determined the start of a participant
+        List<Node> path = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (Node node = last; node != null && seen.add(node.name); ) {
+            path.add(0, node);
+            Node critical = null;
+            for (String name : node.dependsOn) {
+                Node dependency = graph.get(name);
+                if (critical == null || dependency.readyNanos - critical.readyNanos > 0) {
+                    critical = dependency;
+                }
+            }
+            node = critical;
+        }
+        List<String> steps = new ArrayList<>();
+        for (Node node : path) {
+            long start = node.startNanos == 0 ? node.readyNanos : node.startNanos;
+            steps.add(node.name + " " + TimeUnit.NANOSECONDS.toMillis(node.readyNanos - start) + " ms");
+        }
+        Node first = path.get(0);
+        long total = TimeUnit.NANOSECONDS.toMillis(last.readyNanos - (first.startNanos == 0 ? first.readyNanos : first.startNanos));
+        graphs.remove(testRunId);
+        return Optional.of(String.join(" -> ", steps) + ", total " + total + " ms");
+    }
+
+    private static final class Node {
+        private final String name;
+        private final List<String> dependsOn;
+        private final CompletableFuture<Void> ready = new CompletableFuture<>();
+        @GuardedBy("DependencyGraph.this")
+        private long startNanos;
+        @GuardedBy("DependencyGraph.this")
+        private long readyNanos;
+
+        Node(String name, List<String> dependsOn) {
+            this.name = name;
+            this.dependsOn = List.copyOf(dependsOn);
+        }
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Runs simple commands without a shell: saves starting {@code sh} for each command.
+ *
+ * The command is split into arguments like a POSIX shell does for single and double quotes, backslash
+ * escapes and {@code $NAME} or {@code ${NAME}} environment variables. Commands that need more of the
+ * shell are left to the shell: pipes, redirects, {@code ;}, {@code &}, sub shells, globs, comments,
+ * {@code ~}, other {@code $} expansions, variable assignments and unquoted variables with spaces.
+ *
+ * The executable is looked up once on the {@code PATH} and the result is cached. Commands that are
+ * not found there, such as shell builtins like {@code cd} or {@code exit}, are also left to the shell.
+ */
+@ThreadSafe
+final class DirectExec {
+
+    /** Characters that need a shell when not quoted. */
+    private static final String SHELL_CHARACTERS = "|&;<>()`*?[#~\n\r";
+
+    private static final Pattern ASSIGNMENT = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*=.*", Pattern.DOTALL);
+
+    private static final ConcurrentMap<String, Optional<String>> EXECUTABLES = new ConcurrentHashMap<>();
+
+    private DirectExec() {
+    }
+
+    /**
+     * @return the command list to start without a shell, null when the command needs a shell
+     */
+    static List<String> commandList(String command, Map<String, String> env) {
+        List<String> arguments = tokenize(command, env);
+        if (arguments == null || arguments.isEmpty()) {
+            return null;
+        }
+        Optional<String> executable = EXECUTABLES.computeIfAbsent(arguments.get(0), name -> resolve(name, env.get("PATH")));
+        if (executable.isEmpty()) {
+            return null;
+        }
+        arguments.set(0, executable.get());
+        return arguments;
+    }
+
+    /**
+     * @return the path of the executable, empty when it is not found or not executable
+     */
+    static Optional<String> resolve(String name, String searchPath) {
+        if (name.isEmpty()) {
+            return Optional.empty();
+        }
+        if (name.indexOf('/') >= 0) {
+            // relative to the working directory or absolute, as is
+            return Files.isExecutable(Paths.get(name)) ? Optional.of(name) : Optional.empty();
+        }
+        if (searchPath == null) {
+            return Optional.empty();
+        }
+        for (String dir : searchPath.split(File.pathSeparator)) {
+            Path candidate = Paths.get(dir.isEmpty() ? "." : dir, name);
+            if (Files.isRegularFile(candidate) && Files.isExecutable(candidate)) {
+                return Optional.of(candidate.toString());
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Split a Windows command: whitespace separates the arguments, double quotes group them.
+     * Backslashes, single quotes and {@code $} are kept as is, e.g. in {@code C:\tools\x.exe}.
+     *
+     * @return the arguments of the command, null for an unterminated quote
+     */
+    static List<String> tokenizeWindows(String command) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        // a word is started by a quote, also when it stays empty: "" is an empty argument
+        boolean inWord = false;
+        boolean quoted = false;
+        for (int i = 0; i < command.length(); i++) {
+            char c = command.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inWord = true;
+            }
+            else if (!quoted && (c == ' ' || c == '\t')) {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+            }
+            else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (quoted) {
+            return null;
+        }
+        if (inWord) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * @return the arguments of the command, null when the command needs a shell
+     */
+    static List<String> tokenize(String command, Map<String, String> env) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        // a word is started by any quote, also when it stays empty: '' is an empty argument
+        boolean inWord = false;
+        int length = command.length();
+        int i = 0;
+        while (i < length) {
+            char c = command.charAt(i);
+            if (c == ' ' || c == '\t') {
+                if (inWord) {
+                    if (!addWord(words, word)) {
+                        return null;
+                    }
+                    inWord = false;
+                }
+                i++;
+            }
+            else if (c == '\'') {
+                int end = command.indexOf('\'', i + 1);
+                if (end < 0) {
+                    return null;
+                }
+                word.append(command, i + 1, end);
+                inWord = true;
+                i = end + 1;
+            }
+            else if (c == '"') {
+                i = doubleQuoted(command, i + 1, word, env);
+                if (i < 0) {
+                    return null;
+                }
+                inWord = true;
+            }
+            else if (c == '\\') {
+                if (i + 1 >= length) {
+                    return null;
+                }
+                char escaped = command.charAt(i + 1);
+                if (escaped != '\n') {
+                    word.append(escaped);
+                    inWord = true;
+                }
+                i += 2;
+            }
+            else if (c == '$') {
+                int before = word.length();
+                i = expand(command, i, word, env, false);
+                if (i < 0) {
+                    return null;
+                }
+                // an unquoted empty variable is no argument
+                inWord = inWord || word.length() > before;
+            }
+            else if (SHELL_CHARACTERS.indexOf(c) >= 0) {
+                return null;
+            }
+            else {
+                word.append(c);
+                inWord = true;
+                i++;
+            }
+        }
+        if (inWord && !addWord(words, word)) {
+            return null;
+        }
+        return words;
+    }
+
+    /**
+     * @return false when the first word is a variable assignment, which needs a shell
+     */
+    private static boolean addWord(List<String> words, StringBuilder word) {
+        String value = word.toString();
+        word.setLength(0);
+        if (words.isEmpty() && ASSIGNMENT.matcher(value).matches()) {
+            return false;
+        }
+        words.add(value);
+        return true;
+    }
+
+    /**
+     * @param start index after the opening quote
+     * @return index after the closing quote, -1 when the shell is needed
+     */
+    private static int doubleQuoted(String command, int start, StringBuilder word, Map<String, String> env) {
+        int i = start;
+        while (i < command.length()) {
+            char c = command.charAt(i);
+            if (c == '"') {
+                return i + 1;
+            }
+            if (c == '\\' && i + 1 < command.length() && "$`\"\\\n".indexOf(command.charAt(i + 1)) >= 0) {
+                char escaped = command.charAt(i + 1);
+                if (escaped != '\n') {
+                    word.append(escaped);
+                }
+                i += 2;
+            }
+            else if (c == '$') {
+                i = expand(command, i, word, env, true);
+                if (i < 0) {
+                    return -1;
+                }
+            }
+            else if (c == '`') {
+                return -1;
+            }
+            else {
+                word.append(c);
+                i++;
+            }
+        }
+        // no closing quote
+        return -1;
+    }
+
+    /**
+     * @param dollar index of the {@code $}
+     * @return index after the expansion, -1 when the shell is needed
+     */
+    private static int expand(String command, int dollar, StringBuilder word, Map<String, String> env, boolean quoted) {
+        int i = dollar + 1;
+        if (i >= command.length()) {
+            word.append('$');
+            return i;
+        }
+        char c = command.charAt(i);
+        String name;
+        int end;
+        if (c == '{') {
+            int close = command.indexOf('}', i);
+            if (close < 0) {
+                return -1;
+            }
+            name = command.substring(i + 1, close);
+            if (!isName(name)) {
+                // e.g. ${NAME:-default}
+                return -1;
+            }
+            end = close + 1;
+        }
+        else if (isNameStart(c)) {
+            end = i + 1;
+            while (end < command.length() && isNamePart(command.charAt(end))) {
+                end++;
+            }
+            name = command.substring(i, end);
+        }
+        else if ("?$!#@*-(0123456789".indexOf(c) >= 0) {
+            return -1;
+        }
+        else {
+            // a lone $ is literal
+            word.append('$');
+            return i;
+        }
+        String value = env.getOrDefault(name, "");
+        if (!quoted && !isSingleWord(value)) {
+            // the shell would split the value into words and expand globs
+            return -1;
+        }
+        word.append(value);
+        return end;
+    }
+
+    private static boolean isSingleWord(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isWhitespace(c) || c == '*' || c == '?' || c == '[') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isName(String name) {
+        if (name.isEmpty() || !isNameStart(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!isNamePart(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNameStart(char c) {
+        return c == '_' || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    private static boolean isNamePart(char c) {
+        return isNameStart(c) || (c >= '0' && c <= '9');
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.api.EventLogger;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+import org.zeroturnaround.exec.ProcessResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Runs the command of a hook once for each target, at most {@code parallelism} at the same time.
+ *
+ * A new target is started when a running one ends, on the thread that sees it end. A target that runs
+ * longer than the timeout is cancelled (the whole process tree) on a thread of the terminator.
+ * A target fails when it does not start, ends with a non-zero exit code or times out.
+ * After {@link #cancel(String)} the running targets are cancelled and the others are not started.
+ */
+@ThreadSafe
+class FanOut {
+
+    /** Name of the variable with the target in the command: {@code __target__}. */
+    static final String TARGET = "target";
+
+    private final String commandType;
+    private final List<String> targets;
+    private final int parallelism;
+    private final long timeoutSeconds;
+    private final TargetRunner runner;
+    private final Executor terminator;
+    private final EventLogger logger;
+
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger ended = new AtomicInteger();
+    private final AtomicReferenceArray<TargetResult> results;
+    private final AtomicReferenceArray<Running> running;
+    private final CompletableFuture<Results> done = new CompletableFuture<>();
+    private volatile String cancelReason;
+
+    /**
+     * @param timeoutSeconds per target, 0 for no timeout
+     * @param terminator runs the cancel of a timed out target, which can take the cancel grace period
+     */
+    FanOut(String commandType, List<String> targets, int parallelism, long timeoutSeconds, TargetRunner runner, Executor terminator, EventLogger logger) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Fan-out parallelism should be at least 1: " + parallelism);
+        }
+        this.commandType = commandType;
+        this.targets = List.copyOf(targets);
+        this.parallelism = parallelism;
+        this.timeoutSeconds = timeoutSeconds;
+        this.runner = runner;
+        this.terminator = terminator;
+        this.logger = logger;
+        this.results = new AtomicReferenceArray<>(targets.size());
+        this.running = new AtomicReferenceArray<>(targets.size());
+    }
+
+    /**
+     * Start the first targets. Can be called once.
+     *
+     * @return completes when all targets have ended
+     */
+    CompletableFuture<Results> start() {
+        logger.info("Fan-out " + commandType + " to " + targets.size() + " targets, " + parallelism + " at a time");
+        if (targets.isEmpty()) {
+            done.complete(new Results(commandType, Collections.emptyList()));
+        }
+        for (int i = 0; i < Math.min(parallelism, targets.size()); i++) {
+            startNext();
+        }
+        return done;
+    }
+
+    /**
+     * Cancel the running targets and do not start the others: they fail with the reason.
+     * The future of {@link #start()} completes when the cancelled targets have ended.
+     */
+    void cancel(String reason) {
+        logger.warn("Fan-out " + commandType + " " + reason + ", cancelling targets that did not end");
+        cancelReason = reason;
+        for (int i = 0; i < targets.size(); i++) {
+            cancelTarget(i);
+        }
+        // the targets that did not start
+        startNext();
+    }
+
+    private void cancelTarget(int index) {
+        // whoever takes the running target ends it: the cancel or the end of the process
+        Running target = running.getAndSet(index, null);
+        if (target == null) {
+            return;
+        }
+        terminator.execute(() -> {
+            ProcessTree.Termination termination = target.process.terminate();
+            logger.info("Cancelled " + commandType + " for target " + target.name + ": " + termination);
+            ended(index, new TargetResult(target.name, -1, target.durationMillis(), cancelReason));
+        });
+    }
+
+    private void startNext() {
+        int index;
+        while ((index = next.getAndIncrement()) < targets.size()) {
+            if (start(index)) {
+                // the end of this target starts the next one
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false when the target did not start
+     */
+    private boolean start(int index) {
+        String target = targets.get(index);
+        if (cancelReason != null) {
+            ended(index, new TargetResult(target, -1, 0, "not started: " + cancelReason));
+            return false;
+        }
+        long startNanos = System.nanoTime();
+        ProcessFuture process;
+        try {
+            process = runner.run(target);
+        } catch (RuntimeException e) {
+            ended(index, new TargetResult(target, -1, 0, "failed to start: " + e.getMessage()));
+            return false;
+        }
+        if (process == null) {
+            ended(index, new TargetResult(target, -1, 0, "not started"));
+            return false;
+        }
+        running.set(index, new Running(target, process, startNanos));
+        if (cancelReason != null) {
+            cancelTarget(index);
+        }
+        CompletableFuture<ProcessResult> result = timeoutSeconds > 0
+                ? process.copy().orTimeout(timeoutSeconds, TimeUnit.SECONDS)
+                : process;
+        result.whenComplete((processResult, failure) -> {
+            if (running.getAndSet(index, null) == null) {
+                // cancelled, the cancel ends the target
+                return;
+            }
+            long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+            if (cause instanceof TimeoutException) {
+                terminator.execute(() -> {
+                    ProcessTree.Termination termination = process.terminate();
+                    logger.info("Cancelled " + commandType + " for target " + target + ": " + termination);
+                    ended(index, new TargetResult(target, -1, durationMillis, "timed out after " + timeoutSeconds + " seconds"));
+                    startNext();
+                });
+                return;
+            }
+            if (cause != null) {
+                ended(index, new TargetResult(target, -1, durationMillis, String.valueOf(cause.getMessage())));
+            }
+            else {
+                int exitCode = processResult.getExitValue();
+                ended(index, new TargetResult(target, exitCode, durationMillis, exitCode == 0 ? null : "exit code " + exitCode));
+            }
+            startNext();
+        });
+        return true;
+    }
+
+    private void ended(int index, TargetResult result) {
+        results.set(index, result);
+        if (ended.incrementAndGet() == targets.size()) {
+            List<TargetResult> all = new ArrayList<>(targets.size());
+            for (int i = 0; i < targets.size(); i++) {
+                all.add(results.get(i));
+            }
+            done.complete(new Results(commandType, all));
+        }
+    }
+
+    private static final class Running {
+        private final String name;
+        private final ProcessFuture process;
+        private final long startNanos;
+
+        Running(String name, ProcessFuture process, long startNanos) {
+            this.name = name;
+            this.process = process;
+            this.startNanos = startNanos;
+        }
+
+        long durationMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        }
+    }
+
+    interface TargetRunner {
+        /**
+         * @return the started command for the target, null when it is not started
+         */
+        ProcessFuture run(String target);
+    }
+
+    @Immutable
+    static final class TargetResult {
+        private final String target;
+        private final int exitCode;
+        private final long durationMillis;
+        private final String failure;
+
+        TargetResult(String target, int exitCode, long durationMillis, String failure) {
+            this.target = target;
+            this.exitCode = exitCode;
+            this.durationMillis = durationMillis;
+            this.failure = failure;
+        }
+
+        String getTarget() {
+            return target;
+        }
+
+        /**
+         * @return -1 when the command did not start, failed or timed out
+         */
+        int getExitCode() {
+            return exitCode;
+        }
+
+        long getDurationMillis() {
+            return durationMillis;
+        }
+
+        boolean isSuccess() {
+            return failure == null;
+        }
+
+        /**
+         * @return null on success
+         */
+        String getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return target + " (" + (failure == null ? "exit code 0" : failure) + ", " + durationMillis + " ms)";
+        }
+    }
+
+    @Immutable
+    static final class Results {
+        private final String commandType;
+        private final List<TargetResult> targets;
+
+        Results(String commandType, List<TargetResult> targets) {
+            this.commandType = commandType;
+            this.targets = List.copyOf(targets);
+        }
+
+        /**
+         * @return results in the order of the targets
+         */
+        List<TargetResult> getTargets() {
+            return targets;
+        }
+
+        List<TargetResult> getFailed() {
+            List<TargetResult> failed = new ArrayList<>();
+            for (TargetResult target : targets) {
+                if (!target.isSuccess()) {
+                    failed.add(target);
+                }
+            }
+            return failed;
+        }
+
+        boolean isSuccess() {
+            return getFailed().isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            List<TargetResult> failed = getFailed();
+            return "Fan-out " + commandType + ": " + (targets.size() - failed.size()) + " of " + targets.size() + " targets succeeded"
+                    + (failed.isEmpty() ? "" : ", failed: " + failed);
+        }
+    }
+}
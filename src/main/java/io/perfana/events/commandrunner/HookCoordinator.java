@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.api.EventLogger;
+import io.perfana.eventscheduler.exception.EventSchedulerRuntimeException;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Lets the command runners of a test run with {@code concurrentHooks} run their hook commands
+ * (e.g. {@code onAfterTest}) at the same time.
+ *
+ * Each participant hands in the completion of its hook and returns right away, except the last
+ * participant to arrive: it waits for the hooks of all participants. So the event scheduler, that calls the
+ * participants one by one, continues when the slowest hook is done instead of after the sum of all hooks.
+ *
+ * When not all participants arrive within the deadline after the last arrival, e.g. because the hook of a
+ * participant was not called or failed before it arrived, the hooks that did arrive are no longer waited for
+ * by a participant: their failures are logged when they are done. A participant that arrives after that waits
+ * for its own hook.
+ */
+@ThreadSafe
+class HookCoordinator {
+
+    @GuardedBy("this")
+    private final Map<String, Integer> participants = new HashMap<>();
+    @GuardedBy("this")
+    private final Map<String, Arrivals> arrived = new HashMap<>();
+    /** Hooks of which the deadline passed before all participants arrived. */
+    @GuardedBy("this")
+    private final Set<String> expired = new HashSet<>();
+
+    private final DependencyGraph dependencyGraph = new DependencyGraph();
+
+    synchronized void addParticipant(String testRunId) {
+        participants.merge(testRunId, 1, Integer::sum);
+    }
+
+    /**
+     * Hand in the completion of a hook. Waits for the hooks of all participants when this is the last participant.
+     *
+     * @param deadline how long to wait for the other participants to arrive, zero for no limit
+     * @throws EventSchedulerRuntimeException when this is the last participant and hooks failed
+     */
+    void arrive(String testRunId, String hook, String participant, CompletableFuture<?> completion, Duration deadline, EventLogger logger) {
+        int participantCount;
+        synchronized (this) {
+            participantCount = participants.getOrDefault(testRunId, 1);
+        }
+        arrive(testRunId, hook, participant, completion, participantCount, deadline, logger);
+    }
+
+    /**
+     * Hand in the completion of a hook, the last of the given number of participants waits.
+     */
+    void arrive(String testRunId, String hook, String participant, CompletableFuture<?> completion, int participantCount,
+                Duration deadline, EventLogger logger) {
+        List<Hook> hooks;
+        String key = testRunId + "/" + hook;
+        synchronized (this) {
+            if (expired.contains(key)) {
+                hooks = List.of(new Hook(participant, completion));
+            }
+            else {
+                Arrivals arrivals = arrived.computeIfAbsent(key, k -> new Arrivals());
+                arrivals.hooks.add(new Hook(participant, completion));
+                if (arrivals.hooks.size() < participantCount) {
+                    int arrival = arrivals.hooks.size();
+                    if (!deadline.isZero()) {
+                        CompletableFuture.delayedExecutor(deadline.toMillis(), TimeUnit.MILLISECONDS)
+                                .execute(() -> expire(key, arrivals, arrival, participantCount, deadline, logger));
+                    }
+                    return;
+                }
+                arrived.remove(key);
+                hooks = arrivals.hooks;
+            }
+        }
+
+        List<String> failures = failures(hooks);
+        if (!failures.isEmpty()) {
+            throw new EventSchedulerRuntimeException(hook + " failed for " + failures);
+        }
+    }
+
+    /**
+     * Stop waiting for participants when no participant arrived since the given arrival.
+     */
+    private void expire(String key, Arrivals arrivals, int arrival, int participantCount, Duration deadline, EventLogger logger) {
+        List<Hook> hooks;
+        synchronized (this) {
+            if (arrived.get(key) != arrivals || arrivals.hooks.size() != arrival) {
+                return;
+            }
+            arrived.remove(key);
+            expired.add(key);
+            hooks = new ArrayList<>(arrivals.hooks);
+        }
+        String names = hooks.stream().map(hook -> hook.participant).collect(Collectors.joining(", "));
+        logger.warn(key + ": " + (participantCount - hooks.size()) + " of " + participantCount + " participants did not arrive within "
+                + deadline.toSeconds() + " seconds, the hooks of " + names + " are no longer waited for");
+        CompletableFuture.allOf(hooks.stream().map(hook -> hook.completion).toArray(CompletableFuture[]::new))
+                .whenComplete((result, failure) -> {
+                    List<String> failures = failures(hooks);
+                    if (!failures.isEmpty()) {
+                        logger.warn(key + " failed for " + failures);
+                    }
+                });
+    }
+
+    /**
+     * Waits for the hooks to be done.
+     *
+     * @return the failures, e.g. {@code participant: message}
+     */
+    private static List<String> failures(List<Hook> hooks) {
+        List<String> failures = new ArrayList<>();
+        for (Hook arrivedHook : hooks) {
+            try {
+                arrivedHook.completion.join();
+            } catch (CompletionException | CancellationException e) {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                failures.add(arrivedHook.participant + ": " + cause.getMessage());
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return true while the hook waits for participants to arrive
+     */
+    synchronized boolean isWaiting(String testRunId, String hook) {
+        return arrived.containsKey(testRunId + "/" + hook);
+    }
+
+    DependencyGraph dependencies() {
+        return dependencyGraph;
+    }
+
+    private static final class Arrivals {
+        private final List<Hook> hooks = new ArrayList<>();
+    }
+
+    private static final class Hook {
+        private final String participant;
+        private final CompletableFuture<?> completion;
+
+        Hook(String participant, CompletableFuture<?> completion) {
+            this.participant = participant;
+            this.completion = completion;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.api.EventLogger;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Diagnostics of the Java processes started by the commands, e.g. JMeter, Gatling or stub services, with {@code jcmd}.
+ *
+ * The process trees of watched commands are checked every {@value #POLL_INTERVAL_MILLIS} ms for new Java processes.
+ * With JFR enabled, a recording is started in each new Java process; {@link #stop()} stops the recordings,
+ * which writes the recording files. {@link #threadDumps(String)} writes a thread dump of each Java process.
+ * A Java process that ends before {@link #stop()} writes its recording on exit.
+ *
+ * Files are {@code <participant>-<pid>.jfr} and {@code <participant>-<pid>-threads-<time>.txt} in the directory.
+ * A failing {@code jcmd} is logged, not thrown: diagnostics should not fail the test run.
+ */
+@ThreadSafe
+class JavaDiagnostics {
+
+    static final long POLL_INTERVAL_MILLIS = 1000;
+
+    private static final long JCMD_TIMEOUT_SECONDS = 30;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HHmmss");
+
+    /**
+     * Runs {@code jcmd <pid> <arguments>}.
+     */
+    interface Jcmd {
+        /**
+         * @return the output of jcmd
+         * @throws IOException when jcmd cannot attach or ends with a non-zero exit code
+         */
+        String run(long pid, List<String> arguments) throws IOException;
+    }
+
+    /**
+     * Runs the {@code jcmd} of this JVM, or the one on the {@code PATH}.
+     */
+    static final Jcmd JCMD = JavaDiagnostics::runJcmd;
+
+    private final String participant;
+    private final Path dir;
+    private final boolean jfr;
+    private final String jfrSettings;
+    private final Jcmd jcmd;
+    private final Consumer<Runnable> threadStarter;
+    private final EventLogger logger;
+
+    @GuardedBy("this")
+    private final List<ProcessHandle> roots = new ArrayList<>();
+    @GuardedBy("this")
+    private final Set<Long> javaProcesses = new HashSet<>();
+    @GuardedBy("this")
+    private final Map<Long, Path> recordings = new LinkedHashMap<>();
+    @GuardedBy("this")
+    private boolean polling = false;
+    @GuardedBy("this")
+    private boolean stopped = false;
+
+    /**
+     * @param jfr start a JFR recording in each Java process
+     * @param jfrSettings JFR settings: {@code default}, {@code profile} or a {@code .jfc} file
+     * @param threadStarter starts the thread that checks for new Java processes
+     */
+    JavaDiagnostics(String participant, Path dir, boolean jfr, String jfrSettings, Jcmd jcmd, Consumer<Runnable> threadStarter, EventLogger logger) {
+        this.participant = participant;
+        this.dir = dir.toAbsolutePath();
+        this.jfr = jfr;
+        this.jfrSettings = jfrSettings;
+        this.jcmd = jcmd;
+        this.threadStarter = threadStarter;
+        this.logger = logger;
+    }
+
+    /**
+     * Check the process and its descendants for Java processes, now and until {@link #stop()}.
+     */
+    void watch(ProcessHandle process) {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            roots.add(process);
+            if (!polling) {
+                polling = true;
+                threadStarter.accept(this::pollLoop);
+            }
+        }
+        poll();
+    }
+
+    private void pollLoop() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    wait(POLL_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (stopped) {
+                    return;
+                }
+            }
+            poll();
+        }
+    }
+
+    /**
+     * Start diagnostics for Java processes not seen before.
+     */
+    void poll() {
+        List<ProcessHandle> found = new ArrayList<>();
+        synchronized (this) {
+            roots.removeIf(root -> !root.isAlive());
+            for (ProcessHandle root : roots) {
+                for (ProcessHandle java : javaProcesses(root)) {
+                    if (javaProcesses.add(java.pid())) {
+                        found.add(java);
+                    }
+                }
+            }
+        }
+        for (ProcessHandle java : found) {
+            logger.info("Found Java process " + java.pid() + " [" + java.info().commandLine().orElse("?") + "]");
+            if (jfr) {
+                startRecording(java.pid());
+            }
+        }
+    }
+
+    private void startRecording(long pid) {
+        Path file = dir.resolve(fileName(pid, ".jfr"));
+        try {
+            Files.createDirectories(dir);
+            jcmd.run(pid, List.of("JFR.start", "name=" + recordingName(), "settings=" + jfrSettings,
+                    "filename=" + quote(file.toString()), "dumponexit=true"));
+            synchronized (this) {
+                recordings.put(pid, file);
+            }
+            logger.info("Started JFR recording of Java process " + pid + " to [" + file + "]");
+        } catch (IOException e) {
+            logger.warn("Cannot start JFR recording of Java process " + pid + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write a thread dump of each running Java process.
+     *
+     * @return the thread dump files
+     */
+    List<Path> threadDumps(String reason) {
+        poll();
+        List<Long> pids;
+        synchronized (this) {
+            pids = new ArrayList<>(javaProcesses);
+        }
+        List<Path> files = new ArrayList<>();
+        String time = LocalTime.now().format(TIME);
+        for (long pid : pids) {
+            if (ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) {
+                Path file = dir.resolve(fileName(pid, "-threads-" + time + ".txt"));
+                try {
+                    String threads = jcmd.run(pid, List.of("Thread.print", "-l"));
+                    Files.createDirectories(dir);
+                    Files.writeString(file, threads, StandardCharsets.UTF_8);
+                    files.add(file);
+                    logger.info("Thread dump of Java process " + pid + " (" + reason + ") in [" + file + "]");
+                } catch (IOException e) {
+                    logger.warn("Cannot take thread dump of Java process " + pid + ": " + e.getMessage());
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Stop checking for Java processes and stop the recordings.
+     *
+     * @return the recording files
+     */
+    List<Path> stop() {
+        Map<Long, Path> started;
+        synchronized (this) {
+            if (stopped) {
+                return List.of();
+            }
+            stopped = true;
+            notifyAll();
+            started = new LinkedHashMap<>(recordings);
+        }
+        List<Path> files = new ArrayList<>();
+        for (Map.Entry<Long, Path> recording : started.entrySet()) {
+            long pid = recording.getKey();
+            if (ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false)) {
+                try {
+                    jcmd.run(pid, List.of("JFR.stop", "name=" + recordingName()));
+                } catch (IOException e) {
+                    logger.warn("Cannot stop JFR recording of Java process " + pid + ": " + e.getMessage());
+                }
+            }
+            if (Files.exists(recording.getValue())) {
+                files.add(recording.getValue());
+            }
+        }
+        return files;
+    }
+
+    /**
+     * @return the process and its descendants that run Java
+     */
+    static List<ProcessHandle> javaProcesses(ProcessHandle root) {
+        try (Stream<ProcessHandle> tree = Stream.concat(Stream.of(root), root.descendants())) {
+            return tree.filter(JavaDiagnostics::isJava).collect(Collectors.toList());
+        }
+    }
+
+    static boolean isJava(ProcessHandle process) {
+        Optional<String> command = process.info().command();
+        if (command.isEmpty()) {
+            return false;
+        }
+        Path executable = Paths.get(command.get()).getFileName();
+        String name = executable == null ? "" : executable.toString();
+        return name.equals("java") || name.equals("java.exe") || name.equals("javaw.exe");
+    }
+
+    private static String runJcmd(long pid, List<String> arguments) throws IOException {
+        Path local = Paths.get(System.getProperty("java.home"), "bin", "jcmd");
+        List<String> command = new ArrayList<>();
+        command.add(Files.isExecutable(local) ? local.toString() : "jcmd");
+        command.add(String.valueOf(pid));
+        command.addAll(arguments);
+        // output goes to a file: reading a pipe would block on a hanging attach, before the timeout applies
+        Path outputFile = Files.createTempFile("jcmd-", ".txt");
+        String output;
+        Process process;
+        try {
+            process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(outputFile.toFile()).start();
+            try {
+                if (!process.waitFor(JCMD_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                    throw new IOException("jcmd did not end within " + JCMD_TIMEOUT_SECONDS + " seconds");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroyForcibly();
+                throw new IOException("Interrupted while waiting for jcmd", e);
+            }
+            output = new String(Files.readAllBytes(outputFile), StandardCharsets.UTF_8);
+        } finally {
+            Files.deleteIfExists(outputFile);
+        }
+        if (process.exitValue() != 0) {
+            // the first line is the pid
+            String message = output.lines().skip(1).filter(line -> !line.isBlank()).findFirst().orElse(output.trim());
+            throw new IOException("jcmd " + String.join(" ", arguments) + " failed (exit code " + process.exitValue() + "): " + message);
+        }
+        return output;
+    }
+
+    private String recordingName() {
+        return "command-runner-" + safe(participant);
+    }
+
+    private String fileName(long pid, String suffix) {
+        return safe(participant) + "-" + pid + suffix;
+    }
+
+    private static String safe(String name) {
+        return name.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+
+    private static String quote(String value) {
+        return value.contains(" ") ? "\"" + value + "\"" : value;
+    }
+}
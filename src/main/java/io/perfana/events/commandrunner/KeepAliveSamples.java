@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import net.jcip.annotations.ThreadSafe;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Numeric samples parsed from the stdout of keep-alive commands, e.g. current tps and error percentage.
+ *
+ * A line that starts with {@code {} is parsed as a json object: all numeric fields are samples, nested
+ * objects give names like {@code queue.depth}. Other lines are scanned for {@code name=value} pairs, e.g.
+ * {@code tps=1234.5 errors_pct=0.3 queue_depth=12}. A value can end with a {@code %}. Other text is ignored.
+ *
+ * Samples are collected until {@link #drain()}: when a name is printed more than once, the last value wins.
+ */
+@ThreadSafe
+class KeepAliveSamples {
+
+    private static final Pattern KEY_VALUE = Pattern.compile("([A-Za-z_][\\w.]*)=(-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?)%?(?=[\\s,;]|$)");
+
+    private final ConcurrentMap<String, Double> samples = new ConcurrentHashMap<>();
+
+    /**
+     * @return listener for the stdout of keep-alive commands
+     */
+    PrefixedRedirectOutput.LineListener newLineListener() {
+        return (bytes, offset, length, redirectType) -> parse(new String(bytes, offset, length, StandardCharsets.UTF_8));
+    }
+
+    void parse(String line) {
+        String trimmed = line.trim();
+        if (trimmed.startsWith("{")) {
+            try {
+                JsonElement json = JsonParser.parseString(trimmed);
+                if (json.isJsonObject()) {
+                    addJson("", json.getAsJsonObject());
+                }
+            } catch (JsonParseException e) {
+                // not json after all, e.g. a log line
+            }
+            return;
+        }
+        Matcher matcher = KEY_VALUE.matcher(trimmed);
+        while (matcher.find()) {
+            samples.put(matcher.group(1), Double.parseDouble(matcher.group(2)));
+        }
+    }
+
+    private void addJson(String prefix, JsonObject object) {
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            JsonElement value = entry.getValue();
+            String name = prefix + entry.getKey();
+            if (value.isJsonObject()) {
+                addJson(name + ".", value.getAsJsonObject());
+            }
+            else if (value.isJsonPrimitive() && ((JsonPrimitive) value).isNumber()) {
+                samples.put(name, value.getAsDouble());
+            }
+        }
+    }
+
+    /**
+     * @return the samples since the previous drain, sorted by name
+     */
+    SortedMap<String, Double> drain() {
+        SortedMap<String, Double> drained = new TreeMap<>();
+        for (String name : samples.keySet()) {
+            Double value = samples.remove(name);
+            if (value != null) {
+                drained.put(name, value);
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * @return the value without a fraction when it is a whole number: 12 instead of 12.0
+     */
+    static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.Immutable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Threshold expressions on keep-alive samples, e.g. {@code errors_pct > 5} or {@code tps < 100}.
+ *
+ * Operators are {@code >}, {@code >=}, {@code <}, {@code <=}, {@code ==} and {@code !=}.
+ * A threshold on a sample that is not in the output of the keep-alive command is not breached.
+ *
+ * @see KeepAliveSamples
+ */
+@Immutable
+class KeepAliveThresholds {
+
+    private static final KeepAliveThresholds NONE = new KeepAliveThresholds(Collections.emptyList());
+
+    private static final Pattern EXPRESSION = Pattern.compile("\\s*([A-Za-z_][\\w.]*)\\s*(>=|<=|==|!=|>|<)\\s*(-?\\d+(?:\\.\\d+)?(?:[eE][-+]?\\d+)?)\\s*");
+
+    private final List<Threshold> thresholds;
+
+    private KeepAliveThresholds(List<Threshold> thresholds) {
+        this.thresholds = Collections.unmodifiableList(new ArrayList<>(thresholds));
+    }
+
+    /**
+     * @throws IllegalArgumentException for an invalid expression
+     */
+    static KeepAliveThresholds parse(List<String> expressions) {
+        if (expressions == null || expressions.isEmpty()) {
+            return NONE;
+        }
+        List<Threshold> thresholds = new ArrayList<>();
+        for (String expression : expressions) {
+            Matcher matcher = EXPRESSION.matcher(expression);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid keep-alive threshold [" + expression + "], use e.g. 'errors_pct > 5'");
+            }
+            thresholds.add(new Threshold(matcher.group(1), matcher.group(2), Double.parseDouble(matcher.group(3))));
+        }
+        return new KeepAliveThresholds(thresholds);
+    }
+
+    boolean isEmpty() {
+        return thresholds.isEmpty();
+    }
+
+    /**
+     * @return the breached thresholds with the sample value, e.g. {@code errors_pct > 5 (errors_pct=7.5)}
+     */
+    List<String> breached(Map<String, Double> samples) {
+        List<String> breached = new ArrayList<>();
+        for (Threshold threshold : thresholds) {
+            Double value = samples.get(threshold.name);
+            if (value != null && threshold.isBreached(value)) {
+                breached.add(threshold + " (" + threshold.name + "=" + KeepAliveSamples.format(value) + ")");
+            }
+        }
+        return breached;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        KeepAliveThresholds that = (KeepAliveThresholds) o;
+        return thresholds.equals(that.thresholds);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(thresholds);
+    }
+
+    @Override
+    public String toString() {
+        return thresholds.toString();
+    }
+
+    @Immutable
+    private static final class Threshold {
+        private final String name;
+        private final String operator;
+        private final double value;
+
+        Threshold(String name, String operator, double value) {
+            this.name = name;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        boolean isBreached(double sample) {
+            switch (operator) {
+                case ">": return sample > value;
+                case ">=": return sample >= value;
+                case "<": return sample < value;
+                case "<=": return sample <= value;
+                case "==": return sample == value;
+                case "!=": return sample != value;
+                default: throw new IllegalStateException("Unknown operator: " + operator);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Threshold that = (Threshold) o;
+            return Double.compare(that.value, value) == 0 && name.equals(that.name) && operator.equals(that.operator);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, operator, value);
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + operator + " " + KeepAliveSamples.format(value);
+        }
+    }
+}
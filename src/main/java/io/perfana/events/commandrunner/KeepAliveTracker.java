@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks the keep-alive check that is in flight, so a slow check does not pile up checker processes.
+ *
+ * When the previous check is still running at the next keep-alive, the tick is skipped or waits for
+ * the running check, see {@link Overlap}. A check that runs longer than the timeout is cancelled at the next tick.
+ *
+ * With an adaptive wait, a keep-alive waits for its check at most three times the slowest of the recent
+ * checks (at least one second, at most the timeout). A check that is not done by then keeps running and
+ * counts as late: its exit code is evaluated at a next tick, see {@link #endedLate()}.
+ */
+@ThreadSafe
+class KeepAliveTracker {
+
+    private static final int LATENCY_WINDOW = 20;
+    private static final long MIN_WAIT_MILLIS = 1000;
+    private static final int WAIT_FACTOR = 3;
+
+    private final Overlap overlap;
+    private final long timeoutMillis;
+    private final boolean adaptive;
+    private final LongSupplier nanoClock;
+
+    @GuardedBy("this")
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    @GuardedBy("this")
+    private int latencyCount;
+    @GuardedBy("this")
+    private ProcessFuture inFlight;
+    @GuardedBy("this")
+    private long inFlightStartNanos;
+    @GuardedBy("this")
+    private ProcessFuture lateCheck;
+
+    private final LongAdder started = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder late = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+
+    KeepAliveTracker(Overlap overlap, long timeoutMillis, boolean adaptive) {
+        this(overlap, timeoutMillis, adaptive, System::nanoTime);
+    }
+
+    /**
+     * @param nanoClock times the checks, like {@link System#nanoTime()}
+     */
+    KeepAliveTracker(Overlap overlap, long timeoutMillis, boolean adaptive, LongSupplier nanoClock) {
+        this.overlap = overlap;
+        this.timeoutMillis = timeoutMillis;
+        this.adaptive = adaptive;
+        this.nanoClock = nanoClock;
+    }
+
+    Overlap getOverlap() {
+        return overlap;
+    }
+
+    /**
+     * @return the check that is still running, null when there is none
+     */
+    synchronized ProcessFuture inFlight() {
+        if (inFlight != null && inFlight.isDone()) {
+            inFlight = null;
+        }
+        return inFlight;
+    }
+
+    synchronized long inFlightMillis() {
+        return inFlight == null ? 0 : TimeUnit.NANOSECONDS.toMillis(nanoClock.getAsLong() - inFlightStartNanos);
+    }
+
+    /**
+     * @return true when the running check takes longer than the timeout
+     */
+    synchronized boolean isOverdue() {
+        return timeoutMillis > 0 && inFlight != null && inFlightMillis() > timeoutMillis;
+    }
+
+    synchronized void started(ProcessFuture check) {
+        started.increment();
+        long startNanos = nanoClock.getAsLong();
+        inFlight = check;
+        inFlightStartNanos = startNanos;
+        check.whenComplete((result, failure) -> {
+            if (failure == null) {
+                recordLatency(TimeUnit.NANOSECONDS.toMillis(nanoClock.getAsLong() - startNanos));
+            }
+        });
+    }
+
+    synchronized void recordLatency(long millis) {
+        latencies[latencyCount % LATENCY_WINDOW] = millis;
+        latencyCount++;
+    }
+
+    /**
+     * @return how long to wait for the result of a check, 0 for no limit
+     */
+    synchronized long waitMillis() {
+        if (!adaptive || latencyCount == 0) {
+            return timeoutMillis;
+        }
+        long slowest = Arrays.stream(latencies, 0, Math.min(latencyCount, LATENCY_WINDOW)).max().orElse(0);
+        long wait = Math.max(MIN_WAIT_MILLIS, slowest * WAIT_FACTOR);
+        return timeoutMillis > 0 ? Math.min(wait, timeoutMillis) : wait;
+    }
+
+    void skipped() {
+        skipped.increment();
+    }
+
+    void coalesced() {
+        coalesced.increment();
+    }
+
+    synchronized void late(ProcessFuture check) {
+        late.increment();
+        lateCheck = check;
+    }
+
+    /**
+     * @return the late check when it has ended, once, null when there is none
+     */
+    synchronized ProcessFuture endedLate() {
+        ProcessFuture check = lateCheck;
+        if (check == null || !check.isDone()) {
+            return null;
+        }
+        lateCheck = null;
+        return check;
+    }
+
+    /**
+     * The exit code of the check is known, also when it was late.
+     */
+    synchronized void evaluated(ProcessFuture check) {
+        if (lateCheck == check) {
+            lateCheck = null;
+        }
+    }
+
+    synchronized void cancelled(ProcessFuture check) {
+        cancelled.increment();
+        if (inFlight == check) {
+            inFlight = null;
+        }
+        if (lateCheck == check) {
+            lateCheck = null;
+        }
+    }
+
+    /**
+     * @return counts of checks and ticks, empty when no check was started
+     */
+    Map<String, String> summary() {
+        Map<String, String> summary = new LinkedHashMap<>();
+        if (started.sum() == 0 && skipped.sum() == 0) {
+            return summary;
+        }
+        summary.put("started", String.valueOf(started.sum()));
+        summary.put("skippedTicks", String.valueOf(skipped.sum()));
+        summary.put("coalescedTicks", String.valueOf(coalesced.sum()));
+        summary.put("late", String.valueOf(late.sum()));
+        summary.put("cancelled", String.valueOf(cancelled.sum()));
+        return summary;
+    }
+
+    public enum Overlap {
+        /** Skip the keep-alive check of this tick. */
+        SKIP,
+        /** Wait for the result of the running check instead of starting a new one. */
+        COALESCE;
+
+        static Overlap parse(String overlap) {
+            try {
+                return valueOf(overlap.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown keep-alive overlap [" + overlap + "], use one of " + Arrays.toString(values()), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.api.EventLogger;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A long-running shell that runs keep-alive checks, to avoid starting a new process every keep-alive.
+ *
+ * Each check is sent to the shell via stdin and runs in a subshell. The exit code is reported
+ * on stdout after a random marker, all other output is passed on to the given output streams.
+ *
+ * When a check times out or the shell dies, the worker is stopped and {@link #isAlive()} returns false.
+ * Stopping terminates the shell with the processes of a running check, see {@link ProcessTree}.
+ */
+@ThreadSafe
+class KeepAliveWorker implements AutoCloseable {
+
+    private static final int DIED = Integer.MIN_VALUE;
+
+    static final Duration DEFAULT_GRACE_PERIOD = Duration.ofSeconds(5);
+
+    private final String marker = "__keep_alive_done_" + UUID.randomUUID().toString().replace("-", "") + "__";
+
+    private final Process process;
+    private final Writer commandWriter;
+    private final OutputStream stdout;
+    private final EventLogger logger;
+    private final Duration gracePeriod;
+
+    private final BlockingQueue<Integer> exitCodes = new LinkedBlockingQueue<>();
+
+    private volatile boolean alive = true;
+
+    KeepAliveWorker(ProcessThreadPool processThreadPool, OutputStream stdout, OutputStream stderr, EventLogger logger) throws IOException {
+        this(processThreadPool, List.of("sh"), DEFAULT_GRACE_PERIOD, stdout, stderr, logger);
+    }
+
+    /**
+     * @param shell command that starts the shell, e.g. with a process placement in front of {@code sh}
+     * @param gracePeriod time for the processes to stop before they are killed
+     */
+    KeepAliveWorker(ProcessThreadPool processThreadPool, List<String> shell, Duration gracePeriod, OutputStream stdout, OutputStream stderr, EventLogger logger) throws IOException {
+        this.stdout = stdout;
+        this.logger = logger;
+        this.gracePeriod = gracePeriod;
+        this.process = new ProcessBuilder(shell).start();
+        this.commandWriter = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+        processThreadPool.newThread(this::readOutput).start();
+        processThreadPool.newThread(() -> pump(process.getErrorStream(), stderr)).start();
+    }
+
+    boolean isAlive() {
+        return alive && process.isAlive();
+    }
+
+    /**
+     * @return the exit code of the command
+     * @throws IOException when the worker died, the check is not executed
+     * @throws TimeoutException when the check did not finish in time, the worker is stopped
+     */
+    synchronized int check(String command, long timeout, TimeUnit unit) throws IOException, TimeoutException, InterruptedException {
+        if (!isAlive()) {
+            throw new IOException("keep-alive worker is not running");
+        }
+        exitCodes.clear();
+        try {
+            // stdin of the check is /dev/null: it should not read the next commands of the worker
+            commandWriter.write("( " + command + "\n) </dev/null; printf '%s %d\\n' '" + marker + "' $?\n");
+            commandWriter.flush();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        Integer exitCode = exitCodes.poll(timeout, unit);
+        if (exitCode == null) {
+            close();
+            throw new TimeoutException("no result from keep-alive worker within " + timeout + " " + unit);
+        }
+        if (exitCode == DIED) {
+            close();
+            throw new IOException("keep-alive worker stopped, exit code: " + exitValueOrUnknown());
+        }
+        return exitCode;
+    }
+
+    private String exitValueOrUnknown() {
+        return process.isAlive() ? "unknown" : String.valueOf(process.exitValue());
+    }
+
+    private void readOutput() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int markerIndex = line.indexOf(marker);
+                if (markerIndex < 0) {
+                    writeLine(line);
+                    continue;
+                }
+                if (markerIndex > 0) {
+                    // output of check did not end with a new line
+                    writeLine(line.substring(0, markerIndex));
+                }
+                exitCodes.offer(parseExitCode(line.substring(markerIndex + marker.length()).trim()));
+            }
+        } catch (IOException e) {
+            if (alive) {
+                logger.warn("Failed to read output of keep-alive worker: " + e.getMessage());
+            }
+        } finally {
+            alive = false;
+            exitCodes.offer(DIED);
+        }
+    }
+
+    private static int parseExitCode(String exitCode) {
+        try {
+            return Integer.parseInt(exitCode);
+        } catch (NumberFormatException e) {
+            return DIED;
+        }
+    }
+
+    private void writeLine(String line) throws IOException {
+        stdout.write((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void pump(InputStream in, OutputStream out) {
+        byte[] buffer = new byte[1024];
+        try (in) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // process ended
+        }
+    }
+
+    @Override
+    public void close() {
+        alive = false;
+        // a running check and its children as well, not only the shell
+        ProcessTree.Termination termination = ProcessTree.terminate(process.toHandle(), gracePeriod);
+        logger.debug("Stopped keep-alive worker: " + termination);
+        try {
+            commandWriter.close();
+        } catch (IOException e) {
+            // ignore, process is destroyed
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.perfana.eventscheduler.api.EventLogger;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the {@link CommandMetrics} of all command runners in the Prometheus text format
+ * on {@code http://localhost:<port>/metrics} while the test runs.
+ *
+ * All command runners with the same port share one endpoint: use {@link #open(int, CommandMetrics, EventLogger)} and
+ * {@link #release(CommandMetrics)}. The last release stops the http server.
+ */
+@ThreadSafe
+final class MetricsEndpoint {
+
+    static final String PATH = "/metrics";
+
+    @GuardedBy("OPEN")
+    private static final Map<Integer, MetricsEndpoint> OPEN = new HashMap<>();
+
+    private final int port;
+    private final HttpServer server;
+
+    @GuardedBy("OPEN")
+    private final List<CommandMetrics> registered = new ArrayList<>();
+
+    private MetricsEndpoint(int port, EventLogger logger) throws IOException {
+        this.port = port;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext(PATH, exchange -> {
+            try {
+                serve(exchange);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Failed to serve metrics: " + e.getMessage());
+            } finally {
+                exchange.close();
+            }
+        });
+        this.server.start();
+    }
+
+    /**
+     * Start the endpoint or share the already started endpoint on this port and add the metrics to it.
+     */
+    static MetricsEndpoint open(int port, CommandMetrics metrics, EventLogger logger) throws IOException {
+        synchronized (OPEN) {
+            MetricsEndpoint endpoint = OPEN.get(port);
+            if (endpoint == null) {
+                endpoint = new MetricsEndpoint(port, logger);
+                OPEN.put(port, endpoint);
+            }
+            endpoint.registered.add(metrics);
+            return endpoint;
+        }
+    }
+
+    /**
+     * Remove the metrics from this endpoint. The last release stops the endpoint.
+     */
+    void release(CommandMetrics metrics) {
+        synchronized (OPEN) {
+            registered.remove(metrics);
+            if (!registered.isEmpty()) {
+                return;
+            }
+            OPEN.remove(port);
+        }
+        server.stop(0);
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        if (!"GET".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(405, -1);
+            return;
+        }
+        List<CommandMetrics> metrics;
+        synchronized (OPEN) {
+            metrics = new ArrayList<>(registered);
+        }
+        StringBuilder text = new StringBuilder();
+        CommandMetrics.writePrometheus(text, metrics);
+        byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.api.EventLogger;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Appends every output line of the commands as json lines to a capture file, e.g.
+ * {@code {"t":1700000000000,"p":"K6Runner1","s":"STDOUT","c":"startTest","l":"the line"}}.
+ *
+ * Lines are copied into one of two 1 MB buffers. A writer thread swaps the buffers and writes the
+ * full one with a single {@link FileChannel} write, every {@value #FLUSH_INTERVAL_MILLIS} ms or when full.
+ * A line only waits for the disk when both buffers are full.
+ *
+ * For each written block an entry with the file offset, time range and participants is added to
+ * an index file next to the capture file, so {@link OutputCaptureReader} can skip blocks.
+ *
+ * All participants of a test run share one capture file: use {@link #open(Path, EventLogger)} and {@link #release()}.
+ */
+@ThreadSafe
+class OutputCapture {
+
+    static final String INDEX_SUFFIX = ".idx";
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final long FLUSH_INTERVAL_MILLIS = 200;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    @GuardedBy("OPEN")
+    private static final Map<Path, OutputCapture> OPEN = new HashMap<>();
+
+    private final Path file;
+    private final EventLogger logger;
+    private final FileChannel channel;
+    private final FileChannel indexChannel;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushRequested = lock.newCondition();
+    private final Condition swapped = lock.newCondition();
+
+    @GuardedBy("lock")
+    private Block active = new Block();
+    @GuardedBy("lock")
+    private Block spare = new Block();
+    @GuardedBy("lock")
+    private boolean flushNeeded = false;
+    @GuardedBy("lock")
+    private boolean closed = false;
+    @GuardedBy("lock")
+    private final List<String> participants = new ArrayList<>();
+
+    @GuardedBy("OPEN")
+    private int references = 0;
+
+    private final Thread writer;
+
+    private OutputCapture(Path file, EventLogger logger) throws IOException {
+        this.file = file;
+        this.logger = logger;
+        Path parent = file.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        try {
+            this.indexChannel = FileChannel.open(indexFile(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.writer = new Thread(this::writeLoop, "output-capture-" + file.getFileName());
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    static Path indexFile(Path captureFile) {
+        return captureFile.resolveSibling(captureFile.getFileName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Open the capture file or share the already open capture file. Call {@link #release()} when done.
+     */
+    static OutputCapture open(Path file, EventLogger logger) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        synchronized (OPEN) {
+            OutputCapture capture = OPEN.get(key);
+            if (capture == null) {
+                capture = new OutputCapture(key, logger);
+                OPEN.put(key, capture);
+            }
+            capture.references++;
+            return capture;
+        }
+    }
+
+    /**
+     * Release this capture. The last release writes the remaining lines and closes the file.
+     */
+    void release() {
+        synchronized (OPEN) {
+            references--;
+            if (references > 0) {
+                return;
+            }
+            OPEN.remove(file);
+        }
+        lock.lock();
+        try {
+            closed = true;
+            flushRequested.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeQuietly(channel);
+        closeQuietly(indexChannel);
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return a listener that captures the lines of one stream of one command
+     */
+    PrefixedRedirectOutput.LineListener newLineListener(String participant, String phase) {
+        int participantId = participantId(participant);
+        byte[] stdoutFields = fields(participant, PrefixedRedirectOutput.RedirectType.STDOUT, phase);
+        byte[] stderrFields = fields(participant, PrefixedRedirectOutput.RedirectType.STDERR, phase);
+        return (bytes, offset, length, redirectType) ->
+                append(participantId, redirectType == PrefixedRedirectOutput.RedirectType.STDERR ? stderrFields : stdoutFields, bytes, offset, length);
+    }
+
+    private int participantId(String participant) {
+        lock.lock();
+        try {
+            int id = participants.indexOf(participant);
+            if (id == -1) {
+                participants.add(participant);
+                id = participants.size() - 1;
+            }
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the fields after the timestamp up to the start of the line, as utf-8 bytes
+     */
+    private static byte[] fields(String participant, PrefixedRedirectOutput.RedirectType redirectType, String phase) {
+        StringBuilder fields = new StringBuilder(",\"p\":");
+        appendJsonString(fields, participant);
+        fields.append(",\"s\":\"").append(redirectType.name()).append("\",\"c\":");
+        appendJsonString(fields, phase);
+        fields.append(",\"l\":\"");
+        return fields.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void append(int participantId, byte[] fields, byte[] bytes, int offset, int length) {
+        long timestamp = System.currentTimeMillis();
+        // worst case every byte is escaped to 6 bytes
+        int capturedLength = Math.min(length, (BUFFER_SIZE - 32 - fields.length) / 6);
+        int maxSize = 32 + fields.length + 6 * capturedLength;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            while (active.buffer.remaining() < maxSize) {
+                flushNeeded = true;
+                flushRequested.signal();
+                swapped.awaitUninterruptibly();
+                if (closed) {
+                    return;
+                }
+            }
+            Block block = active;
+            ByteBuffer buffer = block.buffer;
+            block.add(timestamp, participantId);
+            buffer.put((byte) '{').put((byte) '"').put((byte) 't').put((byte) '"').put((byte) ':');
+            putLong(buffer, timestamp);
+            buffer.put(fields);
+            putEscaped(buffer, bytes, offset, capturedLength);
+            buffer.put((byte) '"').put((byte) '}').put((byte) '\n');
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Block full;
+            boolean last;
+            lock.lock();
+            try {
+                if (!closed && !flushNeeded) {
+                    flushRequested.await(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                flushNeeded = false;
+                last = closed;
+                full = active;
+                active = spare;
+                spare = null;
+                swapped.signalAll();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            write(full);
+
+            lock.lock();
+            try {
+                spare = full;
+            } finally {
+                lock.unlock();
+            }
+            if (last) {
+                return;
+            }
+        }
+    }
+
+    private void write(Block block) {
+        if (block.lines == 0) {
+            return;
+        }
+        ByteBuffer buffer = block.buffer;
+        buffer.flip();
+        try {
+            long offset = channel.size();
+            int length = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            writeIndexEntry(offset, length, block);
+        } catch (IOException e) {
+            logger.warn("Failed to write output capture to " + file + ": " + e.getMessage());
+        } finally {
+            block.reset();
+        }
+    }
+
+    private void writeIndexEntry(long offset, int length, Block block) throws IOException {
+        StringBuilder entry = new StringBuilder(128);
+        entry.append("{\"offset\":").append(offset)
+                .append(",\"length\":").append(length)
+                .append(",\"lines\":").append(block.lines)
+                .append(",\"from\":").append(block.from)
+                .append(",\"to\":").append(block.to)
+                .append(",\"participants\":[");
+        lock.lock();
+        try {
+            boolean first = true;
+            for (int id = block.participants.nextSetBit(0); id >= 0; id = block.participants.nextSetBit(id + 1)) {
+                if (!first) {
+                    entry.append(',');
+                }
+                appendJsonString(entry, participants.get(id));
+                first = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+        entry.append("]}\n");
+        ByteBuffer bytes = ByteBuffer.wrap(entry.toString().getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            indexChannel.write(bytes);
+        }
+    }
+
+    private static void putLong(ByteBuffer buffer, long value) {
+        if (value == 0) {
+            buffer.put((byte) '0');
+            return;
+        }
+        int start = buffer.position();
+        long rest = value;
+        while (rest > 0) {
+            buffer.put((byte) ('0' + rest % 10));
+            rest /= 10;
+        }
+        // digits are in reverse order
+        for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+            byte b = buffer.get(i);
+            buffer.put(i, buffer.get(j));
+            buffer.put(j, b);
+        }
+    }
+
+    /**
+     * Copy the bytes as json string content: runs without special characters in one bulk put.
+     */
+    private static void putEscaped(ByteBuffer buffer, byte[] bytes, int offset, int length) {
+        int runStart = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = bytes[i];
+            if (b == '"' || b == '\\' || (b >= 0 && b < 0x20)) {
+                buffer.put(bytes, runStart, i - runStart);
+                buffer.put((byte) '\\');
+                switch (b) {
+                    case '"':
+                    case '\\':
+                        buffer.put(b);
+                        break;
+                    case '\t':
+                        buffer.put((byte) 't');
+                        break;
+                    default:
+                        buffer.put((byte) 'u').put((byte) '0').put((byte) '0').put(HEX[b >> 4]).put(HEX[b & 0xF]);
+                }
+                runStart = i + 1;
+            }
+        }
+        buffer.put(bytes, runStart, end - runStart);
+    }
+
+    static void appendJsonString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    private void closeQuietly(FileChannel fileChannel) {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            logger.warn("Failed to close output capture file: " + e.getMessage());
+        }
+    }
+
+    private static final class Block {
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final BitSet participants = new BitSet();
+        private int lines;
+        private long from;
+        private long to;
+
+        void add(long timestamp, int participantId) {
+            if (lines == 0) {
+                from = timestamp;
+                to = timestamp;
+            }
+            else {
+                from = Math.min(from, timestamp);
+                to = Math.max(to, timestamp);
+            }
+            lines++;
+            participants.set(participantId);
+        }
+
+        void reset() {
+            buffer.clear();
+            participants.clear();
+            lines = 0;
+        }
+    }
+}
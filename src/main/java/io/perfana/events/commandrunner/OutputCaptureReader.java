@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Reads a capture file written with the {@code outputCaptureDir} option.
+ *
+ * Uses the index file to only read the blocks that overlap the requested time range and contain
+ * the requested participant. Without an index file (e.g. the test run was killed) the whole file is read, in chunks.
+ *
+ * <pre>
+ * try (OutputCaptureReader reader = OutputCaptureReader.open(Paths.get("capture/my-test-run.jsonl"))) {
+ *     reader.read(from, to, "K6Runner1").forEach(System.out::println);
+ * }
+ * </pre>
+ */
+@NotThreadSafe
+public class OutputCaptureReader implements Closeable {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final List<IndexEntry> index;
+
+    private OutputCaptureReader(FileChannel channel, List<IndexEntry> index) {
+        this.channel = channel;
+        this.index = index;
+    }
+
+    public static OutputCaptureReader open(Path captureFile) throws IOException {
+        FileChannel channel = FileChannel.open(captureFile);
+        try {
+            Path indexFile = OutputCapture.indexFile(captureFile);
+            List<IndexEntry> index = Files.exists(indexFile)
+                    ? readIndex(indexFile)
+                    : Collections.singletonList(IndexEntry.wholeFile());
+            return new OutputCaptureReader(channel, index);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static List<IndexEntry> readIndex(Path indexFile) throws IOException {
+        List<IndexEntry> entries = new ArrayList<>();
+        try (Stream<String> lines = Files.lines(indexFile, StandardCharsets.UTF_8)) {
+            lines.filter(line -> !line.isEmpty()).forEach(line -> {
+                JsonObject entry = JsonParser.parseString(line).getAsJsonObject();
+                JsonArray participants = entry.getAsJsonArray("participants");
+                Set<String> names = new LinkedHashSet<>();
+                for (JsonElement participant : participants) {
+                    names.add(participant.getAsString());
+                }
+                entries.add(new IndexEntry(
+                        entry.get("offset").getAsLong(),
+                        entry.get("length").getAsInt(),
+                        entry.get("from").getAsLong(),
+                        entry.get("to").getAsLong(),
+                        names));
+            });
+        }
+        return entries;
+    }
+
+    /**
+     * @return the participants in the capture file, empty when there is no index file
+     */
+    public Set<String> getParticipants() {
+        Set<String> participants = new LinkedHashSet<>();
+        index.forEach(entry -> participants.addAll(entry.participants));
+        return participants;
+    }
+
+    /**
+     * Read the captured lines, in the order they were written.
+     *
+     * @param from start of time range (inclusive), null for no start
+     * @param to end of time range (inclusive), null for no end
+     * @param participant only lines of this participant (the event name), null for all participants
+     * @return the lines, read per block while the stream is consumed
+     */
+    public Stream<CapturedLine> read(Instant from, Instant to, String participant) {
+        long fromMillis = from == null ? Long.MIN_VALUE : from.toEpochMilli();
+        long toMillis = to == null ? Long.MAX_VALUE : to.toEpochMilli();
+        return index.stream()
+                .filter(entry -> entry.matches(fromMillis, toMillis, participant))
+                .flatMap(this::readBlock)
+                .filter(line -> line.getTimestamp() >= fromMillis && line.getTimestamp() <= toMillis)
+                .filter(line -> participant == null || participant.equals(line.getParticipant()));
+    }
+
+    /**
+     * Reads the block in chunks while the lines are consumed: without an index the block is the whole file,
+     * which can be larger than fits in memory.
+     */
+    private Stream<CapturedLine> readBlock(IndexEntry entry) {
+        long end;
+        try {
+            end = entry.length < 0 ? channel.size() : entry.offset + entry.length;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read captured output", e);
+        }
+        BufferedReader lines = new BufferedReader(new InputStreamReader(new BlockInputStream(entry.offset, end), StandardCharsets.UTF_8), CHUNK_SIZE);
+        return lines.lines()
+                .filter(json -> !json.isEmpty())
+                .map(CapturedLine::parse);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads a part of the capture file with positional reads, so it does not depend on the channel position.
+     */
+    private final class BlockInputStream extends InputStream {
+        private long position;
+        private final long end;
+
+        BlockInputStream(long offset, long end) {
+            this.position = offset;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(bytes, off, (int) Math.min(len, end - position)), position);
+            if (read < 0) {
+                // file is shorter than the index says
+                position = end;
+                return -1;
+            }
+            position += read;
+            return read;
+        }
+    }
+
+    @Immutable
+    public static final class CapturedLine {
+        private final long timestamp;
+        private final String participant;
+        private final PrefixedRedirectOutput.RedirectType redirectType;
+        private final String phase;
+        private final String line;
+
+        CapturedLine(long timestamp, String participant, PrefixedRedirectOutput.RedirectType redirectType, String phase, String line) {
+            this.timestamp = timestamp;
+            this.participant = participant;
+            this.redirectType = redirectType;
+            this.phase = phase;
+            this.line = line;
+        }
+
+        static CapturedLine parse(String json) {
+            JsonObject object = JsonParser.parseString(json).getAsJsonObject();
+            return new CapturedLine(
+                    object.get("t").getAsLong(),
+                    object.get("p").getAsString(),
+                    PrefixedRedirectOutput.RedirectType.valueOf(object.get("s").getAsString()),
+                    object.get("c").getAsString(),
+                    object.get("l").getAsString());
+        }
+
+        /**
+         * @return epoch millis when the line was captured
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getParticipant() {
+            return participant;
+        }
+
+        public PrefixedRedirectOutput.RedirectType getRedirectType() {
+            return redirectType;
+        }
+
+        /**
+         * @return the command, e.g. startTest or keepAlive
+         */
+        public String getPhase() {
+            return phase;
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        @Override
+        public String toString() {
+            return Instant.ofEpochMilli(timestamp) + " " + redirectType + " " + participant + " " + phase + ": " + line;
+        }
+    }
+
+    private static final class IndexEntry {
+        private final long offset;
+        // -1 is up to end of file
+        private final int length;
+        private final long from;
+        private final long to;
+        // empty is unknown
+        private final Set<String> participants;
+
+        IndexEntry(long offset, int length, long from, long to, Set<String> participants) {
+            this.offset = offset;
+            this.length = length;
+            this.from = from;
+            this.to = to;
+            this.participants = participants;
+        }
+
+        static IndexEntry wholeFile() {
+            return new IndexEntry(0, -1, Long.MIN_VALUE, Long.MAX_VALUE, Collections.emptySet());
+        }
+
+        boolean matches(long fromMillis, long toMillis, String participant) {
+            return from <= toMillis && to >= fromMillis
+                    && (participant == null || participants.isEmpty() || participants.contains(participant));
+        }
+    }
+}
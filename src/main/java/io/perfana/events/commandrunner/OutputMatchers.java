@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.NotThreadSafe;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matchers that are evaluated on each line of command output.
+ *
+ * A matcher is configured as {@code action:type:pattern}, for example {@code go:literal:Server started}
+ * or {@code stop:regex:OutOfMemoryError|FATAL}. See {@link Action} for the actions, type is
+ * {@code literal} or {@code regex}.
+ *
+ * All literal patterns are compiled into one Aho-Corasick automaton that runs over the line bytes,
+ * so each byte is one table lookup, no matter the number of patterns. Each regex pattern has its own
+ * matcher, so matchers that match at the same position all fire and backreferences like {@code \1}
+ * keep their meaning. Lines with only ASCII bytes are not decoded to a String.
+ */
+@Immutable
+class OutputMatchers {
+
+    private static final OutputMatchers NONE = new OutputMatchers(Collections.emptyList());
+
+    private final List<Spec> specs;
+
+    // Aho-Corasick automaton for the literal patterns: transitions[state * 256 + byte]
+    private final int[] transitions;
+    // matcher indexes per state, including those of the fail states
+    private final int[][] stateMatches;
+
+    // patterns of the regex matchers and their matcher indexes
+    private final Pattern[] regexPatterns;
+    private final int[] regexMatcherIndexes;
+
+    private OutputMatchers(List<Spec> specs) {
+        this.specs = Collections.unmodifiableList(new ArrayList<>(specs));
+
+        List<byte[]> literals = new ArrayList<>();
+        List<Integer> literalMatcherIndexes = new ArrayList<>();
+        List<Pattern> regexes = new ArrayList<>();
+        List<Integer> regexIndexes = new ArrayList<>();
+        for (int i = 0; i < specs.size(); i++) {
+            Spec spec = specs.get(i);
+            if (spec.regex) {
+                regexes.add(Pattern.compile(spec.pattern));
+                regexIndexes.add(i);
+            }
+            else {
+                literals.add(spec.pattern.getBytes(StandardCharsets.UTF_8));
+                literalMatcherIndexes.add(i);
+            }
+        }
+
+        this.regexPatterns = regexes.toArray(new Pattern[0]);
+        this.regexMatcherIndexes = regexIndexes.stream().mapToInt(Integer::intValue).toArray();
+
+        if (literals.isEmpty()) {
+            this.transitions = null;
+            this.stateMatches = null;
+        }
+        else {
+            Automaton automaton = new Automaton(literals, literalMatcherIndexes);
+            this.transitions = automaton.transitions;
+            this.stateMatches = automaton.stateMatches;
+        }
+    }
+
+    static OutputMatchers none() {
+        return NONE;
+    }
+
+    /**
+     * @throws IllegalArgumentException for an invalid matcher definition
+     */
+    static OutputMatchers parse(List<String> definitions) {
+        if (definitions == null || definitions.isEmpty()) {
+            return NONE;
+        }
+        List<Spec> specs = new ArrayList<>();
+        for (String definition : definitions) {
+            specs.add(Spec.parse(definition));
+        }
+        return new OutputMatchers(specs);
+    }
+
+    boolean isEmpty() {
+        return specs.isEmpty();
+    }
+
+    boolean hasAction(Action action) {
+        return specs.stream().anyMatch(spec -> spec.action == action);
+    }
+
+    List<Spec> getSpecs() {
+        return specs;
+    }
+
+    /**
+     * @return line listener with its own scan state, use one per output stream
+     */
+    PrefixedRedirectOutput.LineListener newLineListener(MatchHandler handler) {
+        return new Scanner(handler)::scan;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return specs.equals(((OutputMatchers) o).specs);
+    }
+
+    @Override
+    public int hashCode() {
+        return specs.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return specs.toString();
+    }
+
+    public enum Action {
+        /** Send the "Go!" message for a readyForStartParticipant, once. */
+        GO,
+        /** Request to stop the test run at the next keep-alive. */
+        STOP,
+        /** Send the matching line as message on the event message bus. */
+        MESSAGE
+    }
+
+    interface MatchHandler {
+        void matched(Spec spec, String line);
+    }
+
+    @Immutable
+    static final class Spec {
+        private final Action action;
+        private final boolean regex;
+        private final String pattern;
+
+        private Spec(Action action, boolean regex, String pattern) {
+            this.action = action;
+            this.regex = regex;
+            this.pattern = pattern;
+        }
+
+        static Spec parse(String definition) {
+            String[] parts = definition.trim().split(":", 3);
+            if (parts.length != 3 || parts[2].isEmpty()) {
+                throw new IllegalArgumentException("Invalid output matcher [" + definition + "], use action:type:pattern, e.g. go:literal:Server started");
+            }
+            Action action;
+            try {
+                action = Action.valueOf(parts[0].trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid action in output matcher [" + definition + "], use one of " + Arrays.toString(Action.values()), e);
+            }
+            String type = parts[1].trim().toLowerCase(Locale.ROOT);
+            if (!type.equals("literal") && !type.equals("regex")) {
+                throw new IllegalArgumentException("Invalid type in output matcher [" + definition + "], use literal or regex");
+            }
+            boolean regex = type.equals("regex");
+            if (regex) {
+                try {
+                    Pattern.compile(parts[2]);
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Invalid regex in output matcher [" + definition + "]: " + e.getMessage(), e);
+                }
+            }
+            return new Spec(action, regex, parts[2]);
+        }
+
+        Action getAction() {
+            return action;
+        }
+
+        String getPattern() {
+            return pattern;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Spec spec = (Spec) o;
+            return regex == spec.regex && action == spec.action && pattern.equals(spec.pattern);
+        }
+
+        @Override
+        public int hashCode() {
+            return pattern.hashCode() * 31 + action.hashCode() * 2 + (regex ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return action.name().toLowerCase(Locale.ROOT) + ":" + (regex ? "regex" : "literal") + ":" + pattern;
+        }
+    }
+
+    /**
+     * Scan state for one output stream.
+     */
+    @NotThreadSafe
+    private final class Scanner {
+
+        private final MatchHandler handler;
+        private final boolean[] matchedInLine = new boolean[specs.size()];
+        private final AsciiCharSequence asciiLine = new AsciiCharSequence();
+        private final Matcher[] regexMatchers = new Matcher[regexPatterns.length];
+
+        Scanner(MatchHandler handler) {
+            this.handler = handler;
+            for (int i = 0; i < regexMatchers.length; i++) {
+                regexMatchers[i] = regexPatterns[i].matcher("");
+            }
+        }
+
+        void scan(byte[] bytes, int offset, int length, PrefixedRedirectOutput.RedirectType redirectType) {
+            boolean anyMatch = false;
+            boolean ascii = true;
+            int state = 0;
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                byte b = bytes[i];
+                if (b < 0) {
+                    ascii = false;
+                }
+                if (transitions != null) {
+                    state = transitions[(state << 8) | (b & 0xFF)];
+                    int[] matches = stateMatches[state];
+                    for (int matcherIndex : matches) {
+                        matchedInLine[matcherIndex] = true;
+                        anyMatch = true;
+                    }
+                }
+            }
+
+            if (regexMatchers.length > 0) {
+                CharSequence line;
+                if (ascii) {
+                    asciiLine.set(bytes, offset, length);
+                    line = asciiLine;
+                }
+                else {
+                    line = new String(bytes, offset, length, StandardCharsets.UTF_8);
+                }
+                for (int i = 0; i < regexMatchers.length; i++) {
+                    Matcher regexMatcher = regexMatchers[i];
+                    if (regexMatcher.reset(line).find()) {
+                        matchedInLine[regexMatcherIndexes[i]] = true;
+                        anyMatch = true;
+                    }
+                    regexMatcher.reset("");
+                }
+                asciiLine.clear();
+            }
+
+            if (anyMatch) {
+                String line = new String(bytes, offset, length, StandardCharsets.UTF_8);
+                for (int i = 0; i < matchedInLine.length; i++) {
+                    if (matchedInLine[i]) {
+                        matchedInLine[i] = false;
+                        handler.matched(specs.get(i), line);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read-only view on ASCII bytes, reused for each line.
+     */
+    private static final class AsciiCharSequence implements CharSequence {
+        private byte[] bytes;
+        private int offset;
+        private int length;
+
+        void set(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        void clear() {
+            this.bytes = null;
+            this.length = 0;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) bytes[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Builds the complete transition table (goto and fail links combined) of an Aho-Corasick automaton.
+     */
+    private static final class Automaton {
+
+        private int[] transitions = new int[256];
+        private final List<int[]> matches = new ArrayList<>();
+        private int[][] stateMatches;
+
+        Automaton(List<byte[]> patterns, List<Integer> matcherIndexes) {
+            Arrays.fill(transitions, -1);
+            matches.add(new int[0]);
+            int states = 1;
+            for (int p = 0; p < patterns.size(); p++) {
+                int state = 0;
+                for (byte b : patterns.get(p)) {
+                    int index = (state << 8) | (b & 0xFF);
+                    if (transitions[index] == -1) {
+                        transitions[index] = states;
+                        ensureCapacity(states + 1);
+                        matches.add(new int[0]);
+                        states++;
+                    }
+                    state = transitions[index];
+                }
+                matches.set(state, append(matches.get(state), matcherIndexes.get(p)));
+            }
+
+            int[] fail = new int[states];
+            Queue<Integer> queue = new ArrayDeque<>();
+            for (int c = 0; c < 256; c++) {
+                int next = transitions[c];
+                if (next == -1) {
+                    transitions[c] = 0;
+                }
+                else {
+                    fail[next] = 0;
+                    queue.add(next);
+                }
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.remove();
+                for (int matcherIndex : matches.get(fail[state])) {
+                    matches.set(state, append(matches.get(state), matcherIndex));
+                }
+                for (int c = 0; c < 256; c++) {
+                    int index = (state << 8) | c;
+                    int next = transitions[index];
+                    int failTransition = transitions[(fail[state] << 8) | c];
+                    if (next == -1) {
+                        transitions[index] = failTransition;
+                    }
+                    else {
+                        fail[next] = failTransition;
+                        queue.add(next);
+                    }
+                }
+            }
+            this.stateMatches = matches.toArray(new int[0][]);
+        }
+
+        private void ensureCapacity(int states) {
+            if (transitions.length < states * 256) {
+                int oldLength = transitions.length;
+                transitions = Arrays.copyOf(transitions, Math.max(states * 256, oldLength * 2));
+                Arrays.fill(transitions, oldLength, transitions.length, -1);
+            }
+        }
+
+        private static int[] append(int[] values, int value) {
+            for (int existing : values) {
+                if (existing == value) {
+                    return values;
+                }
+            }
+            int[] result = Arrays.copyOf(values, values.length + 1);
+            result[values.length] = value;
+            return result;
+        }
+    }
+}
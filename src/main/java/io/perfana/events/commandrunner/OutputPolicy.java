@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static io.perfana.events.commandrunner.PrefixedRedirectOutput.RedirectType.STDERR;
+
+/**
+ * Decides which output lines of the commands of one command runner are written to the console.
+ *
+ * Suppressed lines are counted. They are still passed to the output capture, the keep-alive samples
+ * and the result cache, and to the output matchers when {@link #isListenToSuppressed()} is true.
+ *
+ * The decision is made when a line starts, so a long line is written or suppressed as a whole.
+ */
+@ThreadSafe
+class OutputPolicy {
+
+    static final OutputPolicy PASS_THROUGH = new OutputPolicy(Mode.PASS_THROUGH, 1, 1, true);
+
+    private final Mode mode;
+    private final int sampleRate;
+    private final boolean listenToSuppressed;
+
+    private final double tokensPerNano;
+    private final double maxTokens;
+    @GuardedBy("this")
+    private double tokens;
+    @GuardedBy("this")
+    private long lastRefillNanos;
+
+    private final AtomicLong sampleCounter = new AtomicLong();
+    private final LongAdder suppressedLines = new LongAdder();
+
+    OutputPolicy(Mode mode, int linesPerSecond, int sampleRate, boolean listenToSuppressed) {
+        if (mode == Mode.RATE_LIMIT && linesPerSecond < 1) {
+            throw new IllegalArgumentException("Output rate limit should be at least 1 line per second: " + linesPerSecond);
+        }
+        if (mode == Mode.SAMPLE && sampleRate < 1) {
+            throw new IllegalArgumentException("Output sample rate should be at least 1: " + sampleRate);
+        }
+        this.mode = mode;
+        this.sampleRate = sampleRate;
+        this.listenToSuppressed = listenToSuppressed;
+        // allow a burst of one second of lines
+        this.maxTokens = linesPerSecond;
+        this.tokensPerNano = linesPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        this.tokens = maxTokens;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * @return true when a line that starts now should be written, false when it is suppressed
+     */
+    boolean keep(PrefixedRedirectOutput.RedirectType redirectType) {
+        return keep(redirectType, System.nanoTime());
+    }
+
+    boolean keep(PrefixedRedirectOutput.RedirectType redirectType, long nanoTime) {
+        boolean keep;
+        switch (mode) {
+            case PASS_THROUGH:
+                return true;
+            case RATE_LIMIT:
+                keep = takeToken(nanoTime);
+                break;
+            case SAMPLE:
+                keep = sampleCounter.getAndIncrement() % sampleRate == 0;
+                break;
+            case STDERR_ONLY:
+                keep = redirectType == STDERR;
+                break;
+            default:
+                throw new IllegalStateException("Unknown output policy: " + mode);
+        }
+        if (!keep) {
+            suppressedLines.increment();
+        }
+        return keep;
+    }
+
+    private synchronized boolean takeToken(long nanoTime) {
+        long elapsed = nanoTime - lastRefillNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(maxTokens, tokens + elapsed * tokensPerNano);
+            lastRefillNanos = nanoTime;
+        }
+        if (tokens >= 1) {
+            tokens--;
+            return true;
+        }
+        return false;
+    }
+
+    boolean isListenToSuppressed() {
+        return listenToSuppressed;
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    long getSuppressedLines() {
+        return suppressedLines.sum();
+    }
+
+    public enum Mode {
+        /** Write all lines. */
+        PASS_THROUGH,
+        /** Write at most a configured number of lines per second. */
+        RATE_LIMIT,
+        /** Write one in every N lines. */
+        SAMPLE,
+        /** Only write the lines of stderr. */
+        STDERR_ONLY;
+
+        static Mode parse(String mode) {
+            try {
+                return valueOf(mode.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown output policy [" + mode + "], use one of " + Arrays.toString(values()), e);
+            }
+        }
+    }
+}
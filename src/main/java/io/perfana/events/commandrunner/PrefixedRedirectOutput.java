@@ -20,110 +20,473 @@ import net.jcip.annotations.GuardedBy;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Output stream that inserts a prefix at each new line.
  *
- * Tries to avoid output interleaving.
+ * Tries to avoid output interleaving: complete lines, including their prefix, are
+ * written to the wrapped output stream in one write call.
+ *
+ * Bytes are collected in a line buffer. A bulk write only locks once and all complete
+ * lines in it are passed on to the wrapped stream together. The prefix is encoded once
+ * and the timestamp is rendered in place, so no objects are created per line.
+ *
+ * An optional {@link LineListener} sees the content of each line, without prefix and line end.
+ * A line that does not fit in the buffer is written in parts, and collected for the listener up to
+ * {@value #MAX_LISTENED_LINE} bytes: the rest of a longer line is not seen by the listener.
+ * At flush the listener sees the last line without line end: the stream pumps flush when the process has ended.
+ *
+ * An optional {@link OutputPolicy} decides for each line if it is written. Suppressed lines are not
+ * prefixed. The line listener sees them, the optional matcher listener only if the policy says so.
+ * A summary line with the number of suppressed lines is written before the next written line,
+ * at most once per second, and at flush and close.
+ *
+ * Optional {@link Counters} count the bytes and lines written by the command, before prefix and policy.
  *
  * Might now work so well on windows (regarding new lines).
  */
 public class PrefixedRedirectOutput extends OutputStream {
 
-    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+    private static final int BUFFER_SIZE = 8192;
 
-    private static final int BUFFER_SIZE = 1024;
+    private static final int MAX_LISTENED_LINE = 1024 * 1024;
 
-    private final RedirectType redirectType;
+    private static final byte[] END_MESSAGE = " END!".getBytes(StandardCharsets.UTF_8);
+
+    private static final long SUMMARY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
 
     private final Object bufferLock = new Object();
     @GuardedBy("bufferLock")
-    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final byte[] buffer;
 
     @GuardedBy("bufferLock")
     private int pointer;
 
-    private final String prefix;
+    /** End of the last complete line in the buffer. */
+    @GuardedBy("bufferLock")
+    private int completeLinesEnd;
+
+    @GuardedBy("bufferLock")
+    private boolean atLineStart = true;
+
+    /** Start of the current line in the buffer, before the prefix. */
+    @GuardedBy("bufferLock")
+    private int lineStart;
+
+    /** False when the output policy suppresses the current line. */
+    @GuardedBy("bufferLock")
+    private boolean keepLine = true;
+
+    /** Suppressed lines since the last summary line. */
+    @GuardedBy("bufferLock")
+    private long suppressedLines;
+
+    @GuardedBy("bufferLock")
+    private long lastSummaryNanos = System.nanoTime();
+
+    /** The end message is not output of the command. */
+    @GuardedBy("bufferLock")
+    private boolean closing;
+
+    /** Start of the content of the current line in the buffer, after the prefix. */
+    @GuardedBy("bufferLock")
+    private int lineContentStart;
+
+    /** The parts of a line that did not fit in the buffer, for the listeners. */
+    @GuardedBy("bufferLock")
+    private byte[] longLine;
+
+    /** Length of the line in {@link #longLine}, -1 when the current line fits in the buffer. */
+    @GuardedBy("bufferLock")
+    private int longLineLength = -1;
+
+    /** The start of the current line was passed to the listeners at flush. */
+    @GuardedBy("bufferLock")
+    private boolean partialLineListened;
+
+    @GuardedBy("bufferLock")
+    private final TimestampRenderer timestampRenderer = new TimestampRenderer();
+
+    /** The part after the timestamp: " STDOUT prefix" */
+    private final byte[] prefixBytes;
+    private final int headerLength;
 
     private final OutputStream wrappedOS;
 
-    private final String newLine = System.lineSeparator();
-    private final int[] nl = newLine.chars().toArray();
-    private final int chars = nl.length;
+    private final RedirectType redirectType;
+    private final LineListener lineListener;
+    private final LineListener matcherListener;
+    private final OutputPolicy outputPolicy;
+    private final Counters counters;
 
-    private volatile boolean start = true;
-    private volatile boolean thereIsMore = false;
+    private final byte[] newLine = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    private final byte lineEnd = newLine[newLine.length - 1];
 
     public PrefixedRedirectOutput(String prefix, OutputStream wrappedOS, RedirectType redirectType) {
+        this(prefix, wrappedOS, redirectType, null);
+    }
+
+    public PrefixedRedirectOutput(String prefix, OutputStream wrappedOS, RedirectType redirectType, LineListener lineListener) {
+        this(prefix, wrappedOS, redirectType, lineListener, OutputPolicy.PASS_THROUGH, null);
+    }
+
+    PrefixedRedirectOutput(String prefix, OutputStream wrappedOS, RedirectType redirectType, LineListener lineListener, OutputPolicy outputPolicy, Counters counters) {
+        this(prefix, wrappedOS, redirectType, lineListener, null, outputPolicy, counters);
+    }
+
+    /**
+     * @param lineListener sees all lines, null for none
+     * @param matcherListener sees the written lines, and the suppressed lines when {@link OutputPolicy#isListenToSuppressed()}, null for none
+     */
+    PrefixedRedirectOutput(String prefix, OutputStream wrappedOS, RedirectType redirectType, LineListener lineListener, LineListener matcherListener,
+                           OutputPolicy outputPolicy, Counters counters) {
         super();
-        this.prefix = prefix;
         this.wrappedOS = wrappedOS;
         this.redirectType = redirectType;
+        this.lineListener = lineListener;
+        this.matcherListener = matcherListener;
+        this.outputPolicy = Objects.requireNonNull(outputPolicy);
+        this.counters = counters;
+        this.prefixBytes = (" " + redirectType + " " + prefix).getBytes(StandardCharsets.UTF_8);
+        this.headerLength = TimestampRenderer.LENGTH + prefixBytes.length;
+        this.buffer = new byte[BUFFER_SIZE + headerLength];
     }
 
     @Override
     public void write(int b) throws IOException {
-        if (start) {
-            start = false;
-            wrappedOS.write(createPrefix());
+        if (counters != null) {
+            counters.bytes.increment();
         }
-        if (thereIsMore) {
-            wrappedOS.write(createPrefix());
-            thereIsMore = false;
+        synchronized (bufferLock) {
+            append((byte) b);
+            writeCompleteLines();
         }
+    }
 
+    @Override
+    public void write(byte[] bytes, int off, int len) throws IOException {
+        Objects.checkFromIndexSize(off, len, bytes.length);
+        if (counters != null) {
+            counters.bytes.add(len);
+        }
         synchronized (bufferLock) {
-            buffer[pointer++] = (byte) b;
-            if (pointer == BUFFER_SIZE) {
-                flushBuffer();
+            appendAll(bytes, off, len);
+            writeCompleteLines();
+        }
+    }
+
+    @GuardedBy("bufferLock")
+    private void appendAll(byte[] bytes, int off, int len) throws IOException {
+        int end = off + len;
+        int pos = off;
+        while (pos < end) {
+            if (atLineStart) {
+                startLine();
+            }
+            int limit = Math.min(end, pos + (buffer.length - pointer));
+            int newLineIndex = indexOf(bytes, pos, limit, lineEnd);
+            int stop = newLineIndex < 0 ? limit : newLineIndex + 1;
+            int count = stop - pos;
+            System.arraycopy(bytes, pos, buffer, pointer, count);
+            pointer += count;
+            pos = stop;
+            if (newLineIndex >= 0) {
+                endLine();
+            }
+            else if (pointer == buffer.length) {
+                writeLinePart();
             }
         }
+    }
 
-        if ((chars == 1 && nl[0] == b) || (chars == 2 && nl[1] == b)) {
-            thereIsMore = true;
-            flushBuffer();
+    @GuardedBy("bufferLock")
+    private void append(byte b) throws IOException {
+        if (atLineStart) {
+            startLine();
+        }
+        buffer[pointer++] = b;
+        if (b == lineEnd) {
+            endLine();
+        }
+        else if (pointer == buffer.length) {
+            writeLinePart();
         }
     }
 
-    private byte[] createPrefix() {
-        String fullPrefix = formatTime() + " " + redirectType + " " + prefix;
-        return fullPrefix.getBytes(StandardCharsets.UTF_8);
+    @GuardedBy("bufferLock")
+    private void startLine() throws IOException {
+        boolean keep = outputPolicy.keep(redirectType);
+        if (keep && suppressedLines > 0 && System.nanoTime() - lastSummaryNanos >= SUMMARY_INTERVAL_NANOS) {
+            writeSuppressedSummary();
+        }
+        startLine(keep);
     }
 
-    private String formatTime() {
-        return TIME_FORMATTER.format(LocalTime.now());
+    @GuardedBy("bufferLock")
+    private void startLine(boolean keep) throws IOException {
+        if (buffer.length - pointer <= headerLength) {
+            writeBuffer(pointer);
+        }
+        lineStart = pointer;
+        if (keep) {
+            pointer = timestampRenderer.render(buffer, pointer);
+            System.arraycopy(prefixBytes, 0, buffer, pointer, prefixBytes.length);
+            pointer += prefixBytes.length;
+        }
+        lineContentStart = pointer;
+        keepLine = keep;
+        partialLineListened = false;
+        atLineStart = false;
     }
 
-    private void flushBuffer() throws IOException {
+    @GuardedBy("bufferLock")
+    private void endLine() {
+        if (counters != null && !closing) {
+            counters.lines.increment();
+        }
+        boolean matching = isMatching();
+        if (partialLineListened && (pointer - 1 == lineContentStart || (pointer - 2 == lineContentStart && buffer[lineContentStart] == '\r'))) {
+            // nothing after the part seen at flush
+        }
+        else if (longLineLength >= 0) {
+            collectLinePart(pointer - 1 - lineContentStart);
+            int length = longLineLength;
+            if (length > 0 && longLine[length - 1] == '\r') {
+                length--;
+            }
+            onLine(longLine, 0, length, matching);
+            longLineLength = -1;
+        }
+        else if (lineListener != null || matching) {
+            int contentEnd = pointer - 1;
+            if (contentEnd > lineContentStart && buffer[contentEnd - 1] == '\r') {
+                contentEnd--;
+            }
+            onLine(buffer, lineContentStart, contentEnd - lineContentStart, matching);
+        }
+        if (keepLine) {
+            completeLinesEnd = pointer;
+        }
+        else {
+            pointer = lineStart;
+            suppressedLines++;
+        }
+        atLineStart = true;
+    }
+
+    @GuardedBy("bufferLock")
+    private boolean isMatching() {
+        return matcherListener != null && (keepLine || outputPolicy.isListenToSuppressed());
+    }
+
+    @GuardedBy("bufferLock")
+    private void onLine(byte[] bytes, int offset, int length, boolean matching) {
+        if (closing) {
+            return;
+        }
+        if (lineListener != null) {
+            lineListener.onLine(bytes, offset, length, redirectType);
+        }
+        if (matching) {
+            matcherListener.onLine(bytes, offset, length, redirectType);
+        }
+    }
+
+    /**
+     * Keep the given number of bytes of the current line for the listeners, up to the maximum line length.
+     */
+    @GuardedBy("bufferLock")
+    private void collectLinePart(int length) {
+        if (longLine == null) {
+            longLine = new byte[BUFFER_SIZE * 2];
+        }
+        int count = Math.min(length, MAX_LISTENED_LINE - longLineLength);
+        if (count <= 0) {
+            return;
+        }
+        if (longLine.length < longLineLength + count) {
+            longLine = Arrays.copyOf(longLine, Math.min(MAX_LISTENED_LINE, Math.max(longLineLength + count, longLine.length * 2)));
+        }
+        System.arraycopy(buffer, lineContentStart, longLine, longLineLength, count);
+        longLineLength += count;
+    }
+
+    /**
+     * The output has ended in the middle of a line: the listeners see what there is of it.
+     * Bytes written after this are seen as a new line.
+     */
+    @GuardedBy("bufferLock")
+    private void listenToPartialLine() {
+        if (atLineStart) {
+            return;
+        }
+        boolean matching = isMatching();
+        if (longLineLength >= 0) {
+            collectLinePart(pointer - lineContentStart);
+            onLine(longLine, 0, longLineLength, matching);
+            longLineLength = -1;
+        }
+        else if ((lineListener != null || matching) && pointer > lineContentStart) {
+            onLine(buffer, lineContentStart, pointer - lineContentStart, matching);
+        }
+        else {
+            return;
+        }
+        if (!keepLine) {
+            // already seen, and not written
+            pointer = lineContentStart;
+        }
+        lineContentStart = pointer;
+        partialLineListened = true;
+    }
+
+    /**
+     * The buffer is full in the middle of a line: write what is there, the listeners get the whole line at its end.
+     */
+    @GuardedBy("bufferLock")
+    private void writeLinePart() throws IOException {
+        if (lineListener != null || isMatching()) {
+            if (longLineLength < 0) {
+                longLineLength = 0;
+            }
+            collectLinePart(pointer - lineContentStart);
+        }
+        if (keepLine) {
+            writeBuffer(pointer);
+        }
+        else {
+            // make room for the rest of the suppressed line
+            if (lineStart > 0) {
+                writeBuffer(lineStart);
+            }
+            pointer = lineContentStart;
+        }
+    }
+
+    @GuardedBy("bufferLock")
+    private void writeSuppressedSummary() throws IOException {
+        byte[] summary = (suppressedLines + " lines suppressed by output policy " + outputPolicy.getMode()).getBytes(StandardCharsets.UTF_8);
+        if (buffer.length - pointer < headerLength + summary.length + newLine.length) {
+            writeBuffer(pointer);
+        }
+        startLine(true);
+        System.arraycopy(summary, 0, buffer, pointer, summary.length);
+        pointer += summary.length;
+        System.arraycopy(newLine, 0, buffer, pointer, newLine.length);
+        pointer += newLine.length;
+        completeLinesEnd = pointer;
+        atLineStart = true;
+        suppressedLines = 0;
+        lastSummaryNanos = System.nanoTime();
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @GuardedBy("bufferLock")
+    private void writeCompleteLines() throws IOException {
+        if (completeLinesEnd > 0) {
+            writeBuffer(completeLinesEnd);
+        }
+    }
+
+    /**
+     * Write the first length bytes of the buffer to the wrapped output stream and
+     * move the remaining bytes to the start of the buffer.
+     */
+    @GuardedBy("bufferLock")
+    private void writeBuffer(int length) throws IOException {
         // This might be a nasty thing to do: high-jack
         // the lock of a foreign object!
         // Can cause deadlocks?
         // Trying to reduce change of output interleaving...
         synchronized (wrappedOS) {
-            synchronized (bufferLock) {
-                wrappedOS.write(buffer, 0, pointer);
-                pointer = 0;
+            wrappedOS.write(buffer, 0, length);
+        }
+        int remaining = pointer - length;
+        if (remaining > 0) {
+            System.arraycopy(buffer, length, buffer, 0, remaining);
+        }
+        pointer = remaining;
+        completeLinesEnd = Math.max(0, completeLinesEnd - length);
+        lineStart = Math.max(0, lineStart - length);
+        lineContentStart = Math.max(0, lineContentStart - length);
+    }
+
+    private void flushBuffer() throws IOException {
+        synchronized (bufferLock) {
+            // a suppressed partial line stays in the buffer
+            int end = atLineStart || keepLine ? pointer : lineStart;
+            if (end > 0) {
+                writeBuffer(end);
             }
         }
     }
 
     @Override
     public void flush() throws IOException {
+        synchronized (bufferLock) {
+            listenToPartialLine();
+            if (suppressedLines > 0 && atLineStart) {
+                writeSuppressedSummary();
+            }
+        }
         flushBuffer();
         wrappedOS.flush();
     }
 
     @Override
     public void close() throws IOException {
+        synchronized (bufferLock) {
+            if (!atLineStart) {
+                appendAll(newLine, 0, newLine.length);
+            }
+            if (suppressedLines > 0) {
+                writeSuppressedSummary();
+            }
+            closing = true;
+            startLine(true);
+            appendAll(END_MESSAGE, 0, END_MESSAGE.length);
+            appendAll(newLine, 0, newLine.length);
+        }
         flushBuffer();
-        write(createPrefix());
-        write(" END!".getBytes(StandardCharsets.UTF_8));
-        write(newLine.getBytes(StandardCharsets.UTF_8));
         wrappedOS.close();
     }
 
+    /**
+     * Receives the content of each line. Called on the thread that writes to the stream,
+     * the bytes are only valid during the call.
+     */
+    public interface LineListener {
+        void onLine(byte[] bytes, int offset, int length, RedirectType redirectType);
+    }
+
+    /**
+     * Bytes and lines written to one or more streams, can be read while the streams are written.
+     */
+    static final class Counters {
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder lines = new LongAdder();
+
+        long getBytes() {
+            return bytes.sum();
+        }
+
+        long getLines() {
+            return lines.sum();
+        }
+    }
+
     public enum RedirectType {
         STDOUT,
         STDERR
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.api.EventLogger;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Idle {@code sh} processes, started before they are needed, to run a command without
+ * waiting for a new process to start.
+ *
+ * A command is written to stdin of an idle shell, which runs it in a subshell and exits with
+ * its exit code: the process of the shell ends with the command, like a process started for the command.
+ * A new idle shell is started in the background for each shell taken.
+ */
+@ThreadSafe
+class PrewarmedShells implements AutoCloseable {
+
+    /**
+     * Starts an idle shell, with stdin of the process kept open.
+     */
+    interface ShellStarter {
+        Shell start() throws IOException;
+    }
+
+    private final int size;
+    private final ShellStarter starter;
+    private final ProcessThreadPool processThreadPool;
+    private final EventLogger logger;
+
+    @GuardedBy("this")
+    private final Deque<Shell> idle = new ArrayDeque<>();
+    @GuardedBy("this")
+    private int starting = 0;
+    @GuardedBy("this")
+    private boolean closed = false;
+
+    PrewarmedShells(int size, ShellStarter starter, ProcessThreadPool processThreadPool, EventLogger logger) {
+        this.size = size;
+        this.starter = starter;
+        this.processThreadPool = processThreadPool;
+        this.logger = logger;
+    }
+
+    /**
+     * Start shells in the background until there are {@code size} idle shells.
+     */
+    void fill() {
+        int toStart;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            toStart = size - idle.size() - starting;
+            starting += Math.max(0, toStart);
+        }
+        for (int i = 0; i < toStart; i++) {
+            processThreadPool.newThread(this::startShell).start();
+        }
+    }
+
+    private void startShell() {
+        Shell shell = null;
+        try {
+            shell = starter.start();
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to start pre-warmed shell: " + e.getMessage());
+        }
+        boolean keep;
+        synchronized (this) {
+            starting--;
+            keep = shell != null && !closed;
+            if (keep) {
+                idle.add(shell);
+            }
+        }
+        if (!keep && shell != null) {
+            shell.close();
+        }
+    }
+
+    /**
+     * @return an idle shell, or null when none is ready
+     */
+    Shell take() {
+        Shell shell;
+        synchronized (this) {
+            do {
+                shell = idle.poll();
+            } while (shell != null && !shell.isAlive());
+        }
+        fill();
+        return shell;
+    }
+
+    synchronized int idleCount() {
+        return idle.size();
+    }
+
+    @Override
+    public void close() {
+        Deque<Shell> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            idle.clear();
+        }
+        toClose.forEach(Shell::close);
+    }
+
+    static final class Shell {
+        private final ProcessFuture processFuture;
+        private final OutputStream stdin;
+        private final AtomicBoolean used;
+
+        /**
+         * @param used set when a command is run, or when the process ended before that: when the process
+         *             ends, a failed {@code compareAndSet(false, true)} means a command was run
+         */
+        Shell(ProcessFuture processFuture, OutputStream stdin, AtomicBoolean used) {
+            this.processFuture = processFuture;
+            this.stdin = stdin;
+            this.used = used;
+        }
+
+        boolean isAlive() {
+            return processFuture.getProcess().isAlive();
+        }
+
+        long pid() {
+            return processFuture.getProcess().pid();
+        }
+
+        /**
+         * Run the command in this shell, the shell exits when the command is done.
+         *
+         * @return the result of the shell process, which has the exit code of the command,
+         * or null when the shell already ended and the command is not run
+         * @throws IOException when the command could not be sent, the shell then ends
+         */
+        ProcessFuture run(String command) throws IOException {
+            if (!used.compareAndSet(false, true)) {
+                return null;
+            }
+            // stdin of the command is /dev/null: it should not read from the stdin of the shell
+            byte[] script = ("( " + command + "\n) </dev/null; exit $?\n").getBytes(StandardCharsets.UTF_8);
+            try {
+                stdin.write(script);
+                stdin.flush();
+            } finally {
+                stdin.close();
+            }
+            return processFuture;
+        }
+
+        /**
+         * An idle shell exits when its stdin is closed.
+         */
+        void close() {
+            try {
+                stdin.close();
+            } catch (IOException e) {
+                processFuture.getProcess().destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.ThreadSafe;
+import org.zeroturnaround.exec.ProcessResult;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Completes when a process started with {@link ProcessThreadPool#start} has ended.
+ *
+ * Unlike a plain {@link CompletableFuture}, {@link #cancel(boolean)} also stops the process and
+ * its descendants, see {@link #terminate()}.
+ */
+@ThreadSafe
+class ProcessFuture extends CompletableFuture<ProcessResult> {
+
+    private volatile Process process;
+    private volatile Future<ProcessResult> processFuture;
+    private volatile Duration gracePeriod = Duration.ZERO;
+
+    void started(Process process, Future<ProcessResult> processFuture) {
+        this.process = process;
+        this.processFuture = processFuture;
+    }
+
+    /**
+     * @return the process, null when not started
+     */
+    Process getProcess() {
+        return process;
+    }
+
+    /**
+     * @param gracePeriod time processes get to stop before they are killed on cancel
+     */
+    void setGracePeriod(Duration gracePeriod) {
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * Stop the process and its descendants, and cancel this future.
+     *
+     * @return what was stopped, null when the process was not started
+     */
+    ProcessTree.Termination terminate() {
+        Process startedProcess = process;
+        ProcessTree.Termination termination = startedProcess == null
+                ? null
+                : ProcessTree.terminate(startedProcess.toHandle(), gracePeriod);
+        Future<ProcessResult> future = processFuture;
+        if (future != null) {
+            // interrupts the wait thread
+            future.cancel(true);
+        }
+        super.cancel(true);
+        return termination;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (isDone()) {
+            return false;
+        }
+        terminate();
+        return isCancelled();
+    }
+}
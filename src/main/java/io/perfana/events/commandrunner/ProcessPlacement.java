@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.api.EventLogger;
+import net.jcip.annotations.Immutable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Where the processes of the commands run, per command type, e.g.
+ * {@code startTest: cpus=2-7 nice=-5} and {@code keepAlive,scheduledEvent: cpus=0-1 nice=10 ionice=idle cgroup=perfana/helpers cpuMax=0.5}.
+ *
+ * <ul>
+ *     <li>{@code cpus}: cpu list for {@code taskset -c}, e.g. {@code 0-1,4}</li>
+ *     <li>{@code nice}: -20 to 19, with {@code nice -n}</li>
+ *     <li>{@code ionice}: {@code idle}, {@code best-effort[:0-7]} or {@code realtime[:0-7]}, with {@code ionice}</li>
+ *     <li>{@code cgroup}: cgroup v2 group, relative to {@code /sys/fs/cgroup}, the process is moved into it before it starts</li>
+ *     <li>{@code cpuMax}: cpu quota of the cgroup, in cpus ({@code 0.5}) or as {@code quota/period} in microseconds</li>
+ * </ul>
+ *
+ * The command types are the hooks ({@code beforeTest}, {@code startTest}, {@code keepAlive}, ...) or {@code *}.
+ * The first placement with the command type is used. Linux only: {@code taskset}, {@code nice} and {@code ionice} are
+ * put in front of the command, and exec it, so the process id stays the same.
+ */
+@Immutable
+class ProcessPlacement {
+
+    static final ProcessPlacement NONE = new ProcessPlacement(Collections.emptyList());
+
+    static final Path CGROUP_ROOT = Paths.get("/sys/fs/cgroup");
+
+    private static final Pattern CPUS = Pattern.compile("\\d+(-\\d+)?(,\\d+(-\\d+)?)*");
+    private static final Pattern CGROUP = Pattern.compile("[\\w.-]+(/[\\w.-]+)*");
+    private static final int CPU_MAX_PERIOD = 100_000;
+
+    private final List<Placement> placements;
+
+    private ProcessPlacement(List<Placement> placements) {
+        this.placements = Collections.unmodifiableList(new ArrayList<>(placements));
+    }
+
+    /**
+     * @throws IllegalArgumentException for an invalid placement
+     */
+    static ProcessPlacement parse(List<String> specs) {
+        if (specs == null || specs.isEmpty()) {
+            return NONE;
+        }
+        List<Placement> placements = new ArrayList<>();
+        for (String spec : specs) {
+            placements.add(Placement.parse(spec));
+        }
+        return new ProcessPlacement(placements);
+    }
+
+    boolean isEmpty() {
+        return placements.isEmpty();
+    }
+
+    /**
+     * Find the tools and create the cgroups. A tool that is not found or a cgroup that cannot be created is
+     * logged and left out.
+     *
+     * @param searchPath the {@code PATH} to find {@code taskset}, {@code nice} and {@code ionice}
+     * @return the command prefix per command type, {@code *} for all other command types
+     */
+    Map<String, List<String>> prefixes(String searchPath, Path cgroupRoot, EventLogger logger) {
+        Map<String, List<String>> prefixes = new HashMap<>();
+        for (Placement placement : placements) {
+            List<String> prefix = placement.prefix(searchPath, cgroupRoot, logger);
+            for (String commandType : placement.commandTypes) {
+                prefixes.putIfAbsent(commandType, prefix);
+            }
+        }
+        return prefixes;
+    }
+
+    static List<String> placed(Map<String, List<String>> prefixes, String commandType, List<String> command) {
+        List<String> prefix = prefixes.getOrDefault(commandType, prefixes.getOrDefault("*", Collections.emptyList()));
+        if (prefix.isEmpty()) {
+            return command;
+        }
+        List<String> placed = new ArrayList<>(prefix.size() + command.size());
+        placed.addAll(prefix);
+        placed.addAll(command);
+        return placed;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ProcessPlacement that = (ProcessPlacement) o;
+        return placements.equals(that.placements);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(placements);
+    }
+
+    @Override
+    public String toString() {
+        return placements.toString();
+    }
+
+    @Immutable
+    private static final class Placement {
+        private final String spec;
+        private final Set<String> commandTypes;
+        private final String cpus;
+        private final Integer nice;
+        private final String ioniceClass;
+        private final String ioniceLevel;
+        private final String cgroup;
+        private final String cpuMax;
+
+        private Placement(String spec, Set<String> commandTypes, String cpus, Integer nice, String ioniceClass, String ioniceLevel, String cgroup, String cpuMax) {
+            this.spec = spec;
+            this.commandTypes = commandTypes;
+            this.cpus = cpus;
+            this.nice = nice;
+            this.ioniceClass = ioniceClass;
+            this.ioniceLevel = ioniceLevel;
+            this.cgroup = cgroup;
+            this.cpuMax = cpuMax;
+        }
+
+        static Placement parse(String spec) {
+            int colon = spec.indexOf(':');
+            if (colon <= 0) {
+                throw invalid(spec, "start with the command types, e.g. 'startTest: cpus=2-7'");
+            }
+            Set<String> commandTypes = new LinkedHashSet<>();
+            for (String commandType : spec.substring(0, colon).split(",")) {
+                if (!commandType.isBlank()) {
+                    commandTypes.add(commandType.trim());
+                }
+            }
+            String cpus = null;
+            Integer nice = null;
+            String ioniceClass = null;
+            String ioniceLevel = null;
+            String cgroup = null;
+            String cpuMax = null;
+            for (String setting : spec.substring(colon + 1).trim().split("\\s+")) {
+                if (setting.isEmpty()) {
+                    continue;
+                }
+                int equals = setting.indexOf('=');
+                String key = equals > 0 ? setting.substring(0, equals) : setting;
+                String value = equals > 0 ? setting.substring(equals + 1) : "";
+                switch (key) {
+                    case "cpus":
+                        if (!CPUS.matcher(value).matches()) {
+                            throw invalid(spec, "cpus is a cpu list like 0-3,6");
+                        }
+                        cpus = value;
+                        break;
+                    case "nice":
+                        try {
+                            nice = Integer.parseInt(value);
+                        } catch (NumberFormatException e) {
+                            nice = Integer.MAX_VALUE;
+                        }
+                        if (nice < -20 || nice > 19) {
+                            throw invalid(spec, "nice is -20 to 19");
+                        }
+                        break;
+                    case "ionice":
+                        String[] parts = value.split(":", 2);
+                        ioniceClass = ioniceClass(spec, parts[0]);
+                        ioniceLevel = parts.length == 2 ? parts[1] : null;
+                        if (ioniceLevel != null && (!ioniceLevel.matches("[0-7]") || "3".equals(ioniceClass))) {
+                            throw invalid(spec, "ionice level is 0 to 7, not for idle");
+                        }
+                        break;
+                    case "cgroup":
+                        if (!CGROUP.matcher(value).matches() || value.contains("..")) {
+                            throw invalid(spec, "cgroup is a path relative to " + CGROUP_ROOT + ", e.g. perfana/helpers");
+                        }
+                        cgroup = value;
+                        break;
+                    case "cpuMax":
+                        cpuMax = cpuMax(spec, value);
+                        break;
+                    default:
+                        throw invalid(spec, "unknown setting [" + key + "], use cpus, nice, ionice, cgroup or cpuMax");
+                }
+            }
+            if (cpuMax != null && cgroup == null) {
+                throw invalid(spec, "cpuMax needs a cgroup");
+            }
+            return new Placement(spec.trim(), Collections.unmodifiableSet(commandTypes), cpus, nice, ioniceClass, ioniceLevel, cgroup, cpuMax);
+        }
+
+        private static String ioniceClass(String spec, String name) {
+            switch (name) {
+                case "realtime": return "1";
+                case "best-effort": return "2";
+                case "idle": return "3";
+                default: throw invalid(spec, "ionice is idle, best-effort[:level] or realtime[:level]");
+            }
+        }
+
+        /**
+         * @return the content for cpu.max: quota and period in microseconds
+         */
+        private static String cpuMax(String spec, String value) {
+            try {
+                if (value.contains("/")) {
+                    String[] parts = value.split("/", 2);
+                    return Long.parseLong(parts[0]) + " " + Long.parseLong(parts[1]);
+                }
+                double cpus = Double.parseDouble(value);
+                if (cpus > 0) {
+                    return Math.round(cpus * CPU_MAX_PERIOD) + " " + CPU_MAX_PERIOD;
+                }
+            } catch (NumberFormatException e) {
+                // invalid below
+            }
+            throw invalid(spec, "cpuMax is a number of cpus like 1.5, or quota/period in microseconds like 150000/100000");
+        }
+
+        private static IllegalArgumentException invalid(String spec, String reason) {
+            return new IllegalArgumentException("Invalid process placement [" + spec + "]: " + reason);
+        }
+
+        List<String> prefix(String searchPath, Path cgroupRoot, EventLogger logger) {
+            List<String> prefix = new ArrayList<>();
+            if (cgroup != null) {
+                Optional<Path> procs = prepareCgroup(cgroupRoot, logger);
+                // the shell moves itself into the cgroup, then becomes the command
+                procs.ifPresent(file -> prefix.addAll(Arrays.asList("sh", "-c", "echo $$ > \"$0\" && exec \"$@\"", file.toString())));
+            }
+            if (cpus != null) {
+                tool("taskset", searchPath, logger).ifPresent(taskset -> prefix.addAll(Arrays.asList(taskset, "-c", cpus)));
+            }
+            if (nice != null) {
+                tool("nice", searchPath, logger).ifPresent(niceTool -> prefix.addAll(Arrays.asList(niceTool, "-n", String.valueOf(nice))));
+            }
+            if (ioniceClass != null) {
+                tool("ionice", searchPath, logger).ifPresent(ionice -> {
+                    prefix.addAll(Arrays.asList(ionice, "-c", ioniceClass));
+                    if (ioniceLevel != null) {
+                        prefix.addAll(Arrays.asList("-n", ioniceLevel));
+                    }
+                });
+            }
+            return Collections.unmodifiableList(prefix);
+        }
+
+        private Optional<String> tool(String name, String searchPath, EventLogger logger) {
+            Optional<String> tool = DirectExec.resolve(name, searchPath);
+            if (tool.isEmpty()) {
+                logger.warn("Process placement [" + spec + "]: " + name + " not found on the PATH, left out");
+            }
+            return tool;
+        }
+
+        /**
+         * @return the cgroup.procs file of the created cgroup, empty when it cannot be created
+         */
+        private Optional<Path> prepareCgroup(Path cgroupRoot, EventLogger logger) {
+            Path group = cgroupRoot.resolve(cgroup);
+            try {
+                Files.createDirectories(group);
+                if (cpuMax != null) {
+                    // the cpu controller has to be enabled in all parents, an error means it already is or is not allowed
+                    for (Path parent = group.getParent(); parent != null && parent.startsWith(cgroupRoot); parent = parent.getParent()) {
+                        enableCpuController(parent);
+                    }
+                    Files.write(group.resolve("cpu.max"), cpuMax.getBytes(StandardCharsets.US_ASCII));
+                }
+                return Optional.of(group.resolve("cgroup.procs"));
+            } catch (IOException | SecurityException e) {
+                logger.warn("Process placement [" + spec + "]: cannot use cgroup [" + group + "], left out: " + e);
+                return Optional.empty();
+            }
+        }
+
+        private static void enableCpuController(Path cgroup) {
+            try {
+                Files.write(cgroup.resolve("cgroup.subtree_control"), "+cpu".getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException e) {
+                // checked by the write of cpu.max
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Placement that = (Placement) o;
+            return spec.equals(that.spec);
+        }
+
+        @Override
+        public int hashCode() {
+            return spec.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return spec;
+        }
+    }
+}
@@ -0,0 +1,525 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.api.EventLogger;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples CPU time, RSS, context switches and bytes read and written of the processes started by
+ * a command runner, including all descendants (e.g. the java process started by the {@code sh -c} wrapper).
+ *
+ * Reads {@code /proc/<pid>/stat}, {@code status} and {@code io}. The files of each process are opened once
+ * and re-read from position 0 into reused buffers, and values are parsed from the bytes. New descendants
+ * are looked up every {@value #DISCOVER_EVERY_SAMPLES} samples via {@link ProcessHandle#descendants()}, which
+ * allocates, as does the liveness check of a process without resident memory.
+ *
+ * A command is added to the summary of its command type after its last process has ended, and is then no
+ * longer tracked: the frequent keep-alive commands do not accumulate.
+ *
+ * Linux only, see {@link #isSupported()}. CPU time assumes the usual 100 clock ticks per second.
+ */
+@ThreadSafe
+class ProcessResourceSampler {
+
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+    private static final int DISCOVER_EVERY_SAMPLES = 10;
+    private static final Path PROC = Paths.get("/proc");
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "command-runner-resource-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final byte[] VM_RSS = "VmRSS:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] VOLUNTARY_CTXT = "voluntary_ctxt_switches:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NON_VOLUNTARY_CTXT = "nonvoluntary_ctxt_switches:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] RCHAR = "rchar:".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WCHAR = "wchar:".getBytes(StandardCharsets.US_ASCII);
+
+    private final String participant;
+    private final EventLogger logger;
+
+    private final Object lock = new Object();
+    @GuardedBy("lock")
+    private final List<TrackedCommand> commands = new ArrayList<>();
+    @GuardedBy("lock")
+    private final Map<String, Summary> summaries = new LinkedHashMap<>();
+    @GuardedBy("lock")
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    @GuardedBy("lock")
+    private final StringBuilder line = new StringBuilder(256);
+    @GuardedBy("lock")
+    private char[] lineChars = new char[256];
+    @GuardedBy("lock")
+    private Writer timeSeries;
+
+    private final ScheduledFuture<?> sampling;
+
+    ProcessResourceSampler(String participant, long intervalMillis, Path timeSeriesFile, EventLogger logger) {
+        this.participant = participant;
+        this.logger = logger;
+        if (timeSeriesFile != null) {
+            try {
+                Path parent = timeSeriesFile.toAbsolutePath().getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
+                }
+                timeSeries = new BufferedWriter(Files.newBufferedWriter(timeSeriesFile, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+                timeSeries.write("timestamp,participant,commandType,rootPid,processes,cpuTimeMs,rssKb,voluntaryCtxSwitches,nonVoluntaryCtxSwitches,readBytes,writeBytes\n");
+            } catch (IOException e) {
+                logger.warn("Cannot write resource time series to " + timeSeriesFile + ": " + e.getMessage());
+                timeSeries = null;
+            }
+        }
+        this.sampling = SCHEDULER.scheduleAtFixedRate(this::sampleAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static boolean isSupported() {
+        return Files.isReadable(PROC.resolve("self").resolve("stat"));
+    }
+
+    void track(long rootPid, String commandType) {
+        synchronized (lock) {
+            // a pre-warmed shell runs several commands in the same process
+            for (int i = 0; i < commands.size(); i++) {
+                TrackedCommand tracked = commands.get(i);
+                if (tracked.rootPid == rootPid && tracked.commandType.equals(commandType)) {
+                    tracked.commands++;
+                    return;
+                }
+            }
+            TrackedCommand command = new TrackedCommand(rootPid, commandType);
+            command.addProcess(rootPid);
+            commands.add(command);
+        }
+    }
+
+    /**
+     * @return number of commands that still have running processes
+     */
+    int trackedCommands() {
+        synchronized (lock) {
+            return commands.size();
+        }
+    }
+
+    private void sampleAll() {
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            for (int i = commands.size() - 1; i >= 0; i--) {
+                TrackedCommand command = commands.get(i);
+                command.sample(now);
+                if (command.finished()) {
+                    retire(command);
+                    commands.remove(i);
+                }
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    private void retire(TrackedCommand command) {
+        summaries.computeIfAbsent(command.commandType, k -> new Summary()).add(command);
+        command.close();
+    }
+
+    /**
+     * Stop sampling, take a last sample and summarize the resource usage per command type.
+     *
+     * @return summary per command type: key is command type + "." + metric
+     */
+    Map<String, String> stop() {
+        sampling.cancel(false);
+        synchronized (lock) {
+            sampleAll();
+            commands.forEach(this::retire);
+            commands.clear();
+            if (timeSeries != null) {
+                try {
+                    timeSeries.close();
+                } catch (IOException e) {
+                    logger.warn("Failed to close resource time series: " + e.getMessage());
+                }
+                timeSeries = null;
+            }
+            Map<String, String> result = new LinkedHashMap<>();
+            summaries.forEach((commandType, summary) -> summary.addTo(commandType, result));
+            summaries.clear();
+            return result;
+        }
+    }
+
+    @GuardedBy("lock")
+    private void writeTimeSeries(long timestamp, TrackedCommand command) {
+        if (timeSeries == null) {
+            return;
+        }
+        line.setLength(0);
+        line.append(timestamp).append(',').append(participant).append(',').append(command.commandType).append(',')
+                .append(command.rootPid).append(',').append(command.liveProcesses()).append(',')
+                .append(command.cpuTicks() * 1000 / CLOCK_TICKS_PER_SECOND).append(',')
+                .append(command.rssKb()).append(',')
+                .append(command.voluntaryCtxSwitches()).append(',')
+                .append(command.nonVoluntaryCtxSwitches()).append(',')
+                .append(command.readBytes()).append(',')
+                .append(command.writeBytes()).append('\n');
+        int length = line.length();
+        if (lineChars.length < length) {
+            lineChars = new char[length * 2];
+        }
+        line.getChars(0, length, lineChars, 0);
+        try {
+            timeSeries.write(lineChars, 0, length);
+        } catch (IOException e) {
+            logger.warn("Failed to write resource time series, stopped writing: " + e.getMessage());
+            timeSeries = null;
+        }
+    }
+
+    /**
+     * Reads the file from position 0 into the shared read buffer.
+     *
+     * @return number of bytes read
+     */
+    @GuardedBy("lock")
+    private int read(FileChannel channel) throws IOException {
+        readBuffer.clear();
+        int total = 0;
+        int read;
+        while ((read = channel.read(readBuffer, total)) > 0) {
+            total += read;
+            if (!readBuffer.hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the number after the given key (e.g. "VmRSS:") in the read buffer, -1 when not found
+     */
+    private static long parseValueAfter(byte[] data, int length, byte[] key) {
+        outer:
+        for (int i = 0; i <= length - key.length; i++) {
+            if (i > 0 && data[i - 1] != '\n') {
+                continue;
+            }
+            for (int k = 0; k < key.length; k++) {
+                if (data[i + k] != key[k]) {
+                    continue outer;
+                }
+            }
+            return parseLong(data, i + key.length, length);
+        }
+        return -1;
+    }
+
+    private static long parseLong(byte[] data, int from, int length) {
+        int i = from;
+        while (i < length && (data[i] == ' ' || data[i] == '\t')) {
+            i++;
+        }
+        long value = 0;
+        while (i < length && data[i] >= '0' && data[i] <= '9') {
+            value = value * 10 + (data[i] - '0');
+            i++;
+        }
+        return value;
+    }
+
+    private final class TrackedCommand {
+        private final long rootPid;
+        private final String commandType;
+        private final List<ProcFiles> processes = new ArrayList<>();
+        private int commands = 1;
+        private int samples = 0;
+
+        // totals of processes that have ended
+        private long retiredCpuTicks;
+        private long retiredVoluntaryCtxSwitches;
+        private long retiredNonVoluntaryCtxSwitches;
+        private long retiredReadBytes;
+        private long retiredWriteBytes;
+        private int processesSeen;
+
+        private long peakRssKb;
+
+        TrackedCommand(long rootPid, String commandType) {
+            this.rootPid = rootPid;
+            this.commandType = commandType;
+        }
+
+        void addProcess(long pid) {
+            for (ProcFiles process : processes) {
+                if (process.pid == pid) {
+                    return;
+                }
+            }
+            try {
+                processes.add(new ProcFiles(pid));
+                processesSeen++;
+            } catch (IOException e) {
+                // process already ended
+            }
+        }
+
+        void sample(long now) {
+            if (samples % DISCOVER_EVERY_SAMPLES == 0) {
+                ProcessHandle.of(rootPid).ifPresent(root -> root.descendants().forEach(child -> addProcess(child.pid())));
+            }
+            samples++;
+            long rss = 0;
+            for (int i = processes.size() - 1; i >= 0; i--) {
+                ProcFiles process = processes.get(i);
+                if (process.sample()) {
+                    rss += process.rssKb;
+                }
+                else {
+                    retiredCpuTicks += process.cpuTicks;
+                    retiredVoluntaryCtxSwitches += process.voluntaryCtxSwitches;
+                    retiredNonVoluntaryCtxSwitches += process.nonVoluntaryCtxSwitches;
+                    retiredReadBytes += process.readBytes;
+                    retiredWriteBytes += process.writeBytes;
+                    process.close();
+                    processes.remove(i);
+                }
+            }
+            peakRssKb = Math.max(peakRssKb, rss);
+            writeTimeSeries(now, this);
+        }
+
+        boolean finished() {
+            return processes.isEmpty();
+        }
+
+        int liveProcesses() {
+            return processes.size();
+        }
+
+        long rssKb() {
+            long rss = 0;
+            for (ProcFiles process : processes) {
+                rss += process.rssKb;
+            }
+            return rss;
+        }
+
+        long cpuTicks() {
+            long total = retiredCpuTicks;
+            for (ProcFiles process : processes) {
+                total += process.cpuTicks;
+            }
+            return total;
+        }
+
+        long voluntaryCtxSwitches() {
+            long total = retiredVoluntaryCtxSwitches;
+            for (ProcFiles process : processes) {
+                total += process.voluntaryCtxSwitches;
+            }
+            return total;
+        }
+
+        long nonVoluntaryCtxSwitches() {
+            long total = retiredNonVoluntaryCtxSwitches;
+            for (ProcFiles process : processes) {
+                total += process.nonVoluntaryCtxSwitches;
+            }
+            return total;
+        }
+
+        long readBytes() {
+            long total = retiredReadBytes;
+            for (ProcFiles process : processes) {
+                total += process.readBytes;
+            }
+            return total;
+        }
+
+        long writeBytes() {
+            long total = retiredWriteBytes;
+            for (ProcFiles process : processes) {
+                total += process.writeBytes;
+            }
+            return total;
+        }
+
+        void close() {
+            processes.forEach(ProcFiles::close);
+        }
+    }
+
+    /**
+     * Open /proc files and last sampled values of one process.
+     */
+    private final class ProcFiles {
+        private final long pid;
+        private final FileChannel stat;
+        private final FileChannel status;
+        // not readable for processes of other users
+        private final FileChannel io;
+
+        private long cpuTicks;
+        private long rssKb;
+        private long voluntaryCtxSwitches;
+        private long nonVoluntaryCtxSwitches;
+        private long readBytes;
+        private long writeBytes;
+
+        ProcFiles(long pid) throws IOException {
+            this.pid = pid;
+            Path dir = PROC.resolve(String.valueOf(pid));
+            this.stat = FileChannel.open(dir.resolve("stat"));
+            FileChannel statusChannel = null;
+            FileChannel ioChannel = null;
+            try {
+                statusChannel = FileChannel.open(dir.resolve("status"));
+                ioChannel = openOptional(dir.resolve("io"));
+            } catch (IOException e) {
+                stat.close();
+                throw e;
+            }
+            this.status = statusChannel;
+            this.io = ioChannel;
+        }
+
+        private FileChannel openOptional(Path path) {
+            try {
+                return FileChannel.open(path);
+            } catch (IOException | SecurityException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return false when the process has ended
+         */
+        boolean sample() {
+            try {
+                byte[] data = readBuffer.array();
+                int length = read(stat);
+                // fields after the command name in parentheses, which can contain spaces
+                int i = length - 1;
+                while (i > 0 && data[i] != ')') {
+                    i--;
+                }
+                // utime and stime are field 14 and 15, the first field after ')' is field 3
+                int field = 2;
+                long utime = 0;
+                long stime = 0;
+                for (i = i + 1; i < length && field < 15; i++) {
+                    if (data[i] == ' ') {
+                        field++;
+                        if (field == 14) {
+                            utime = parseLong(data, i + 1, length);
+                        }
+                        else if (field == 15) {
+                            stime = parseLong(data, i + 1, length);
+                        }
+                    }
+                }
+                cpuTicks = utime + stime;
+
+                length = read(status);
+                rssKb = Math.max(0, parseValueAfter(data, length, VM_RSS));
+                voluntaryCtxSwitches = Math.max(0, parseValueAfter(data, length, VOLUNTARY_CTXT));
+                nonVoluntaryCtxSwitches = Math.max(0, parseValueAfter(data, length, NON_VOLUNTARY_CTXT));
+
+                if (io != null) {
+                    length = read(io);
+                    readBytes = Math.max(0, parseValueAfter(data, length, RCHAR));
+                    writeBytes = Math.max(0, parseValueAfter(data, length, WCHAR));
+                }
+                // a zombie process has no memory left
+                return length > 0 && (rssKb > 0 || ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            closeQuietly(stat);
+            closeQuietly(status);
+            closeQuietly(io);
+        }
+
+        private void closeQuietly(FileChannel channel) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private static final class Summary {
+        private int commands;
+        private int processes;
+        private long cpuTicks;
+        private long peakRssKb;
+        private long voluntaryCtxSwitches;
+        private long nonVoluntaryCtxSwitches;
+        private long readBytes;
+        private long writeBytes;
+
+        void add(TrackedCommand command) {
+            commands += command.commands;
+            processes += command.processesSeen;
+            cpuTicks += command.cpuTicks();
+            peakRssKb = Math.max(peakRssKb, command.peakRssKb);
+            voluntaryCtxSwitches += command.voluntaryCtxSwitches();
+            nonVoluntaryCtxSwitches += command.nonVoluntaryCtxSwitches();
+            readBytes += command.readBytes();
+            writeBytes += command.writeBytes();
+        }
+
+        void addTo(String commandType, Map<String, String> result) {
+            result.put(commandType + ".commands", String.valueOf(commands));
+            result.put(commandType + ".processes", String.valueOf(processes));
+            result.put(commandType + ".cpuTimeMs", String.valueOf(cpuTicks * 1000 / CLOCK_TICKS_PER_SECOND));
+            result.put(commandType + ".peakRssKb", String.valueOf(peakRssKb));
+            result.put(commandType + ".voluntaryCtxSwitches", String.valueOf(voluntaryCtxSwitches));
+            result.put(commandType + ".nonVoluntaryCtxSwitches", String.valueOf(nonVoluntaryCtxSwitches));
+            result.put(commandType + ".readBytes", String.valueOf(readBytes));
+            result.put(commandType + ".writeBytes", String.valueOf(writeBytes));
+        }
+    }
+}
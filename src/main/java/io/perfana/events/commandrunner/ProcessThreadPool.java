@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.ThreadSafe;
+import org.zeroturnaround.exec.ProcessExecutor;
+import org.zeroturnaround.exec.ProcessResult;
+import org.zeroturnaround.exec.StartedProcess;
+import org.zeroturnaround.exec.listener.ProcessListener;
+import org.zeroturnaround.exec.stream.PumpStreamHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Threads used by zt-exec to wait for processes and to pump their output, shared by all command runner events.
+ *
+ * By default zt-exec creates a new executor for each process to wait for it and a new thread for each
+ * stream pump. Here the wait tasks run on one shared executor, and the pump threads come from one
+ * shared thread factory. Virtual threads are used when the JVM supports them (Java 21+), otherwise
+ * the wait tasks run on a bounded cached pool of daemon threads.
+ *
+ * Use system property {@code io.perfana.commandrunner.virtualThreads=false} to disable virtual threads.
+ */
+@ThreadSafe
+class ProcessThreadPool {
+
+    private static final int MAX_WAIT_THREADS = 512;
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    private static final ProcessThreadPool SHARED = new ProcessThreadPool(
+            Boolean.parseBoolean(System.getProperty("io.perfana.commandrunner.virtualThreads", "true")));
+
+    private final boolean virtualThreads;
+    private final ExecutorService waitExecutor;
+    private final ThreadFactory pumpThreadFactory;
+    private final ExecutorService nonClosingWaitExecutor;
+
+    private final AtomicLong threadsCreated = new AtomicLong();
+    private final AtomicInteger activeTasks = new AtomicInteger();
+    private final AtomicInteger peakActiveTasks = new AtomicInteger();
+
+    ProcessThreadPool(boolean useVirtualThreadsIfAvailable) {
+        ThreadFactory virtualThreadFactory = useVirtualThreadsIfAvailable ? createVirtualThreadFactory() : null;
+        ThreadFactory countingVirtualThreadFactory = virtualThreadFactory == null ? null : countingThreadFactory(virtualThreadFactory);
+        ExecutorService virtualThreadExecutor = countingVirtualThreadFactory == null ? null : createThreadPerTaskExecutor(countingVirtualThreadFactory);
+        this.virtualThreads = virtualThreadExecutor != null;
+        if (virtualThreads) {
+            this.pumpThreadFactory = countingVirtualThreadFactory;
+            this.waitExecutor = virtualThreadExecutor;
+        }
+        else {
+            this.pumpThreadFactory = countingThreadFactory(daemonThreadFactory("command-runner-pump-"));
+            this.waitExecutor = new ThreadPoolExecutor(0, MAX_WAIT_THREADS,
+                    IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                    countingThreadFactory(daemonThreadFactory("command-runner-wait-")));
+        }
+        this.nonClosingWaitExecutor = new NonClosingExecutorService(waitExecutor);
+    }
+
+    static ProcessThreadPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * @param onFinish called when the process is finished, or when it could not be started
+     */
+    ProcessExecutor newProcessExecutor(Runnable onFinish) {
+        return new PooledProcessExecutor(onFinish);
+    }
+
+    /**
+     * Start the process of an executor created with {@link #newProcessExecutor(Runnable)}.
+     *
+     * @return completes when the process has ended, before {@code onFinish} is called
+     */
+    ProcessFuture start(ProcessExecutor executor) throws IOException {
+        if (!(executor instanceof PooledProcessExecutor)) {
+            throw new IllegalArgumentException("Not created by this pool: " + executor);
+        }
+        PooledProcessExecutor pooledExecutor = (PooledProcessExecutor) executor;
+        StartedProcess startedProcess;
+        try {
+            startedProcess = pooledExecutor.start();
+        } catch (IOException e) {
+            pooledExecutor.failedToStart(e);
+            throw e;
+        }
+        pooledExecutor.completion.started(startedProcess.getProcess(), startedProcess.getFuture());
+        return pooledExecutor.completion;
+    }
+
+    PumpStreamHandler newPumpStreamHandler(OutputStream out, OutputStream err) {
+        return new PooledPumpStreamHandler(out, err, null);
+    }
+
+    /**
+     * Keeps stdin of the process open: it is handed to {@code stdinReceiver} on start instead of being closed.
+     */
+    PumpStreamHandler newPumpStreamHandler(OutputStream out, OutputStream err, Consumer<OutputStream> stdinReceiver) {
+        return new PooledPumpStreamHandler(out, err, stdinReceiver);
+    }
+
+    /**
+     * @return new (not started) thread for a long-running stream reading task
+     */
+    Thread newThread(Runnable task) {
+        return pumpThreadFactory.newThread(countActive(task));
+    }
+
+    boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    long getThreadsCreated() {
+        return threadsCreated.get();
+    }
+
+    int getActiveTasks() {
+        return activeTasks.get();
+    }
+
+    int getPeakActiveTasks() {
+        return peakActiveTasks.get();
+    }
+
+    String describe() {
+        return "process threads: virtual=" + virtualThreads
+                + " created=" + threadsCreated.get()
+                + " active=" + activeTasks.get()
+                + " peak=" + peakActiveTasks.get();
+    }
+
+    private Runnable countActive(Runnable task) {
+        return () -> {
+            int active = activeTasks.incrementAndGet();
+            peakActiveTasks.accumulateAndGet(active, Math::max);
+            try {
+                task.run();
+            } finally {
+                activeTasks.decrementAndGet();
+            }
+        };
+    }
+
+    private ThreadFactory countingThreadFactory(ThreadFactory factory) {
+        return runnable -> {
+            Thread thread = factory.newThread(runnable);
+            threadsCreated.incrementAndGet();
+            return thread;
+        };
+    }
+
+    private static ThreadFactory daemonThreadFactory(String namePrefix) {
+        AtomicLong counter = new AtomicLong();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Java 21+: {@code Thread.ofVirtual().name(prefix, 0).factory()}, via reflection to stay on Java 11.
+     */
+    private static ThreadFactory createVirtualThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "command-runner-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService createThreadPerTaskExecutor(ThreadFactory threadFactory) {
+        try {
+            Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, threadFactory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * zt-exec calls shutdown on the executor after submitting the wait task: ignore that for the shared executor.
+     */
+    private final class NonClosingExecutorService extends AbstractExecutorService {
+
+        private final ExecutorService delegate;
+
+        NonClosingExecutorService(ExecutorService delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            delegate.execute(countActive(command));
+        }
+
+        @Override
+        public void shutdown() {
+            // shared executor
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return List.of();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+
+    private final class PooledProcessExecutor extends ProcessExecutor {
+
+        private final Runnable onFinish;
+        private final ProcessFuture completion = new ProcessFuture();
+        private volatile Process process;
+
+        PooledProcessExecutor(Runnable onFinish) {
+            this.onFinish = onFinish;
+            addListener(new ProcessListener() {
+                @Override
+                public void afterStart(Process process, ProcessExecutor executor) {
+                    PooledProcessExecutor.this.process = process;
+                }
+            });
+        }
+
+        @Override
+        protected ExecutorService newExecutor(String processName) {
+            return nonClosingWaitExecutor;
+        }
+
+        @Override
+        protected <T> Future<T> invokeSubmit(ExecutorService executor, Callable<T> task) {
+            Callable<T> finishingTask = () -> {
+                try {
+                    T result = task.call();
+                    completion.complete((ProcessResult) result);
+                    return result;
+                } catch (Throwable e) {
+                    completion.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    onFinish.run();
+                }
+            };
+            try {
+                return super.invokeSubmit(executor, finishingTask);
+            } catch (RejectedExecutionException e) {
+                failedToStart(e);
+                throw e;
+            }
+        }
+
+        void failedToStart(Exception e) {
+            Process startedProcess = process;
+            if (startedProcess != null) {
+                startedProcess.destroyForcibly();
+            }
+            completion.completeExceptionally(e);
+            onFinish.run();
+        }
+    }
+
+    private final class PooledPumpStreamHandler extends PumpStreamHandler {
+
+        private final Consumer<OutputStream> stdinReceiver;
+
+        PooledPumpStreamHandler(OutputStream out, OutputStream err, Consumer<OutputStream> stdinReceiver) {
+            super(out, err);
+            this.stdinReceiver = stdinReceiver;
+        }
+
+        @Override
+        public void setProcessInputStream(OutputStream os) {
+            if (stdinReceiver == null) {
+                super.setProcessInputStream(os);
+            }
+            else {
+                stdinReceiver.accept(os);
+            }
+        }
+
+        @Override
+        protected Thread newThread(Runnable task) {
+            return pumpThreadFactory.newThread(countActive(wrapTask(task)));
+        }
+    }
+}
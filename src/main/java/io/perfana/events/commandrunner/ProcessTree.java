@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.Immutable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Stops a process and all its descendants, e.g. the java process of JMeter started via {@code sh -c}.
+ *
+ * First all processes are asked to stop (SIGTERM on Unix). Processes that are still running after
+ * the grace period, including descendants that were started in the meantime, are killed (SIGKILL).
+ */
+final class ProcessTree {
+
+    private static final long POLL_INTERVAL_MILLIS = 10;
+    private static final Path PROC = Paths.get("/proc");
+
+    private ProcessTree() {
+    }
+
+    static Termination terminate(ProcessHandle root, Duration gracePeriod) {
+        long start = System.nanoTime();
+        List<ProcessHandle> processes = withDescendants(root);
+        // descendants first: a parent (e.g. a shell script) might restart a child that stopped
+        for (int i = processes.size() - 1; i >= 0; i--) {
+            processes.get(i).destroy();
+        }
+
+        List<ProcessHandle> alive = awaitExit(processes, gracePeriod);
+        int stopped = processes.size() - alive.size();
+
+        int killed = 0;
+        List<ProcessHandle> survivors = new ArrayList<>();
+        for (ProcessHandle process : alive) {
+            survivors.addAll(withDescendants(process));
+        }
+        survivors = survivors.stream().distinct().collect(Collectors.toList());
+        // children first, so a parent that is still running can reap them
+        for (int i = survivors.size() - 1; i >= 0; i--) {
+            if (survivors.get(i).destroyForcibly()) {
+                killed++;
+            }
+        }
+        List<ProcessHandle> notKilled = awaitExit(survivors, Duration.ofSeconds(1));
+
+        int started = Math.max(0, survivors.size() - alive.size());
+        return new Termination(processes.size() + started, stopped, killed, notKilled.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * @return the process followed by its descendants, parents before children
+     */
+    private static List<ProcessHandle> withDescendants(ProcessHandle process) {
+        List<ProcessHandle> processes = new ArrayList<>();
+        if (process.isAlive()) {
+            processes.add(process);
+        }
+        // breadth first, so parents come before children
+        for (int i = 0; i < processes.size(); i++) {
+            processes.get(i).children().forEach(processes::add);
+        }
+        return processes;
+    }
+
+    /**
+     * @return the processes still running after waiting at most the grace period
+     */
+    private static List<ProcessHandle> awaitExit(List<ProcessHandle> processes, Duration gracePeriod) {
+        long deadline = System.nanoTime() + gracePeriod.toNanos();
+        List<ProcessHandle> running = processes.stream().filter(ProcessTree::isRunning).collect(Collectors.toList());
+        while (!running.isEmpty() && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            running.removeIf(process -> !isRunning(process));
+        }
+        return running;
+    }
+
+    /**
+     * Unlike {@link ProcessHandle#isAlive()}, false for a zombie: a process that has ended but is not reaped
+     * by its parent yet. An orphan is only reaped when init gets to it.
+     */
+    static boolean isRunning(ProcessHandle process) {
+        if (!process.isAlive()) {
+            return false;
+        }
+        Path stat = PROC.resolve(String.valueOf(process.pid())).resolve("stat");
+        try {
+            String content = new String(Files.readAllBytes(stat), StandardCharsets.US_ASCII);
+            // the state is the first field after the command name in parentheses
+            int end = content.lastIndexOf(')');
+            return end < 0 || end + 2 >= content.length() || content.charAt(end + 2) != 'Z';
+        } catch (IOException e) {
+            // no /proc (not Linux) or process is gone
+            return Files.exists(PROC) ? process.isAlive() && Files.exists(stat) : process.isAlive();
+        }
+    }
+
+    @Immutable
+    static final class Termination {
+        private final int processes;
+        private final int stopped;
+        private final int killed;
+        private final int stillRunning;
+        private final long durationMillis;
+
+        Termination(int processes, int stopped, int killed, int stillRunning, long durationMillis) {
+            this.processes = processes;
+            this.stopped = stopped;
+            this.killed = killed;
+            this.stillRunning = stillRunning;
+            this.durationMillis = durationMillis;
+        }
+
+        int getProcesses() {
+            return processes;
+        }
+
+        /**
+         * @return number of processes that stopped within the grace period
+         */
+        int getStopped() {
+            return stopped;
+        }
+
+        int getKilled() {
+            return killed;
+        }
+
+        int getStillRunning() {
+            return stillRunning;
+        }
+
+        long getDurationMillis() {
+            return durationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return processes + " processes: " + stopped + " stopped, " + killed + " killed"
+                    + (stillRunning > 0 ? ", " + stillRunning + " still running" : "")
+                    + " in " + durationMillis + " ms";
+        }
+    }
+}
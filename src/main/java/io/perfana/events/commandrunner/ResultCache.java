@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Results of idempotent commands in a local directory, shared by test runs: when the command, the input files and
+ * the environment variables are the same, the command does not have to run again.
+ *
+ * The key is a SHA-256 of the rendered command, the path and content of each input file (files in a directory
+ * included) and the name and value of each environment variable. An entry is a {@code <key>.result} file with the
+ * exit code and the output lines. A hit touches the entry: when the directory grows over the maximum size,
+ * the least recently used entries are deleted.
+ */
+@ThreadSafe
+class ResultCache {
+
+    static final String SUFFIX = ".result";
+
+    private static final byte STDOUT = 'O';
+    private static final byte STDERR = 'E';
+
+    private final Path dir;
+    private final long maxBytes;
+
+    ResultCache(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    Path getDir() {
+        return dir;
+    }
+
+    /**
+     * @param inputs files or directories, a missing input is part of the key as missing
+     * @param env names and values of the environment variables the command depends on
+     */
+    static String key(String command, List<String> inputs, Map<String, String> env) {
+        MessageDigest digest = sha256();
+        update(digest, "command", command);
+        for (String input : inputs) {
+            Path path = Path.of(input);
+            update(digest, "input", input);
+            if (!Files.exists(path)) {
+                update(digest, "missing", input);
+                continue;
+            }
+            try (Stream<Path> files = Files.walk(path)) {
+                for (Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                    update(digest, "file", path.relativize(file).toString());
+                    try (InputStream in = Files.newInputStream(file)) {
+                        byte[] buffer = new byte[64 * 1024];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            digest.update(buffer, 0, read);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read input [" + input + "]", e);
+            }
+        }
+        for (Map.Entry<String, String> variable : new TreeMap<>(env).entrySet()) {
+            update(digest, "env", variable.getKey() + "=" + variable.getValue());
+        }
+        StringBuilder key = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    private static void update(MessageDigest digest, String kind, String value) {
+        // length prefixed, so "ab" + "c" differs from "a" + "bc"
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update(kind.getBytes(StandardCharsets.US_ASCII));
+        digest.update(Integer.toString(bytes.length).getBytes(StandardCharsets.US_ASCII));
+        digest.update((byte) ':');
+        digest.update(bytes);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @return the stored result, empty when not in the cache or not readable
+     */
+    Optional<Result> lookup(String key) {
+        Path file = dir.resolve(key + SUFFIX);
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // not cached, or evicted by another participant
+            return Optional.empty();
+        }
+        return Result.parse(bytes);
+    }
+
+    /**
+     * @param recordOutput false to only record the exit code
+     */
+    Recorder recorder(String key, boolean recordOutput) {
+        return new Recorder(key, recordOutput);
+    }
+
+    /**
+     * Delete the least recently used entries until the entries fit in the maximum size.
+     *
+     * @return number of deleted entries
+     */
+    int evict() throws IOException {
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(dir)) {
+            entries = files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+        }
+        List<Entry> sorted = new ArrayList<>();
+        long total = 0;
+        for (Path file : entries) {
+            try {
+                Entry entry = new Entry(file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+                sorted.add(entry);
+                total += entry.size;
+            } catch (NoSuchFileException e) {
+                // evicted by another participant
+            }
+        }
+        sorted.sort(Comparator.comparingLong(entry -> entry.lastUsedMillis));
+        int deleted = 0;
+        for (Entry entry : sorted) {
+            if (total <= maxBytes) {
+                break;
+            }
+            if (Files.deleteIfExists(entry.file)) {
+                deleted++;
+            }
+            total -= entry.size;
+        }
+        return deleted;
+    }
+
+    private static final class Entry {
+        private final Path file;
+        private final long size;
+        private final long lastUsedMillis;
+
+        Entry(Path file, long size, long lastUsedMillis) {
+            this.file = file;
+            this.size = size;
+            this.lastUsedMillis = lastUsedMillis;
+        }
+    }
+
+    /**
+     * Records the output lines of a command, {@link #store(int)} writes the entry.
+     * Output over the maximum size of the cache is not recorded, the entry then only has the exit code.
+     */
+    @ThreadSafe
+    final class Recorder implements PrefixedRedirectOutput.LineListener {
+
+        private final String key;
+        @GuardedBy("this")
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        @GuardedBy("this")
+        private boolean recordOutput;
+
+        private Recorder(String key, boolean recordOutput) {
+            this.key = key;
+            this.recordOutput = recordOutput;
+        }
+
+        @Override
+        public synchronized void onLine(byte[] bytes, int offset, int length, PrefixedRedirectOutput.RedirectType redirectType) {
+            if (!recordOutput) {
+                return;
+            }
+            if (output.size() + length + 2 > maxBytes) {
+                recordOutput = false;
+                output.reset();
+                return;
+            }
+            output.write(redirectType == PrefixedRedirectOutput.RedirectType.STDERR ? STDERR : STDOUT);
+            output.write(' ');
+            output.write(bytes, offset, length);
+            output.write('\n');
+        }
+
+        /**
+         * Write the entry: to a temporary file first, so other participants never read a partial entry.
+         */
+        void store(int exitCode) throws IOException {
+            Files.createDirectories(dir);
+            Path file = dir.resolve(key + SUFFIX);
+            Path temp = Files.createTempFile(dir, key, ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    out.write(("exitCode " + exitCode + "\n").getBytes(StandardCharsets.US_ASCII));
+                    synchronized (this) {
+                        output.writeTo(out);
+                    }
+                }
+                try {
+                    Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * A stored result: the exit code and the output lines in the order they were printed.
+     */
+    static final class Result {
+        private final int exitCode;
+        private final List<Line> lines;
+
+        private Result(int exitCode, List<Line> lines) {
+            this.exitCode = exitCode;
+            this.lines = lines;
+        }
+
+        static Optional<Result> parse(byte[] bytes) {
+            int end = indexOf(bytes, 0);
+            String header = new String(bytes, 0, end, StandardCharsets.US_ASCII);
+            if (!header.startsWith("exitCode ")) {
+                return Optional.empty();
+            }
+            int exitCode;
+            try {
+                exitCode = Integer.parseInt(header.substring("exitCode ".length()));
+            } catch (NumberFormatException e) {
+                return Optional.empty();
+            }
+            List<Line> lines = new ArrayList<>();
+            for (int start = end + 1; start < bytes.length; start = end + 1) {
+                end = indexOf(bytes, start);
+                if (end - start < 2) {
+                    return Optional.empty();
+                }
+                PrefixedRedirectOutput.RedirectType type = bytes[start] == STDERR
+                        ? PrefixedRedirectOutput.RedirectType.STDERR
+                        : PrefixedRedirectOutput.RedirectType.STDOUT;
+                byte[] line = new byte[end - start - 1];
+                System.arraycopy(bytes, start + 2, line, 0, line.length - 1);
+                line[line.length - 1] = '\n';
+                lines.add(new Line(type, line));
+            }
+            return Optional.of(new Result(exitCode, lines));
+        }
+
+        private static int indexOf(byte[] bytes, int from) {
+            for (int i = from; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    return i;
+                }
+            }
+            return bytes.length;
+        }
+
+        int getExitCode() {
+            return exitCode;
+        }
+
+        List<Line> getLines() {
+            return lines;
+        }
+    }
+
+    static final class Line {
+        private final PrefixedRedirectOutput.RedirectType type;
+        private final byte[] bytes;
+
+        Line(PrefixedRedirectOutput.RedirectType type, byte[] bytes) {
+            this.type = type;
+            this.bytes = bytes;
+        }
+
+        PrefixedRedirectOutput.RedirectType getType() {
+            return type;
+        }
+
+        /**
+         * @return the line, with a newline at the end
+         */
+        byte[] getBytes() {
+            return bytes;
+        }
+    }
+}
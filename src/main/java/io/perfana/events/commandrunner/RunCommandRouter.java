@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.api.EventLogger;
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Routes {@code run-command} events to the command runners they are for.
+ *
+ * The event scheduler calls every command runner for every event. Shared by the command runners of a factory,
+ * the settings of an event are parsed once into a {@link Route}, and each command runner only checks if
+ * the route is for it. The {@code name} setting is a comma separated list of:
+ *
+ * <ul>
+ *     <li>a name of a command runner, e.g. {@code k8sCommand}</li>
+ *     <li>a glob with {@code *} and {@code ?}, e.g. {@code k6-*}</li>
+ *     <li>a group, e.g. {@code @load}: the command runners with {@code load} in their {@code groups}</li>
+ * </ul>
+ *
+ * Without a {@code name}, the event is for all command runners.
+ */
+@ThreadSafe
+class RunCommandRouter {
+
+    static final String NAME = "name";
+
+    // a schedule has hundreds of events, not more: only a guard against unbounded growth
+    private static final int MAX_ROUTES = 10_000;
+
+    private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> participants = new ConcurrentHashMap<>();
+
+    void register(String participant, List<String> groups) {
+        participants.put(participant, Set.copyOf(groups));
+    }
+
+    /**
+     * @return the route of the event with these settings, parsed on first use
+     */
+    Route route(String settings, EventLogger logger) {
+        String key = settings == null ? "" : settings;
+        Route route = routes.get(key);
+        if (route != null) {
+            return route;
+        }
+        if (routes.size() >= MAX_ROUTES) {
+            routes.clear();
+        }
+        Route parsed = Route.parse(key);
+        Route existing = routes.putIfAbsent(key, parsed);
+        if (existing != null) {
+            return existing;
+        }
+        // reported once per event instead of an ignore by every command runner
+        if (participants.entrySet().stream().noneMatch(participant -> parsed.isFor(participant.getKey(), participant.getValue()))) {
+            logger.warn("No command runner matches name [" + parsed.getSettings().get(NAME) + "] of run-command event with settings [" + key + "], known: " + participants.keySet());
+        }
+        return parsed;
+    }
+
+    @Immutable
+    static final class Route {
+        private final Map<String, String> settings;
+        private final boolean all;
+        private final Set<String> names;
+        private final Set<String> groups;
+        private final List<Pattern> globs;
+
+        private Route(Map<String, String> settings, boolean all, Set<String> names, Set<String> groups, List<Pattern> globs) {
+            this.settings = settings;
+            this.all = all;
+            this.names = names;
+            this.groups = groups;
+            this.globs = globs;
+        }
+
+        static Route parse(String settings) {
+            Map<String, String> parsed = Collections.unmodifiableMap(CommandRunnerEvent.parseSettings(settings));
+            String name = parsed.get(NAME);
+            if (name == null) {
+                return new Route(parsed, true, Set.of(), Set.of(), List.of());
+            }
+            Set<String> names = new HashSet<>();
+            Set<String> groups = new HashSet<>();
+            List<Pattern> globs = new ArrayList<>();
+            for (String target : name.split(",")) {
+                String trimmed = target.trim();
+                if (trimmed.startsWith("@")) {
+                    groups.add(trimmed.substring(1));
+                }
+                else if (trimmed.contains("*") || trimmed.contains("?")) {
+                    globs.add(glob(trimmed));
+                }
+                else {
+                    names.add(trimmed);
+                }
+            }
+            return new Route(parsed, false, Set.copyOf(names), Set.copyOf(groups), List.copyOf(globs));
+        }
+
+        private static Pattern glob(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (String part : glob.split("(?=[*?])|(?<=[*?])")) {
+                if (part.equals("*")) {
+                    regex.append(".*");
+                }
+                else if (part.equals("?")) {
+                    regex.append('.');
+                }
+                else if (!part.isEmpty()) {
+                    regex.append(Pattern.quote(part));
+                }
+            }
+            return Pattern.compile(regex.toString());
+        }
+
+        boolean isFor(String participant, Set<String> participantGroups) {
+            if (all || names.contains(participant)) {
+                return true;
+            }
+            for (String group : participantGroups) {
+                if (groups.contains(group)) {
+                    return true;
+                }
+            }
+            for (Pattern glob : globs) {
+                if (glob.matcher(participant).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the parsed settings, unmodifiable
+         */
+        Map<String, String> getSettings() {
+            return settings;
+        }
+    }
+}
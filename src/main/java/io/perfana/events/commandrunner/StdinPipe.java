@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-memory pipe from the stdout of one participant's command to the stdin of another one's.
+ *
+ * The writer blocks when the buffer is full, like a pipe between processes, so a fast producer
+ * is slowed down to the speed of the consumer instead of using more memory. After the reader is
+ * closed, e.g. because the consuming process ended, writes are discarded so the producer never hangs.
+ * After the writer is closed the reader gets the remaining bytes and then the end of the stream.
+ */
+@ThreadSafe
+class StdinPipe {
+
+    private final String name;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    @GuardedBy("lock")
+    private final byte[] buffer;
+    @GuardedBy("lock")
+    private int head;
+    @GuardedBy("lock")
+    private int count;
+    @GuardedBy("lock")
+    private boolean writerClosed;
+    @GuardedBy("lock")
+    private boolean readerClosed;
+
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+    private final AtomicLong transferredBytes = new AtomicLong();
+    private final AtomicLong discardedBytes = new AtomicLong();
+
+    StdinPipe(String name, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity of stdin pipe should be at least 1: " + capacity);
+        }
+        this.name = name;
+        this.buffer = new byte[capacity];
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Only one process reads the pipe.
+     *
+     * @return true for the first caller
+     */
+    boolean claim() {
+        return claimed.compareAndSet(false, true);
+    }
+
+    boolean isWriterClosed() {
+        lock.lock();
+        try {
+            return writerClosed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getTransferredBytes() {
+        return transferredBytes.get();
+    }
+
+    long getDiscardedBytes() {
+        return discardedBytes.get();
+    }
+
+    void write(byte[] bytes, int offset, int length) throws InterruptedIOException {
+        int written = 0;
+        lock.lock();
+        try {
+            while (written < length) {
+                while (count == buffer.length && !readerClosed && !writerClosed) {
+                    notFull.await();
+                }
+                if (readerClosed || writerClosed) {
+                    discardedBytes.addAndGet(length - written);
+                    return;
+                }
+                int tail = (head + count) % buffer.length;
+                int chunk = Math.min(length - written, Math.min(buffer.length - count, buffer.length - tail));
+                System.arraycopy(bytes, offset + written, buffer, tail, chunk);
+                count += chunk;
+                written += chunk;
+                notEmpty.signal();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing to stdin pipe " + name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of bytes read, -1 at the end of the stream
+     */
+    int read(byte[] bytes, int offset, int length) throws InterruptedIOException {
+        if (length == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            while (count == 0 && !writerClosed && !readerClosed) {
+                notEmpty.await();
+            }
+            if (count == 0 || readerClosed) {
+                return -1;
+            }
+            int chunk = Math.min(length, Math.min(count, buffer.length - head));
+            System.arraycopy(buffer, head, bytes, offset, chunk);
+            head = (head + chunk) % buffer.length;
+            count -= chunk;
+            transferredBytes.addAndGet(chunk);
+            notFull.signal();
+            return chunk;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading from stdin pipe " + name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * No more bytes: the reader gets the end of the stream after the buffered bytes.
+     */
+    void closeWriter() {
+        lock.lock();
+        try {
+            writerClosed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Nobody reads anymore: buffered and new bytes are discarded.
+     */
+    void closeReader() {
+        lock.lock();
+        try {
+            readerClosed = true;
+            discardedBytes.addAndGet(count);
+            count = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    InputStream inputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int read = StdinPipe.this.read(one, 0, 1);
+                return read < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                return StdinPipe.this.read(bytes, offset, length);
+            }
+
+            @Override
+            public void close() {
+                closeReader();
+            }
+        };
+    }
+
+    OutputStream outputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                StdinPipe.this.write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                StdinPipe.this.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close() {
+                closeWriter();
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Connects the participants that read stdin from another participant, see {@link StdinSource}.
+ *
+ * The consumer connects when it is created, so the output of the producer is not lost when
+ * the producer starts first: it fills the pipe and then waits for the consumer.
+ */
+@ThreadSafe
+class StdinPipes {
+
+    private final ConcurrentMap<Producer, List<StdinPipe>> pipes = new ConcurrentHashMap<>();
+
+    StdinPipe connect(String testRunId, String consumer, StdinSource.Source source, int capacity) {
+        Producer producer = new Producer(testRunId, source.getParticipant(), source.getParticipantCommandType());
+        StdinPipe pipe = new StdinPipe(producer + " -> " + consumer, capacity);
+        pipes.computeIfAbsent(producer, key -> new CopyOnWriteArrayList<>()).add(pipe);
+        return pipe;
+    }
+
+    void disconnect(String testRunId, StdinSource.Source source, StdinPipe pipe) {
+        pipe.closeReader();
+        Producer producer = new Producer(testRunId, source.getParticipant(), source.getParticipantCommandType());
+        pipes.computeIfPresent(producer, (key, connected) -> {
+            connected.remove(pipe);
+            return connected.isEmpty() ? null : connected;
+        });
+    }
+
+    /**
+     * @return the pipes that still take the output of this command of the producer
+     */
+    List<StdinPipe> from(String testRunId, String participant, String commandType) {
+        List<StdinPipe> connected = pipes.get(new Producer(testRunId, participant, commandType));
+        if (connected == null) {
+            return List.of();
+        }
+        List<StdinPipe> open = new ArrayList<>(connected.size());
+        for (StdinPipe pipe : connected) {
+            if (!pipe.isWriterClosed()) {
+                open.add(pipe);
+            }
+        }
+        return open;
+    }
+
+    /**
+     * @return output stream that writes to all pipes and closes their writers on close
+     */
+    static OutputStream outputTo(List<StdinPipe> pipes) {
+        if (pipes.size() == 1) {
+            return pipes.get(0).outputStream();
+        }
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                for (StdinPipe pipe : pipes) {
+                    pipe.write(bytes, offset, length);
+                }
+            }
+
+            @Override
+            public void close() {
+                pipes.forEach(StdinPipe::closeWriter);
+            }
+        };
+    }
+
+    private static final class Producer {
+        private final String testRunId;
+        private final String participant;
+        private final String commandType;
+
+        private Producer(String testRunId, String participant, String commandType) {
+            this.testRunId = testRunId;
+            this.participant = participant;
+            this.commandType = commandType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Producer producer = (Producer) o;
+            return testRunId.equals(producer.testRunId) && participant.equals(producer.participant) && commandType.equals(producer.commandType);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(testRunId, participant, commandType);
+        }
+
+        @Override
+        public String toString() {
+            return participant + "/" + commandType;
+        }
+    }
+}
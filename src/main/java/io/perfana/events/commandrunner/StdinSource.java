@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.Immutable;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Where the stdin of the commands comes from, per command type, e.g.
+ * {@code startTest: file=/data/users.csv} and {@code startTest: participant=tokenGenerator/beforeTestNoWait}.
+ *
+ * <ul>
+ *     <li>{@code file}: the rest of the line is the path of the file</li>
+ *     <li>{@code participant}: the stdout of the command of another participant, by default of its {@code startTest} command,
+ *     streamed through a bounded {@link StdinPipe}</li>
+ * </ul>
+ *
+ * The command types are the hooks ({@code beforeTest}, {@code startTest}, {@code keepAlive}, ...) or {@code *}.
+ * The first source with the command type is used.
+ */
+@Immutable
+class StdinSource {
+
+    static final StdinSource NONE = new StdinSource(Collections.emptyList());
+
+    static final String DEFAULT_PARTICIPANT_COMMAND_TYPE = "startTest";
+
+    private final List<Source> sources;
+
+    private StdinSource(List<Source> sources) {
+        this.sources = Collections.unmodifiableList(new ArrayList<>(sources));
+    }
+
+    /**
+     * @throws IllegalArgumentException for an invalid source
+     */
+    static StdinSource parse(List<String> specs) {
+        if (specs == null || specs.isEmpty()) {
+            return NONE;
+        }
+        List<Source> sources = new ArrayList<>();
+        for (String spec : specs) {
+            sources.add(Source.parse(spec));
+        }
+        return new StdinSource(sources);
+    }
+
+    boolean isEmpty() {
+        return sources.isEmpty();
+    }
+
+    Optional<Source> forCommandType(String commandType) {
+        Source any = null;
+        for (Source source : sources) {
+            if (source.commandTypes.contains(commandType)) {
+                return Optional.of(source);
+            }
+            if (any == null && source.commandTypes.contains("*")) {
+                any = source;
+            }
+        }
+        return Optional.ofNullable(any);
+    }
+
+    /**
+     * @return the sources that read from another participant
+     */
+    List<Source> participantSources() {
+        List<Source> participantSources = new ArrayList<>();
+        for (Source source : sources) {
+            if (source.file == null) {
+                participantSources.add(source);
+            }
+        }
+        return participantSources;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        StdinSource that = (StdinSource) o;
+        return sources.equals(that.sources);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(sources);
+    }
+
+    @Override
+    public String toString() {
+        return sources.toString();
+    }
+
+    @Immutable
+    static final class Source {
+        private final String spec;
+        private final Set<String> commandTypes;
+        private final Path file;
+        private final String participant;
+        private final String participantCommandType;
+
+        private Source(String spec, Set<String> commandTypes, Path file, String participant, String participantCommandType) {
+            this.spec = spec;
+            this.commandTypes = commandTypes;
+            this.file = file;
+            this.participant = participant;
+            this.participantCommandType = participantCommandType;
+        }
+
+        static Source parse(String spec) {
+            int colon = spec.indexOf(':');
+            if (colon <= 0) {
+                throw invalid(spec, "start with the command types, e.g. 'startTest: file=/data/users.csv'");
+            }
+            Set<String> commandTypes = new LinkedHashSet<>();
+            for (String commandType : spec.substring(0, colon).split(",")) {
+                if (!commandType.isBlank()) {
+                    commandTypes.add(commandType.trim());
+                }
+            }
+            String setting = spec.substring(colon + 1).trim();
+            int equals = setting.indexOf('=');
+            String key = equals > 0 ? setting.substring(0, equals).trim() : setting;
+            String value = equals > 0 ? setting.substring(equals + 1).trim() : "";
+            if (value.isEmpty()) {
+                throw invalid(spec, "use file=<path> or participant=<name>[/<command type>]");
+            }
+            switch (key) {
+                case "file":
+                    return new Source(spec, Collections.unmodifiableSet(commandTypes), Paths.get(value), null, null);
+                case "participant":
+                    int slash = value.indexOf('/');
+                    String participant = slash > 0 ? value.substring(0, slash) : value;
+                    String participantCommandType = slash > 0 ? value.substring(slash + 1) : DEFAULT_PARTICIPANT_COMMAND_TYPE;
+                    if (participant.isBlank() || participantCommandType.isBlank() || participantCommandType.equals("*")) {
+                        throw invalid(spec, "participant is <name>[/<command type>]");
+                    }
+                    return new Source(spec, Collections.unmodifiableSet(commandTypes), null, participant, participantCommandType);
+                default:
+                    throw invalid(spec, "unknown source '" + key + "', use file or participant");
+            }
+        }
+
+        private static IllegalArgumentException invalid(String spec, String reason) {
+            return new IllegalArgumentException("Invalid stdin source [" + spec + "]: " + reason);
+        }
+
+        /**
+         * @return the file to read, null when it reads from a participant
+         */
+        Path getFile() {
+            return file;
+        }
+
+        String getParticipant() {
+            return participant;
+        }
+
+        String getParticipantCommandType() {
+            return participantCommandType;
+        }
+
+        Set<String> getCommandTypes() {
+            return commandTypes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return spec.equals(((Source) o).spec);
+        }
+
+        @Override
+        public int hashCode() {
+            return spec.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return spec;
+        }
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import io.perfana.eventscheduler.api.CustomEvent;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.lang.ref.Cleaner;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.StringJoiner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A schedule of {@code run-command} events from a file or an expression. The events are not held in memory:
+ * each iteration reads the file or computes the events again, so a day long schedule with tens of thousands
+ * of events only takes the memory of one event at a time.
+ *
+ * File lines, empty lines and lines starting with {@code #} are skipped:
+ * <ul>
+ *     <li>csv: {@code 5m,scale to 3,name=k8sCommand;replicas=3}, the settings can contain commas</li>
+ *     <li>jsonl ({@code .jsonl} or {@code .json} file): {@code {"at":"5m","description":"scale to 3","settings":{"name":"k8sCommand","replicas":3}}},
+ *     settings can also be a string</li>
+ * </ul>
+ *
+ * Expression: {@code every 30s from 5m to 55m ramp replicas 1 to 10}: an event every 30 seconds, with a
+ * {@code replicas} setting that goes from 1 in the first to 10 in the last event. {@code from} is optional, default 0.
+ *
+ * The densest window of the validation is one of the windows of equal size from the start of the test.
+ *
+ * Times are ISO-8601 durations ({@code PT30S}) or compact durations ({@code 30s}, {@code 1h30m}, {@code 500ms}).
+ *
+ * A file iterator closes the file at the end, on {@link FileIterator#close()}, or when it is no longer
+ * reachable: an iteration that is abandoned halfway does not keep the file open.
+ */
+@ThreadSafe
+class StreamingSchedule extends AbstractList<CustomEvent> {
+
+    static final String RUN_COMMAND = "run-command";
+
+    private static final Pattern COMPACT_DURATION = Pattern.compile("(\\d+)(ms|s|m|h|d)");
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private static final Pattern EXPRESSION = Pattern.compile(
+            "every\\s+(\\S+)(?:\\s+from\\s+(\\S+))?\\s+to\\s+(\\S+)(?:\\s+ramp\\s+(\\w+)\\s+(-?\\d+)\\s+to\\s+(-?\\d+))?\\s*");
+
+    private final Source source;
+
+    @GuardedBy("this")
+    private Validation validation;
+    // for sequential get(index) calls
+    @GuardedBy("this")
+    private Iterator<CustomEvent> cursor;
+    @GuardedBy("this")
+    private int cursorIndex;
+
+    private StreamingSchedule(Source source) {
+        this.source = source;
+    }
+
+    interface Source {
+        Iterator<CustomEvent> open();
+
+        String describe();
+    }
+
+    static StreamingSchedule file(Path file) {
+        boolean json = file.getFileName().toString().endsWith(".jsonl") || file.getFileName().toString().endsWith(".json");
+        return new StreamingSchedule(new Source() {
+            @Override
+            public Iterator<CustomEvent> open() {
+                return new FileIterator(file, json);
+            }
+
+            @Override
+            public String describe() {
+                return "file [" + file + "]";
+            }
+        });
+    }
+
+    /**
+     * @param settings settings of each event, e.g. {@code name=k8sCommand;app=myapp}, the ramp setting is added
+     * @param description description of each event
+     */
+    static StreamingSchedule expression(String expression, String settings, String description) {
+        Matcher matcher = EXPRESSION.matcher(expression.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid schedule expression [" + expression + "], use e.g. [every 30s from 5m to 55m ramp replicas 1 to 10]");
+        }
+        Duration interval = parseTime(matcher.group(1));
+        Duration from = matcher.group(2) == null ? Duration.ZERO : parseTime(matcher.group(2));
+        Duration to = parseTime(matcher.group(3));
+        if (interval.isZero() || interval.isNegative() || to.compareTo(from) < 0) {
+            throw new IllegalArgumentException("Invalid schedule expression [" + expression + "], the interval should be positive and from before to");
+        }
+        long count = to.minus(from).toMillis() / interval.toMillis() + 1;
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many events in schedule expression [" + expression + "]: " + count);
+        }
+        String rampName = matcher.group(4);
+        long rampFrom = rampName == null ? 0 : Long.parseLong(matcher.group(5));
+        long rampTo = rampName == null ? 0 : Long.parseLong(matcher.group(6));
+        String baseSettings = settings == null ? "" : settings.trim();
+
+        return new StreamingSchedule(new Source() {
+            @Override
+            public Iterator<CustomEvent> open() {
+                return new Iterator<>() {
+                    private long index = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < count;
+                    }
+
+                    @Override
+                    public CustomEvent next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        StringJoiner eventSettings = new StringJoiner(";");
+                        if (!baseSettings.isEmpty()) {
+                            eventSettings.add(baseSettings);
+                        }
+                        if (rampName != null) {
+                            long value = count == 1 ? rampTo : rampFrom + Math.round((double) (rampTo - rampFrom) * index / (count - 1));
+                            eventSettings.add(rampName + "=" + value);
+                        }
+                        Duration at = from.plus(interval.multipliedBy(index));
+                        index++;
+                        return new CustomEvent(at, RUN_COMMAND, description, eventSettings.toString());
+                    }
+                };
+            }
+
+            @Override
+            public String describe() {
+                return "expression [" + expression + "]";
+            }
+        });
+    }
+
+    /**
+     * @param time ISO-8601 like {@code PT30S} or compact like {@code 1h30m}
+     */
+    static Duration parseTime(String time) {
+        String trimmed = time.trim();
+        if (trimmed.startsWith("P") || trimmed.startsWith("-P")) {
+            try {
+                return Duration.parse(trimmed);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid time [" + time + "]", e);
+            }
+        }
+        Matcher matcher = COMPACT_DURATION.matcher(trimmed);
+        Duration duration = Duration.ZERO;
+        int end = 0;
+        while (matcher.find() && matcher.start() == end) {
+            long amount = Long.parseLong(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "ms": duration = duration.plusMillis(amount); break;
+                case "s": duration = duration.plusSeconds(amount); break;
+                case "m": duration = duration.plusMinutes(amount); break;
+                case "h": duration = duration.plusHours(amount); break;
+                default: duration = duration.plusDays(amount);
+            }
+            end = matcher.end();
+        }
+        if (end == 0 || end != trimmed.length()) {
+            throw new IllegalArgumentException("Invalid time [" + time + "], use e.g. [PT30S], [30s] or [1h30m]");
+        }
+        return duration;
+    }
+
+    String describe() {
+        return source.describe();
+    }
+
+    /**
+     * Read all events once, without keeping them.
+     *
+     * @param window size of the window to find the densest part of the schedule
+     * @throws IllegalArgumentException when an event cannot be read
+     */
+    synchronized Validation validate(Duration window) {
+        if (validation == null || !validation.window.equals(window)) {
+            validation = validate(source.open(), window);
+        }
+        return validation;
+    }
+
+    @Override
+    public Iterator<CustomEvent> iterator() {
+        return source.open();
+    }
+
+    @Override
+    public synchronized int size() {
+        if (validation == null) {
+            validation = validate(source.open(), Duration.ofSeconds(10));
+        }
+        return validation.count;
+    }
+
+    @Override
+    public synchronized CustomEvent get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Index " + index + " of schedule with " + size() + " events");
+        }
+        if (cursor == null || index < cursorIndex) {
+            close(cursor);
+            cursor = source.open();
+            cursorIndex = 0;
+        }
+        while (cursorIndex < index) {
+            cursor.next();
+            cursorIndex++;
+        }
+        cursorIndex++;
+        CustomEvent event = cursor.next();
+        if (cursorIndex == size()) {
+            close(cursor);
+            cursor = null;
+        }
+        return event;
+    }
+
+    private static Validation validate(Iterator<CustomEvent> events, Duration window) {
+        try {
+            return Validation.of(events, window);
+        } finally {
+            close(events);
+        }
+    }
+
+    private static void close(Iterator<CustomEvent> events) {
+        if (events instanceof Closeable) {
+            try {
+                ((Closeable) events).close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Number of events, first and last event time and the window with the most events.
+     */
+    static final class Validation {
+        private final Duration window;
+        private final int count;
+        private final Duration first;
+        private final Duration last;
+        private final Duration densestStart;
+        private final int densestCount;
+
+        private Validation(Duration window, int count, Duration first, Duration last, Duration densestStart, int densestCount) {
+            this.window = window;
+            this.count = count;
+            this.first = first;
+            this.last = last;
+            this.densestStart = densestStart;
+            this.densestCount = densestCount;
+        }
+
+        private static Validation of(Iterator<CustomEvent> events, Duration window) {
+            long windowMillis = Math.max(1, window.toMillis());
+            // number of events per window, only windows with events: at most a day with a 10 second window is 8640 windows
+            Map<Long, Integer> windows = new HashMap<>();
+            int count = 0;
+            Duration first = null;
+            Duration last = null;
+            while (events.hasNext()) {
+                Duration at = events.next().getDuration();
+                if (at.isNegative()) {
+                    throw new IllegalArgumentException("Negative time " + at + " of event " + (count + 1));
+                }
+                count++;
+                first = first == null || at.compareTo(first) < 0 ? at : first;
+                last = last == null || at.compareTo(last) > 0 ? at : last;
+                windows.merge(at.toMillis() / windowMillis, 1, Integer::sum);
+            }
+            long densest = 0;
+            int densestCount = 0;
+            for (Map.Entry<Long, Integer> entry : windows.entrySet()) {
+                if (entry.getValue() > densestCount || (entry.getValue() == densestCount && entry.getKey() < densest)) {
+                    densest = entry.getKey();
+                    densestCount = entry.getValue();
+                }
+            }
+            return new Validation(window, count, first, last, Duration.ofMillis(densest * windowMillis), densestCount);
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        Duration getDensestStart() {
+            return densestStart;
+        }
+
+        int getDensestCount() {
+            return densestCount;
+        }
+
+        @Override
+        public String toString() {
+            if (count == 0) {
+                return "no events";
+            }
+            return count + " events from " + first + " to " + last + ", densest window of " + window + " at " + densestStart + " with " + densestCount + " events";
+        }
+    }
+
+    /**
+     * Reads one line at a time, closes the file at the end, on close or when the iterator is garbage collected.
+     */
+    private static final class FileIterator implements Iterator<CustomEvent>, Closeable {
+        private final Path file;
+        private final boolean json;
+        private final BufferedReader reader;
+        private final Cleaner.Cleanable cleanable;
+        private int lineNumber = 0;
+        private CustomEvent next;
+        private boolean closed = false;
+
+        FileIterator(Path file, boolean json) {
+            this.file = file;
+            this.json = json;
+            try {
+                this.reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read schedule file [" + file + "]", e);
+            }
+            this.cleanable = CLEANER.register(this, new CloseReader(reader));
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            // runs the close of the reader at most once
+            cleanable.clean();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (closed) {
+                return false;
+            }
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    String trimmed = line.trim();
+                    if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                        next = parseLine(trimmed);
+                        return true;
+                    }
+                }
+                close();
+                return false;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read schedule file [" + file + "]", e);
+            }
+        }
+
+        @Override
+        public CustomEvent next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            CustomEvent event = next;
+            next = null;
+            return event;
+        }
+
+        private CustomEvent parseLine(String line) {
+            try {
+                return json ? parseJson(line) : parseCsv(line);
+            } catch (IllegalArgumentException | JsonParseException | IllegalStateException e) {
+                throw new IllegalArgumentException("Invalid line " + lineNumber + " in schedule file [" + file + "]: " + e.getMessage(), e);
+            }
+        }
+
+        private static CustomEvent parseCsv(String line) {
+            String[] columns = line.split(",", 3);
+            if (columns.length < 2) {
+                throw new IllegalArgumentException("use time,description[,settings]");
+            }
+            return new CustomEvent(parseTime(columns[0]), RUN_COMMAND, columns[1].trim(), columns.length == 3 ? columns[2].trim() : "");
+        }
+
+        private static CustomEvent parseJson(String line) {
+            JsonObject object = JsonParser.parseString(line).getAsJsonObject();
+            JsonElement at = object.get("at");
+            if (at == null) {
+                throw new IllegalArgumentException("missing \"at\"");
+            }
+            JsonElement description = object.get("description");
+            JsonElement settings = object.get("settings");
+            String settingsText;
+            if (settings == null) {
+                settingsText = "";
+            }
+            else if (settings.isJsonObject()) {
+                StringJoiner joiner = new StringJoiner(";");
+                for (Map.Entry<String, JsonElement> setting : settings.getAsJsonObject().entrySet()) {
+                    joiner.add(setting.getKey() + "=" + setting.getValue().getAsString());
+                }
+                settingsText = joiner.toString();
+            }
+            else {
+                settingsText = settings.getAsString();
+            }
+            return new CustomEvent(parseTime(at.getAsString()), RUN_COMMAND, description == null ? "" : description.getAsString(), settingsText);
+        }
+    }
+
+    /**
+     * Does not refer to the iterator, so the iterator can become unreachable.
+     */
+    private static final class CloseReader implements Runnable {
+        private final BufferedReader reader;
+
+        CloseReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public void run() {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // nothing left to read
+            }
+        }
+    }
+}
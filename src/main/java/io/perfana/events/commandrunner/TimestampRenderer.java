@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.function.LongSupplier;
+
+/**
+ * Renders the current local time as {@code HH:mm:ss.SSS} directly into a byte array.
+ *
+ * The {@code HH:mm:ss.} part is only recalculated when the second changes, the
+ * milliseconds are written as digits. Rendering within the same second does not allocate.
+ */
+@NotThreadSafe
+class TimestampRenderer {
+
+    static final int LENGTH = "HH:mm:ss.SSS".length();
+
+    private static final int SECONDS_LENGTH = "HH:mm:ss.".length();
+
+    private final ZoneRules zoneRules;
+    private final LongSupplier millisClock;
+
+    private final byte[] secondsPart = new byte[SECONDS_LENGTH];
+    private long cachedEpochSecond = Long.MIN_VALUE;
+
+    TimestampRenderer() {
+        this(ZoneId.systemDefault(), System::currentTimeMillis);
+    }
+
+    TimestampRenderer(ZoneId zone, LongSupplier millisClock) {
+        this.zoneRules = zone.getRules();
+        this.millisClock = millisClock;
+    }
+
+    /**
+     * @return the position in dest right after the rendered timestamp
+     */
+    int render(byte[] dest, int pos) {
+        long now = millisClock.getAsLong();
+        long epochSecond = Math.floorDiv(now, 1000);
+        if (epochSecond != cachedEpochSecond) {
+            renderSecondsPart(epochSecond);
+        }
+        System.arraycopy(secondsPart, 0, dest, pos, SECONDS_LENGTH);
+        int millis = Math.floorMod(now, 1000);
+        dest[pos + 9] = (byte) ('0' + millis / 100);
+        dest[pos + 10] = (byte) ('0' + (millis / 10) % 10);
+        dest[pos + 11] = (byte) ('0' + millis % 10);
+        return pos + LENGTH;
+    }
+
+    private void renderSecondsPart(long epochSecond) {
+        int offsetSeconds = zoneRules.getOffset(Instant.ofEpochSecond(epochSecond)).getTotalSeconds();
+        int secondOfDay = (int) Math.floorMod(epochSecond + offsetSeconds, 86_400L);
+        writeTwoDigits(secondOfDay / 3600, 0);
+        secondsPart[2] = ':';
+        writeTwoDigits((secondOfDay / 60) % 60, 3);
+        secondsPart[5] = ':';
+        writeTwoDigits(secondOfDay % 60, 6);
+        secondsPart[8] = '.';
+        cachedEpochSecond = epochSecond;
+    }
+
+    private void writeTwoDigits(int value, int pos) {
+        secondsPart[pos] = (byte) ('0' + value / 10);
+        secondsPart[pos + 1] = (byte) ('0' + value % 10);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.log.EventLoggerStdOut;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+
+import static io.perfana.events.commandrunner.AsyncOutputPipeline.OverflowPolicy.BLOCK;
+import static io.perfana.events.commandrunner.AsyncOutputPipeline.OverflowPolicy.DROP_NEWEST;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AsyncOutputPipelineTest {
+
+    private static final String NL = System.lineSeparator();
+
+    @Test
+    void blockKeepsAllLinesInOrder() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        AsyncOutputPipeline pipeline = new AsyncOutputPipeline("test", 4, BLOCK, EventLoggerStdOut.INSTANCE);
+        OutputStream stream = pipeline.streamTo(sink);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            String line = "line " + i + NL;
+            expected.append(line);
+            stream.write(line.getBytes(StandardCharsets.UTF_8));
+        }
+        pipeline.close();
+
+        assertEquals(expected.toString(), sink.toString(StandardCharsets.UTF_8));
+        assertEquals(0, pipeline.getDroppedLines());
+    }
+
+    @Test
+    void dropNewestWhenSinkIsStuck() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(b, off, len);
+            }
+        };
+        AsyncOutputPipeline pipeline = new AsyncOutputPipeline("test", 2, DROP_NEWEST, EventLoggerStdOut.INSTANCE);
+        OutputStream stream = pipeline.streamTo(sink);
+
+        // must not block even though the sink does not accept anything
+        for (int i = 0; i < 100; i++) {
+            stream.write(("line " + i + NL).getBytes(StandardCharsets.UTF_8));
+        }
+        release.countDown();
+        pipeline.close();
+
+        long written = sink.toString(StandardCharsets.UTF_8).lines().count();
+        assertTrue(pipeline.getDroppedLines() > 0);
+        assertEquals(100, written + pipeline.getDroppedLines());
+    }
+}
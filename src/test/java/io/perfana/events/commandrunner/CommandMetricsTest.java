@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.log.EventLoggerStdOut;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static io.perfana.events.commandrunner.PrefixedRedirectOutput.RedirectType.STDOUT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommandMetricsTest {
+
+    @Test
+    void histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.recordNanos(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMaxMicros());
+        long p50 = histogram.percentileMicros(0.5);
+        assertTrue(p50 >= 500 && p50 <= 500 * 1.125, "p50: " + p50);
+        long p99 = histogram.percentileMicros(0.99);
+        assertTrue(p99 >= 990 && p99 <= 1000, "p99: " + p99);
+
+        for (long micros : new long[] { 0, 7, 8, 15, 16, 1023, 1024, Long.MAX_VALUE / 1000 }) {
+            int bucket = LatencyHistogram.bucket(micros);
+            assertTrue(LatencyHistogram.upperBound(bucket) >= micros, "upper bound of " + micros);
+            assertTrue(bucket == 0 || LatencyHistogram.upperBound(bucket - 1) < micros, "lower bound of " + micros);
+        }
+    }
+
+    @Test
+    void summaryAndPrometheusEndpoint() throws IOException {
+        CommandMetrics metrics = new CommandMetrics("myEvent");
+        CommandMetrics.CommandTypeMetrics keepAlive = metrics.commandType("keepAlive");
+        keepAlive.started(TimeUnit.MILLISECONDS.toNanos(2));
+        keepAlive.ended(TimeUnit.MILLISECONDS.toNanos(30), 0);
+        keepAlive.started(TimeUnit.MILLISECONDS.toNanos(2));
+        keepAlive.ended(TimeUnit.MILLISECONDS.toNanos(30), 1);
+        new PrefixedRedirectOutput("p: ", new ByteArrayOutputStream(), STDOUT, null, OutputPolicy.PASS_THROUGH, keepAlive.output(STDOUT))
+                .write("hello\n".getBytes(StandardCharsets.UTF_8));
+
+        Map<String, String> summary = metrics.summary();
+        assertEquals("2", summary.get("keepAlive.commands"));
+        assertEquals("1", summary.get("keepAlive.exitCode.1"));
+        assertEquals("1", summary.get("keepAlive.stdoutLines"));
+        assertEquals("6", summary.get("keepAlive.stdoutBytes"));
+        assertEquals("30.000", summary.get("keepAlive.durationMillis.p50"));
+
+        MetricsEndpoint endpoint = MetricsEndpoint.open(0, metrics, EventLoggerStdOut.INSTANCE);
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + endpoint.getPort() + MetricsEndpoint.PATH).openConnection();
+            assertEquals(200, connection.getResponseCode());
+            String text;
+            try (InputStream in = connection.getInputStream()) {
+                text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            List<String> lines = List.of(text.split("\n"));
+            assertTrue(lines.contains("# TYPE command_runner_command_duration_seconds summary"), text);
+            assertTrue(lines.contains("command_runner_command_duration_seconds_count{participant=\"myEvent\",command=\"keepAlive\"} 2"), text);
+            assertTrue(lines.contains("command_runner_commands_total{participant=\"myEvent\",command=\"keepAlive\",exit_code=\"1\"} 1"), text);
+            assertTrue(lines.contains("command_runner_output_lines_total{participant=\"myEvent\",command=\"keepAlive\",stream=\"stdout\"} 1"), text);
+        } finally {
+            endpoint.release(metrics);
+        }
+        int port = endpoint.getPort();
+        assertThrows(IOException.class, () -> new URL("http://localhost:" + port + MetricsEndpoint.PATH).openConnection().getInputStream());
+    }
+}
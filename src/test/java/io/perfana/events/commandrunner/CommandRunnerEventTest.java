@@ -16,14 +16,28 @@
 package io.perfana.events.commandrunner;
 
 import io.perfana.eventscheduler.EventMessageBusSimple;
+import io.perfana.eventscheduler.api.CustomEvent;
 import io.perfana.eventscheduler.api.config.TestConfig;
+import io.perfana.eventscheduler.api.message.EventMessage;
 import io.perfana.eventscheduler.api.message.EventMessageBus;
+import io.perfana.eventscheduler.exception.EventSchedulerRuntimeException;
+import io.perfana.eventscheduler.exception.handler.StopTestRunException;
 import io.perfana.eventscheduler.log.EventLoggerStdOut;
 import org.junit.jupiter.api.Test;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class CommandRunnerEventTest {
 
@@ -59,6 +73,562 @@ class CommandRunnerEventTest {
 
     }
 
+    @Test
+    void persistentKeepAliveRequestsStop() {
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent2");
+        eventConfig.setContinueOnKeepAliveParticipant(true);
+        eventConfig.setPersistentKeepAlive(true);
+        eventConfig.setOnKeepAlive("test -f /tmp/__testRunId__.does-not-exist");
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        assertThrows(StopTestRunException.class, event::keepAlive);
+        // second check runs in the same worker
+        assertThrows(StopTestRunException.class, event::keepAlive);
+        event.afterTest();
+    }
+
+    @Test
+    void keepAliveThresholdRequestsStop() {
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent6");
+        eventConfig.setOnKeepAlive("echo tps=120 errors_pct=7.5%");
+        eventConfig.setKeepAliveThresholds(List.of("errors_pct > 5"));
+
+        List<EventMessage> messages = new CopyOnWriteArrayList<>();
+        EventMessageBus messageBus = new EventMessageBusSimple();
+        messageBus.addReceiver(messages::add);
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), messageBus, EventLoggerStdOut.INSTANCE);
+        StopTestRunException exception = assertThrows(StopTestRunException.class, event::keepAlive);
+        assertTrue(exception.getMessage().contains("errors_pct > 5 (errors_pct=7.5)"), exception.getMessage());
+
+        EventMessage samples = messages.stream()
+                .filter(m -> "Keep-alive samples".equals(m.getMessage()))
+                .findFirst().orElseThrow();
+        assertEquals("120", samples.getVariables().get("tps"));
+        event.afterTest();
+    }
+
+    @Test
+    void lateKeepAliveFailureRequestsStop() throws Exception {
+        Path dir = Files.createTempDirectory("keep-alive");
+        Path slow = dir.resolve("slow");
+        Path release = dir.resolve("release");
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent15");
+        eventConfig.setContinueOnKeepAliveParticipant(true);
+        eventConfig.setAdaptiveKeepAliveTimeout(true);
+        // a slow check runs until released, longer than the adaptive wait
+        eventConfig.setOnKeepAlive("if [ -f " + slow + " ]; then while [ ! -f " + release + " ]; do sleep 0.05; done; exit 3; fi");
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        event.keepAlive();
+
+        Files.writeString(slow, "slow");
+        event.keepAlive();
+        Files.writeString(release, "release");
+
+        // skipped while the late check is still running, its exit code is evaluated at the tick after it ended
+        StopTestRunException stop = null;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (stop == null && System.currentTimeMillis() < deadline) {
+            try {
+                event.keepAlive();
+                Thread.sleep(20);
+            } catch (StopTestRunException e) {
+                stop = e;
+            }
+        }
+        assertNotNull(stop, "late check failure requests stop");
+        event.afterTest();
+        for (Path file : List.of(slow, release)) {
+            Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    void lateKeepAliveFailureAfterLastKeepAlive() throws Exception {
+        Path dir = Files.createTempDirectory("keep-alive");
+        Path slow = dir.resolve("slow");
+        Path release = dir.resolve("release");
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent16");
+        eventConfig.setAdaptiveKeepAliveTimeout(true);
+        eventConfig.setOnKeepAlive("if [ -f " + slow + " ]; then while [ ! -f " + release + " ]; do sleep 0.05; done; exit 3; fi");
+
+        List<EventMessage> messages = new CopyOnWriteArrayList<>();
+        EventMessageBus messageBus = new EventMessageBusSimple();
+        messageBus.addReceiver(messages::add);
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), messageBus, EventLoggerStdOut.INSTANCE);
+        event.keepAlive();
+        Files.writeString(slow, "slow");
+        event.keepAlive();
+        Files.writeString(release, "release");
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (event.isKeepAliveCheckRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        event.afterTest();
+        assertTrue(messages.stream().anyMatch(m -> m.getMessage().startsWith("Late keep-alive check failed with exit code 3")),
+                "late failure is reported at the end of the test");
+        for (Path file : List.of(slow, release)) {
+            Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    void slowKeepAliveCheckIsNotStartedTwice() throws Exception {
+        Path dir = Files.createTempDirectory("keep-alive");
+        Path slow = dir.resolve("slow");
+        Path release = dir.resolve("release");
+        Path runs = dir.resolve("runs");
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent7");
+        eventConfig.setAdaptiveKeepAliveTimeout(true);
+        eventConfig.setOnKeepAlive("echo run >> " + runs + "; if [ -f " + slow + " ]; then while [ ! -f " + release + " ]; do sleep 0.05; done; fi");
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        event.keepAlive();
+
+        // fast first check: the next keep-alive does not wait for the slow check until the timeout
+        Files.writeString(slow, "slow");
+        event.keepAlive();
+
+        // check is still running: skip
+        event.keepAlive();
+        assertEquals(2, Files.readAllLines(runs).size());
+
+        Files.writeString(release, "release");
+        event.afterTest();
+        for (Path file : List.of(slow, release, runs)) {
+            Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    void scheduledEventInPrewarmedShell() throws Exception {
+        Path result = Files.createTempFile("scheduled", ".txt");
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent3");
+        eventConfig.setPrewarmedShells(1);
+        eventConfig.setOnScheduledEvent("echo __word__ __testRunId__ > " + result);
+
+        List<EventMessage> messages = new CopyOnWriteArrayList<>();
+        EventMessageBus messageBus = new EventMessageBusSimple();
+        messageBus.addReceiver(messages::add);
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().testRunId("run-1").build().toContext(), messageBus, EventLoggerStdOut.INSTANCE);
+        event.beforeTest();
+        for (int i = 0; i < 100 && event.idlePrewarmedShells() == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, event.idlePrewarmedShells());
+        event.customEvent(new CustomEvent(Duration.ZERO, "run-command", "say hello", "word=hello"));
+
+        EventMessage started = messages.stream()
+                .filter(m -> "Started scheduled event command".equals(m.getMessage()))
+                .findFirst().orElseThrow();
+        assertEquals("true", started.getVariables().get("prewarmedShell"));
+
+        for (int i = 0; i < 50 && Files.size(result) == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals("hello run-1", Files.readString(result).trim());
+        event.afterTest();
+        Files.delete(result);
+    }
+
+    @Test
+    void concurrentAfterTestHooks() {
+        CommandRunnerEventFactory factory = new CommandRunnerEventFactory();
+        List<CommandRunnerEvent> events = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+            eventConfig.setName("slowTeardown" + i);
+            eventConfig.setConcurrentHooks(true);
+            eventConfig.setOnAfterTest("sleep 1");
+            events.add((CommandRunnerEvent) factory.create(eventConfig.toContext(), TestConfig.builder().testRunId("concurrent").build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE));
+        }
+
+        long start = System.nanoTime();
+        events.forEach(CommandRunnerEvent::afterTest);
+        long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(durationMillis >= 1000, "last participant waits for all hooks: " + durationMillis);
+        assertTrue(durationMillis < 2500, "hooks run at the same time: " + durationMillis);
+    }
+
+    @Test
+    void beforeTestDependencies() throws Exception {
+        Path dir = Files.createTempDirectory("dependencies");
+        CommandRunnerEventFactory factory = new CommandRunnerEventFactory();
+        List<EventMessage> messages = new CopyOnWriteArrayList<>();
+        EventMessageBus messageBus = new EventMessageBusSimple();
+        messageBus.addReceiver(messages::add);
+
+        // called first by the scheduler, but has to wait for the other two
+        CommandRunnerEventConfig load = new CommandRunnerEventConfig();
+        load.setName("load");
+        load.setDependsOn(List.of("db", "cache"));
+        load.setOnBeforeTest("cat " + dir.resolve("db") + " " + dir.resolve("cache") + " > " + dir.resolve("load"));
+        CommandRunnerEventConfig db = new CommandRunnerEventConfig();
+        db.setName("db");
+        db.setOnBeforeTest("sleep 1; echo db > " + dir.resolve("db"));
+        CommandRunnerEventConfig cache = new CommandRunnerEventConfig();
+        cache.setName("cache");
+        cache.setOnBeforeTest("sleep 1; echo cache > " + dir.resolve("cache"));
+
+        List<CommandRunnerEvent> events = new ArrayList<>();
+        for (CommandRunnerEventConfig eventConfig : List.of(load, db, cache)) {
+            events.add((CommandRunnerEvent) factory.create(eventConfig.toContext(), TestConfig.builder().testRunId("dependencies").build().toContext(), messageBus, EventLoggerStdOut.INSTANCE));
+        }
+
+        long start = System.nanoTime();
+        events.forEach(CommandRunnerEvent::beforeTest);
+        long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(List.of("db", "cache"), Files.readAllLines(dir.resolve("load")));
+        assertTrue(durationMillis < 2500, "independent participants run at the same time: " + durationMillis);
+        EventMessage criticalPath = messages.stream()
+                .filter(m -> m.getMessage().startsWith("beforeTest critical path"))
+                .findFirst().orElseThrow();
+        assertTrue(criticalPath.getVariables().get("criticalPath").contains(" -> load "), criticalPath.getMessage());
+        for (String name : List.of("db", "cache", "load")) {
+            Files.delete(dir.resolve(name));
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    void unknownDependency() {
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent9");
+        eventConfig.setDependsOn(List.of("missing"));
+        eventConfig.setOnBeforeTest("echo never");
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        EventSchedulerRuntimeException exception = assertThrows(EventSchedulerRuntimeException.class, event::beforeTest);
+        assertTrue(exception.getMessage().contains("Unknown dependency missing"), exception.getMessage());
+    }
+
+    @Test
+    void dependencyReadyOnGo() throws Exception {
+        Path dir = Files.createTempDirectory("dependencies");
+        CommandRunnerEventFactory factory = new CommandRunnerEventFactory();
+        CommandRunnerEventConfig load = new CommandRunnerEventConfig();
+        load.setName("load");
+        load.setDependsOn(List.of("db"));
+        load.setOnBeforeTest("cat " + dir.resolve("db") + " > " + dir.resolve("load"));
+        // no before test command: only ready when the go matcher matches
+        CommandRunnerEventConfig db = new CommandRunnerEventConfig();
+        db.setName("db");
+        db.setOnBeforeTestNoWait("sleep 1; echo db > " + dir.resolve("db") + "; echo db started; sleep 5");
+        db.setOutputMatchers(List.of("go:literal:db started"));
+
+        List<CommandRunnerEvent> events = new ArrayList<>();
+        for (CommandRunnerEventConfig eventConfig : List.of(load, db)) {
+            events.add((CommandRunnerEvent) factory.create(eventConfig.toContext(), TestConfig.builder().testRunId("go-dependency").build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE));
+        }
+        events.forEach(CommandRunnerEvent::beforeTest);
+
+        assertEquals(List.of("db"), Files.readAllLines(dir.resolve("load")));
+        events.forEach(CommandRunnerEvent::afterTest);
+        for (String name : List.of("db", "load")) {
+            Files.delete(dir.resolve(name));
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    void failedDependency() throws Exception {
+        Path dir = Files.createTempDirectory("dependencies");
+        CommandRunnerEventFactory factory = new CommandRunnerEventFactory();
+        CommandRunnerEventConfig load = new CommandRunnerEventConfig();
+        load.setName("load");
+        load.setDependsOn(List.of("db"));
+        load.setOnBeforeTest("touch " + dir.resolve("load"));
+        CommandRunnerEventConfig db = new CommandRunnerEventConfig();
+        db.setName("db");
+        db.setOnBeforeTest("exit 3");
+
+        List<CommandRunnerEvent> events = new ArrayList<>();
+        for (CommandRunnerEventConfig eventConfig : List.of(load, db)) {
+            events.add((CommandRunnerEvent) factory.create(eventConfig.toContext(), TestConfig.builder().testRunId("failed-dependency").build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE));
+        }
+        assertThrows(EventSchedulerRuntimeException.class, () -> events.forEach(CommandRunnerEvent::beforeTest));
+        assertFalse(Files.exists(dir.resolve("load")));
+        Files.delete(dir);
+    }
+
+    @Test
+    void dependencyNeverReady() {
+        CommandRunnerEventFactory factory = new CommandRunnerEventFactory();
+        CommandRunnerEventConfig load = new CommandRunnerEventConfig();
+        load.setName("load");
+        load.setDependsOn(List.of("db"));
+        load.setDependsOnTimeoutSeconds(1);
+        load.setOnBeforeTest("echo load");
+        CommandRunnerEventConfig db = new CommandRunnerEventConfig();
+        db.setName("db");
+        db.setOnBeforeTest("echo db starting");
+        db.setOutputMatchers(List.of("go:literal:db started"));
+
+        List<CommandRunnerEvent> events = new ArrayList<>();
+        for (CommandRunnerEventConfig eventConfig : List.of(load, db)) {
+            events.add((CommandRunnerEvent) factory.create(eventConfig.toContext(), TestConfig.builder().testRunId("dependency-never-ready").build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE));
+        }
+        long start = System.nanoTime();
+        EventSchedulerRuntimeException exception = assertThrows(EventSchedulerRuntimeException.class, () -> events.forEach(CommandRunnerEvent::beforeTest));
+        assertTrue(exception.getMessage().contains("dependsOnTimeoutSeconds"), exception.getMessage());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        events.forEach(CommandRunnerEvent::afterTest);
+    }
+
+    @Test
+    void afterTestTimeout() {
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent4");
+        eventConfig.setOnAfterTest("sleep 10");
+        eventConfig.setOnAfterTestTimeoutSeconds(1);
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        long start = System.nanoTime();
+        EventSchedulerRuntimeException exception = assertThrows(EventSchedulerRuntimeException.class, event::afterTest);
+        assertTrue(exception.getMessage().contains("timed out"), exception.getMessage());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    void fanOutAfterTest() {
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent5");
+        eventConfig.setFanOutTargets(List.of("ok1", "bad", "slow", "ok2"));
+        eventConfig.setFanOutParallelism(2);
+        eventConfig.setFanOutTimeoutSeconds(1);
+        eventConfig.setOnAfterTest("if [ __target__ = slow ]; then sleep 10; fi; test __target__ != bad");
+
+        List<EventMessage> messages = new CopyOnWriteArrayList<>();
+        EventMessageBus messageBus = new EventMessageBusSimple();
+        messageBus.addReceiver(messages::add);
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), messageBus, EventLoggerStdOut.INSTANCE);
+        long start = System.nanoTime();
+        EventSchedulerRuntimeException exception = assertThrows(EventSchedulerRuntimeException.class, event::afterTest);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertTrue(exception.getMessage().contains("2 of 4 targets succeeded"), exception.getMessage());
+        assertTrue(exception.getMessage().contains("bad (exit code 1"), exception.getMessage());
+        assertTrue(exception.getMessage().contains("slow (timed out"), exception.getMessage());
+
+        EventMessage results = messages.stream()
+                .filter(m -> m.getMessage().startsWith("Fan-out afterTest"))
+                .findFirst().orElseThrow();
+        assertEquals("false", results.getVariables().get("success"));
+        assertEquals("0", results.getVariables().get("ok2.exitCode"));
+        assertEquals("1", results.getVariables().get("bad.exitCode"));
+    }
+
+    @Test
+    void fanOutHookTimeout() {
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent5");
+        eventConfig.setFanOutTargets(List.of("ok", "slow", "later"));
+        eventConfig.setFanOutParallelism(1);
+        eventConfig.setFanOutTimeoutSeconds(30);
+        eventConfig.setOnAfterTestTimeoutSeconds(1);
+        eventConfig.setOnAfterTest("if [ __target__ = slow ]; then sleep 30; fi");
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        long start = System.nanoTime();
+        EventSchedulerRuntimeException exception = assertThrows(EventSchedulerRuntimeException.class, event::afterTest);
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        assertTrue(exception.getMessage().contains("Fan-out afterTest timed out after 1 seconds"), exception.getMessage());
+        assertTrue(exception.getMessage().contains("1 of 3 targets succeeded"), exception.getMessage());
+        assertTrue(exception.getMessage().contains("slow (timed out after 1 seconds"), exception.getMessage());
+        assertTrue(exception.getMessage().contains("later (not started: timed out after 1 seconds"), exception.getMessage());
+    }
+
+    @Test
+    void directExec() throws Exception {
+        Path result = Files.createTempFile("direct", ".txt");
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent8");
+        eventConfig.setDirectExec(true);
+        // no shell: the arguments reach sh as they are
+        eventConfig.setOnBeforeTest("sh -c 'echo \"$1 $2\" > " + result + "' sh __testRunId__ \"a  b\"");
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().testRunId("run-2").build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        event.beforeTest();
+        assertEquals("run-2 a  b", Files.readString(result).trim());
+        event.afterTest();
+        Files.delete(result);
+    }
+
+    @Test
+    void beforeTestResultCache() throws Exception {
+        Path dir = Files.createTempDirectory("result-cache");
+        Path runs = dir.resolve("runs.txt");
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent10");
+        eventConfig.setResultCacheDir(dir.resolve("cache").toString());
+        eventConfig.setOnBeforeTest("echo run >> " + runs + "; echo unpacked data set");
+        eventConfig.setOutputMatchers(List.of("message:literal:unpacked data set"));
+
+        for (String testRunId : List.of("run-1", "run-2")) {
+            List<EventMessage> messages = new CopyOnWriteArrayList<>();
+            EventMessageBus messageBus = new EventMessageBusSimple();
+            messageBus.addReceiver(messages::add);
+            CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().testRunId(testRunId).build().toContext(), messageBus, EventLoggerStdOut.INSTANCE);
+            event.beforeTest();
+            // the replayed output is matched as well
+            assertTrue(messages.stream().anyMatch(m -> m.getMessage().equals("unpacked data set")), testRunId);
+            event.afterTest();
+        }
+        assertEquals(List.of("run"), Files.readAllLines(runs));
+    }
+
+    @Test
+    void processPlacement() throws Exception {
+        Path result = Files.createTempFile("nice", ".txt");
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent11");
+        eventConfig.setProcessPlacements(List.of("beforeTest: nice=7"));
+        eventConfig.setOnBeforeTest("nice > " + result);
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        event.beforeTest();
+        assertEquals("7", Files.readString(result).trim());
+        event.afterTest();
+        Files.delete(result);
+    }
+
+    @Test
+    void processPlacementOfKeepAliveWorker() throws Exception {
+        Path result = Files.createTempFile("nice", ".txt");
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent14");
+        eventConfig.setPersistentKeepAlive(true);
+        eventConfig.setProcessPlacements(List.of("keepAlive: nice=7"));
+        eventConfig.setOnKeepAlive("nice > " + result);
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        event.keepAlive();
+        assertEquals("7", Files.readString(result).trim());
+        event.afterTest();
+        Files.delete(result);
+    }
+
+    @Test
+    void stdinFromFile() throws Exception {
+        Path input = Files.createTempFile("stdin", ".csv");
+        Path result = Files.createTempFile("stdin", ".txt");
+        Files.write(input, List.of("user1,token1", "user2,token2"));
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent12");
+        eventConfig.setStdinSources(List.of("beforeTest: file=" + input));
+        eventConfig.setOnBeforeTest("wc -l > " + result);
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        event.beforeTest();
+        assertEquals("2", Files.readString(result).trim());
+        event.afterTest();
+        Files.delete(input);
+        Files.delete(result);
+    }
+
+    @Test
+    void stdinFromParticipant() throws Exception {
+        Path result = Files.createTempFile("pipe", ".txt");
+        CommandRunnerEventFactory factory = new CommandRunnerEventFactory();
+        CommandRunnerEventConfig generator = new CommandRunnerEventConfig();
+        generator.setName("generator");
+        generator.setOnStartTest("seq 1 100000");
+        CommandRunnerEventConfig parser = new CommandRunnerEventConfig();
+        parser.setName("parser");
+        // much smaller than the output of the generator: it has to wait for the parser
+        parser.setStdinPipeBufferKb(1);
+        parser.setStdinSources(List.of("startTest: participant=generator"));
+        parser.setOnStartTest("wc -l > " + result + ".tmp && mv " + result + ".tmp " + result);
+
+        List<CommandRunnerEvent> events = new ArrayList<>();
+        for (CommandRunnerEventConfig eventConfig : List.of(generator, parser)) {
+            events.add((CommandRunnerEvent) factory.create(eventConfig.toContext(), TestConfig.builder().testRunId("pipe").build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE));
+        }
+        events.forEach(CommandRunnerEvent::startTest);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (Files.size(result) == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("100000", Files.readString(result).trim());
+        events.forEach(CommandRunnerEvent::afterTest);
+        Files.delete(result);
+    }
+
+    @Test
+    void stdinFromBeforeTestNoWait() throws Exception {
+        Path result = Files.createTempFile("pipe", ".txt");
+        CommandRunnerEventFactory factory = new CommandRunnerEventFactory();
+        CommandRunnerEventConfig generator = new CommandRunnerEventConfig();
+        generator.setName("tokenGenerator");
+        generator.setOnBeforeTestNoWait("seq 1 1000");
+        CommandRunnerEventConfig parser = new CommandRunnerEventConfig();
+        parser.setName("parser");
+        parser.setStdinSources(List.of("startTest: participant=tokenGenerator/beforeTestNoWait"));
+        parser.setOnStartTest("wc -l > " + result + ".tmp && mv " + result + ".tmp " + result);
+
+        CommandRunnerEvent generatorEvent = (CommandRunnerEvent) factory.create(generator.toContext(), TestConfig.builder().testRunId("pipe-no-wait").build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        CommandRunnerEvent parserEvent = (CommandRunnerEvent) factory.create(parser.toContext(), TestConfig.builder().testRunId("pipe-no-wait").build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        generatorEvent.beforeTest();
+        parserEvent.startTest();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (Files.size(result) == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals("1000", Files.readString(result).trim());
+        generatorEvent.afterTest();
+        parserEvent.afterTest();
+        Files.delete(result);
+    }
+
+    @Test
+    void hookFailsAtMaxConcurrentCommands() {
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent13");
+        eventConfig.setMaxConcurrentCommands(1);
+        eventConfig.setOnBeforeTestNoWait("sleep 2");
+        eventConfig.setOnBeforeTest("echo not started");
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        EventSchedulerRuntimeException exception = assertThrows(EventSchedulerRuntimeException.class, event::beforeTest);
+        assertTrue(exception.getMessage().contains("maxConcurrentCommands"), exception.getMessage());
+        event.afterTest();
+    }
+
+    @Test
+    void abortStopsAsyncOutput() {
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("myEvent14");
+        eventConfig.setAsyncOutput(true);
+        eventConfig.setOnBeforeTest("echo async output");
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), new EventMessageBusSimple(), EventLoggerStdOut.INSTANCE);
+        event.beforeTest();
+        assertTrue(asyncOutputWriterAlive("myEvent14"));
+        event.abortTest();
+        assertFalse(asyncOutputWriterAlive("myEvent14"));
+    }
+
+    private static boolean asyncOutputWriterAlive(String name) {
+        return Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(thread -> thread.getName().equals("async-output-" + name) && thread.isAlive());
+    }
+
     @Test
     void testCommandSplit() {
         List<String> commandList = CommandRunnerEvent.createCommandList("abc def 123  \"333\"");
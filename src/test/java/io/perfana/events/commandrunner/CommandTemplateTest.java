@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommandTemplateTest {
+
+    @Test
+    void render() {
+        CommandTemplate template = CommandTemplate.compile("kubectl -n __namespace__ scale --replicas=__replicas__ deployment __app__ # __testRunId__");
+        assertEquals(List.of("namespace", "replicas", "app", "testRunId"), template.getVariableNames());
+        Map<String, String> variables = Map.of("namespace", "ns", "replicas", "3", "app", "my_app", "testRunId", "run-1");
+        assertEquals("kubectl -n ns scale --replicas=3 deployment my_app # run-1", template.render(variables));
+    }
+
+    @Test
+    void valuesAreInsertedAsIs() {
+        CommandTemplate template = CommandTemplate.compile("echo __password__ __path__");
+        assertEquals("echo pa$$word$1 c:\\temp", template.render(Map.of("password", "pa$$word$1", "path", "c:\\temp")));
+    }
+
+    @Test
+    void missingVariables() {
+        CommandTemplate template = CommandTemplate.compile("scale __app__ to __replicas__");
+        IllegalArgumentException exception = assertThrows(IllegalArgumentException.class, () -> template.render(Map.of("app", "myapp")));
+        assertTrue(exception.getMessage().contains("[replicas]"), exception.getMessage());
+    }
+
+    @Test
+    void onlyKnownVariables() {
+        CommandTemplate template = CommandTemplate.compile("python __init__.py __testRunId__ x__testRunId__y __ __1", Set.of("testRunId"));
+        assertEquals("python __init__.py run-1 xrun-1y __ __1", template.render(Map.of("testRunId", "run-1")));
+    }
+
+    @Test
+    void noPlaceholders() {
+        assertEquals("echo a__ b", CommandTemplate.compile("echo a__ b").render(Map.of()));
+        assertTrue(CommandTemplate.compile("").isEmpty());
+        assertEquals("", CommandTemplate.compile(null).render(Map.of()));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DirectExecTest {
+
+    private static final Map<String, String> ENV = Map.of("HOST", "app-1", "SPACED", "a b", "EMPTY", "");
+
+    @Test
+    void tokenize() {
+        assertEquals(List.of("abc", "def", "123", "333"), DirectExec.tokenize("abc def 123  \"333\"", ENV));
+        assertEquals(List.of("echo", "it's here", "a\"b", "$HOST"), DirectExec.tokenize("echo \"it's here\" 'a\"b' '$HOST'", ENV));
+        assertEquals(List.of("curl", "http://app-1:8080/x", "a b"), DirectExec.tokenize("curl http://$HOST:8080/x \"$SPACED\"", ENV));
+        assertEquals(List.of("echo", "app-1.log", "a|b", ""), DirectExec.tokenize("echo ${HOST}.log a\\|b ''", ENV));
+        // unquoted empty variable is no argument, quoted it is
+        assertEquals(List.of("echo", ""), DirectExec.tokenize("echo $EMPTY \"$EMPTY\"", ENV));
+        assertEquals(List.of("echo", "$", "100$"), DirectExec.tokenize("echo $ 100$", ENV));
+    }
+
+    @Test
+    void tokenizeWindows() {
+        assertEquals(List.of("C:\\tools\\x.exe", "-f", "C:\\Program Files\\app\\conf.txt", "it's", "$HOST", ""),
+                DirectExec.tokenizeWindows("C:\\tools\\x.exe  -f \"C:\\Program Files\\app\\conf.txt\" it's $HOST \"\""));
+        assertNull(DirectExec.tokenizeWindows("x.exe \"unterminated"));
+    }
+
+    @Test
+    void needsShell() {
+        for (String command : List.of("ps aux | grep java", "echo a > /tmp/x", "cd /tmp; ls", "sleep 1 &", "ls *.log",
+                "echo $(date)", "echo `date`", "echo $?", "echo ${HOST:-x}", "echo $SPACED", "FOO=bar env",
+                "echo 'unterminated", "ls ~", "echo a # comment", "(ls)")) {
+            assertNull(DirectExec.tokenize(command, ENV), command);
+        }
+    }
+
+    @Test
+    void resolveOnPath() {
+        Optional<String> sh = DirectExec.resolve("sh", System.getenv("PATH"));
+        assertTrue(sh.isPresent() && sh.get().endsWith("/sh"), sh.toString());
+        assertTrue(DirectExec.resolve("no-such-command-here", System.getenv("PATH")).isEmpty());
+
+        List<String> commandList = DirectExec.commandList("sh -c 'exit 3'", System.getenv());
+        assertEquals(List.of(sh.get(), "-c", "exit 3"), commandList);
+        // shell builtin
+        assertNull(DirectExec.commandList("cd /tmp", System.getenv()));
+    }
+}
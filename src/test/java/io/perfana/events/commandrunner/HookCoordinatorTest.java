@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.exception.EventSchedulerRuntimeException;
+import io.perfana.eventscheduler.log.EventLoggerStdOut;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HookCoordinatorTest {
+
+    @Test
+    void lastParticipantWaitsForAll() {
+        HookCoordinator coordinator = new HookCoordinator();
+        coordinator.addParticipant("run1");
+        coordinator.addParticipant("run1");
+
+        CompletableFuture<Integer> first = new CompletableFuture<>();
+        coordinator.arrive("run1", "afterTest", "first", first, Duration.ofSeconds(60), EventLoggerStdOut.INSTANCE);
+        assertTrue(coordinator.isWaiting("run1", "afterTest"));
+
+        first.completeExceptionally(new EventSchedulerRuntimeException("exit code 1"));
+        EventSchedulerRuntimeException exception = assertThrows(EventSchedulerRuntimeException.class,
+                () -> coordinator.arrive("run1", "afterTest", "second", CompletableFuture.completedFuture(0), Duration.ofSeconds(60), EventLoggerStdOut.INSTANCE));
+        assertTrue(exception.getMessage().contains("first: exit code 1"), exception.getMessage());
+        assertFalse(coordinator.isWaiting("run1", "afterTest"));
+    }
+
+    @Test
+    void participantNeverArrives() throws Exception {
+        HookCoordinator coordinator = new HookCoordinator();
+        for (int i = 0; i < 3; i++) {
+            coordinator.addParticipant("run2");
+        }
+        coordinator.arrive("run2", "afterTest", "first", CompletableFuture.completedFuture(0), Duration.ofMillis(200), EventLoggerStdOut.INSTANCE);
+        coordinator.arrive("run2", "afterTest", "second", CompletableFuture.completedFuture(0), Duration.ofMillis(200), EventLoggerStdOut.INSTANCE);
+        assertTrue(coordinator.isWaiting("run2", "afterTest"));
+
+        // the third participant never arrives: after the deadline the arrived hooks are no longer waited for
+        long deadline = System.currentTimeMillis() + 5000;
+        while (coordinator.isWaiting("run2", "afterTest") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(coordinator.isWaiting("run2", "afterTest"));
+
+        // arriving late: waits for its own hook only
+        assertThrows(EventSchedulerRuntimeException.class,
+                () -> coordinator.arrive("run2", "afterTest", "third", CompletableFuture.failedFuture(new IllegalStateException("late")), Duration.ofMillis(200), EventLoggerStdOut.INSTANCE));
+        assertFalse(coordinator.isWaiting("run2", "afterTest"));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.log.EventLoggerStdOut;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class JavaDiagnosticsTest {
+
+    @Test
+    void detectJavaProcesses() throws Exception {
+        assertTrue(JavaDiagnostics.isJava(ProcessHandle.current()));
+
+        Process shell = new ProcessBuilder("sh", "-c", "sleep 5").start();
+        try {
+            assertFalse(JavaDiagnostics.isJava(shell.toHandle()));
+            assertTrue(JavaDiagnostics.javaProcesses(shell.toHandle()).isEmpty());
+        } finally {
+            shell.destroy();
+        }
+    }
+
+    @Test
+    void recordingAndThreadDumps() throws Exception {
+        Path dir = Files.createTempDirectory("java-diagnostics");
+        List<String> calls = new CopyOnWriteArrayList<>();
+        JavaDiagnostics.Jcmd jcmd = (pid, arguments) -> {
+            calls.add(arguments.get(0));
+            if (arguments.get(0).equals("JFR.start")) {
+                // the Java process writes the recording
+                String filename = arguments.stream().filter(argument -> argument.startsWith("filename=")).findFirst().orElseThrow();
+                Files.writeString(Path.of(filename.substring("filename=".length())), "jfr");
+            }
+            if (arguments.get(0).equals("Thread.print")) {
+                return "\"main\" #1 prio=5";
+            }
+            return "";
+        };
+        JavaDiagnostics diagnostics = new JavaDiagnostics("my event", dir, true, "profile", jcmd, task -> {}, EventLoggerStdOut.INSTANCE);
+
+        long pid = ProcessHandle.current().pid();
+        diagnostics.watch(ProcessHandle.current());
+        assertTrue(Files.exists(dir.resolve("my_event-" + pid + ".jfr")));
+
+        List<Path> dumps = diagnostics.threadDumps("keep-alive failed");
+        assertEquals(1, dumps.size());
+        assertEquals("\"main\" #1 prio=5", Files.readString(dumps.get(0)));
+
+        assertEquals(List.of(dir.resolve("my_event-" + pid + ".jfr")), diagnostics.stop());
+        assertEquals(List.of("JFR.start", "Thread.print", "JFR.stop"), calls);
+        assertTrue(diagnostics.stop().isEmpty());
+
+        for (Path file : List.of(dumps.get(0), dir.resolve("my_event-" + pid + ".jfr"))) {
+            Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    void failingJcmdIsNotThrown() throws Exception {
+        Path dir = Files.createTempDirectory("java-diagnostics");
+        JavaDiagnostics.Jcmd jcmd = (pid, arguments) -> {
+            throw new IOException("Unable to open socket file");
+        };
+        JavaDiagnostics diagnostics = new JavaDiagnostics("myEvent", dir, true, "default", jcmd, task -> {}, EventLoggerStdOut.INSTANCE);
+        diagnostics.watch(ProcessHandle.current());
+        assertTrue(diagnostics.threadDumps("keep-alive failed").isEmpty());
+        assertTrue(diagnostics.stop().isEmpty());
+        Files.delete(dir);
+    }
+}
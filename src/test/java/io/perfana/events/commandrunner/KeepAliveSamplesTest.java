@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeepAliveSamplesTest {
+
+    @Test
+    void parseKeyValueAndJsonLines() {
+        KeepAliveSamples samples = new KeepAliveSamples();
+        samples.parse("12:00:01 tps=1234.5 errors_pct=0.3% queue_depth=12, status=OK");
+        samples.parse("{\"tps\": 1300, \"queue\": {\"depth\": 14}, \"host\": \"app-1\"}");
+        samples.parse("{not json");
+
+        SortedMap<String, Double> drained = samples.drain();
+        assertEquals(Map.of("tps", 1300.0, "errors_pct", 0.3, "queue_depth", 12.0, "queue.depth", 14.0), drained);
+        assertTrue(samples.drain().isEmpty());
+        assertEquals("12", KeepAliveSamples.format(12.0));
+        assertEquals("0.3", KeepAliveSamples.format(0.3));
+    }
+
+    @Test
+    void thresholds() {
+        KeepAliveThresholds thresholds = KeepAliveThresholds.parse(List.of("errors_pct > 5", "tps<=100", "queue.depth != 0"));
+        assertEquals(List.of(), thresholds.breached(Map.of("errors_pct", 5.0, "tps", 101.0)));
+        assertEquals(List.of("errors_pct > 5 (errors_pct=7.5)", "tps <= 100 (tps=100)"),
+                thresholds.breached(Map.of("errors_pct", 7.5, "tps", 100.0, "queue.depth", 0.0)));
+
+        assertTrue(KeepAliveThresholds.parse(List.of()).isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> KeepAliveThresholds.parse(List.of("errors_pct >> 5")));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import org.junit.jupiter.api.Test;
+import org.zeroturnaround.exec.ProcessResult;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeepAliveTrackerTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    private void advanceMillis(long millis) {
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    void waitForTimeoutWhenNotAdaptive() {
+        KeepAliveTracker tracker = new KeepAliveTracker(KeepAliveTracker.Overlap.SKIP, 30_000, false, nanos::get);
+        tracker.recordLatency(10);
+        assertEquals(30_000, tracker.waitMillis());
+    }
+
+    @Test
+    void adaptiveWait() {
+        KeepAliveTracker tracker = new KeepAliveTracker(KeepAliveTracker.Overlap.SKIP, 30_000, true, nanos::get);
+        assertEquals(30_000, tracker.waitMillis());
+
+        ProcessFuture check = new ProcessFuture();
+        tracker.started(check);
+        advanceMillis(100);
+        check.complete(new ProcessResult(0, null));
+        // at least one second
+        assertEquals(1000, tracker.waitMillis());
+
+        tracker.recordLatency(2000);
+        assertEquals(6000, tracker.waitMillis());
+        // at most the timeout
+        tracker.recordLatency(20_000);
+        assertEquals(30_000, tracker.waitMillis());
+    }
+
+    @Test
+    void lateCheckIsEvaluatedOnceWhenEnded() {
+        KeepAliveTracker tracker = new KeepAliveTracker(KeepAliveTracker.Overlap.SKIP, 30_000, true, nanos::get);
+        ProcessFuture check = new ProcessFuture();
+        tracker.started(check);
+        tracker.late(check);
+
+        advanceMillis(5000);
+        assertSame(check, tracker.inFlight());
+        assertFalse(tracker.isOverdue());
+        assertNull(tracker.endedLate());
+
+        check.complete(new ProcessResult(3, null));
+        assertSame(check, tracker.endedLate());
+        assertNull(tracker.endedLate());
+        assertNull(tracker.inFlight());
+        assertEquals("1", tracker.summary().get("late"));
+    }
+
+    @Test
+    void overdueCheck() {
+        KeepAliveTracker tracker = new KeepAliveTracker(KeepAliveTracker.Overlap.COALESCE, 30_000, true, nanos::get);
+        ProcessFuture check = new ProcessFuture();
+        tracker.started(check);
+        tracker.late(check);
+        advanceMillis(30_001);
+        assertTrue(tracker.isOverdue());
+
+        tracker.cancelled(check);
+        assertNull(tracker.inFlight());
+        assertNull(tracker.endedLate());
+        assertEquals("1", tracker.summary().get("cancelled"));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.log.EventLoggerStdOut;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeepAliveWorkerTest {
+
+    @Test
+    void runChecksInOneShell() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (KeepAliveWorker worker = new KeepAliveWorker(ProcessThreadPool.shared(), out, new ByteArrayOutputStream(), EventLoggerStdOut.INSTANCE)) {
+            assertEquals(0, worker.check("echo first", 10, TimeUnit.SECONDS));
+            assertEquals(3, worker.check("printf 'no new line'; exit 3", 10, TimeUnit.SECONDS));
+            assertEquals(1, worker.check("false", 10, TimeUnit.SECONDS));
+            assertTrue(worker.isAlive());
+        }
+        String output = out.toString(StandardCharsets.UTF_8);
+        assertTrue(output.contains("first"), output);
+        assertTrue(output.contains("no new line"), output);
+        assertFalse(output.contains("__keep_alive_done_"), output);
+    }
+
+    @Test
+    void timeoutStopsWorker() throws Exception {
+        Path pidFile = Files.createTempFile("keep-alive", ".pid");
+        KeepAliveWorker worker = new KeepAliveWorker(ProcessThreadPool.shared(), new ByteArrayOutputStream(), new ByteArrayOutputStream(), EventLoggerStdOut.INSTANCE);
+        assertThrows(TimeoutException.class, () -> worker.check("sh -c 'echo $$ > " + pidFile + "; exec sleep 30'", 500, TimeUnit.MILLISECONDS));
+        assertFalse(worker.isAlive());
+        assertThrows(IOException.class, () -> worker.check("true", 1, TimeUnit.SECONDS));
+
+        // the process of the check is stopped as well
+        long pid = Long.parseLong(Files.readString(pidFile).trim());
+        assertFalse(ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false), "check process " + pid + " is still running");
+        Files.delete(pidFile);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.log.EventLoggerStdOut;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static io.perfana.events.commandrunner.PrefixedRedirectOutput.RedirectType.STDERR;
+import static io.perfana.events.commandrunner.PrefixedRedirectOutput.RedirectType.STDOUT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutputCaptureTest {
+
+    @Test
+    void captureAndRead() throws Exception {
+        Path dir = Files.createTempDirectory("capture");
+        Path file = dir.resolve("test-run-1.jsonl");
+
+        OutputCapture capture = OutputCapture.open(file, EventLoggerStdOut.INSTANCE);
+        OutputCapture shared = OutputCapture.open(file, EventLoggerStdOut.INSTANCE);
+        assertSame(capture, shared);
+
+        PrefixedRedirectOutput runner1 = new PrefixedRedirectOutput("runner1: ", OutputStream.nullOutputStream(), STDOUT, capture.newLineListener("runner1", "startTest"));
+        PrefixedRedirectOutput runner2 = new PrefixedRedirectOutput("runner2: ", OutputStream.nullOutputStream(), STDERR, shared.newLineListener("runner2", "keepAlive"));
+
+        runner1.write("first \"quoted\"\ttab é\n".getBytes(StandardCharsets.UTF_8));
+        runner2.write("error line\n".getBytes(StandardCharsets.UTF_8));
+        // next lines in a later block
+        Thread.sleep(400);
+        Instant later = Instant.now();
+        runner1.write("second\n".getBytes(StandardCharsets.UTF_8));
+
+        capture.release();
+        shared.release();
+
+        try (OutputCaptureReader reader = OutputCaptureReader.open(file)) {
+            assertEquals(Set.of("runner1", "runner2"), reader.getParticipants());
+
+            List<OutputCaptureReader.CapturedLine> all = reader.read(null, null, null).collect(Collectors.toList());
+            assertEquals(3, all.size(), all.toString());
+            assertEquals("first \"quoted\"\ttab é", all.get(0).getLine());
+            assertEquals("startTest", all.get(0).getPhase());
+
+            List<String> runner2Lines = reader.read(null, null, "runner2").map(OutputCaptureReader.CapturedLine::getLine).collect(Collectors.toList());
+            assertEquals(List.of("error line"), runner2Lines);
+            assertEquals(STDERR, reader.read(null, null, "runner2").findFirst().orElseThrow().getRedirectType());
+
+            List<String> laterLines = reader.read(later, null, null).map(OutputCaptureReader.CapturedLine::getLine).collect(Collectors.toList());
+            assertEquals(List.of("second"), laterLines);
+        }
+
+        // without index the whole file is read
+        Files.delete(OutputCapture.indexFile(file));
+        try (OutputCaptureReader reader = OutputCaptureReader.open(file)) {
+            assertEquals(1, reader.read(null, null, "runner2").count());
+        }
+        assertTrue(Files.size(file) > 0);
+    }
+
+    @Test
+    void readWithoutIndexInChunks() throws Exception {
+        Path file = Files.createTempFile("test-run-2", ".jsonl");
+        // more than one chunk, lines cross the chunk boundaries
+        String text = "x".repeat(100);
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < 5000; i++) {
+                writer.write("{\"t\":" + i + ",\"p\":\"runner" + (i % 2) + "\",\"s\":\"STDOUT\",\"c\":\"startTest\",\"l\":\"" + i + text + "\"}\n");
+            }
+        }
+        assertTrue(Files.size(file) > 2 * 64 * 1024);
+
+        try (OutputCaptureReader reader = OutputCaptureReader.open(file)) {
+            List<OutputCaptureReader.CapturedLine> lines = reader.read(null, null, "runner1").collect(Collectors.toList());
+            assertEquals(2500, lines.size());
+            assertEquals("4999" + text, lines.get(lines.size() - 1).getLine());
+            assertEquals(10, reader.read(Instant.ofEpochMilli(10), null, null).findFirst().orElseThrow().getTimestamp());
+        }
+        Files.delete(file);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.EventMessageBusSimple;
+import io.perfana.eventscheduler.api.config.TestConfig;
+import io.perfana.eventscheduler.api.message.EventMessage;
+import io.perfana.eventscheduler.exception.handler.StopTestRunException;
+import io.perfana.eventscheduler.log.EventLoggerStdOut;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static io.perfana.events.commandrunner.PrefixedRedirectOutput.RedirectType.STDOUT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutputMatchersTest {
+
+    @Test
+    void matchLiteralsAndRegexes() {
+        OutputMatchers matchers = OutputMatchers.parse(List.of(
+                "message:literal:he",
+                "message:literal:she",
+                "message:literal:hers",
+                "stop:regex:error rate: [1-9]\\d*%",
+                "go:literal:gestart \u2713"));
+
+        List<String> matched = new ArrayList<>();
+        PrefixedRedirectOutput.LineListener listener = matchers.newLineListener((spec, line) -> matched.add(spec.getPattern()));
+
+        scan(listener, "ushers");
+        assertEquals(List.of("he", "she", "hers"), matched);
+
+        matched.clear();
+        scan(listener, "error rate: 0%");
+        scan(listener, "error rate: 12%");
+        assertEquals(List.of("error rate: [1-9]\\d*%"), matched);
+
+        matched.clear();
+        scan(listener, "server gestart \u2713");
+        assertEquals(List.of("gestart \u2713"), matched);
+    }
+
+    @Test
+    void overlappingRegexes() {
+        OutputMatchers matchers = OutputMatchers.parse(List.of(
+                "message:regex:ERROR",
+                "stop:regex:ERROR.*OutOfMemory",
+                "message:regex:(\\w+) \\1"));
+
+        List<String> matched = new ArrayList<>();
+        PrefixedRedirectOutput.LineListener listener = matchers.newLineListener((spec, line) -> matched.add(spec.getPattern()));
+
+        scan(listener, "ERROR java.lang.OutOfMemoryError");
+        assertEquals(List.of("ERROR", "ERROR.*OutOfMemory"), matched);
+
+        // the backreference refers to the group of its own pattern
+        matched.clear();
+        scan(listener, "retry retry");
+        assertEquals(List.of("(\\w+) \\1"), matched);
+    }
+
+    @Test
+    void invalidMatcher() {
+        assertThrows(IllegalArgumentException.class, () -> OutputMatchers.parse(List.of("go:Server started")));
+        assertThrows(IllegalArgumentException.class, () -> OutputMatchers.parse(List.of("jump:literal:Server started")));
+        assertThrows(IllegalArgumentException.class, () -> OutputMatchers.parse(List.of("stop:regex:[a-")));
+    }
+
+    @Test
+    void goAndStopFromCommandOutput() throws Exception {
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("mockServer");
+        eventConfig.setReadyForStartParticipant(true);
+        eventConfig.setOnBeforeTestNoWait("echo starting; sleep 0.2; echo Server started on port 8080; sleep 0.2; echo FATAL problem; sleep 5");
+        eventConfig.setOutputMatchers(List.of("go:regex:Server started on port \\d+", "stop:literal:FATAL"));
+
+        EventMessageBusSimple messageBus = new EventMessageBusSimple();
+        List<EventMessage> messages = new CopyOnWriteArrayList<>();
+        messageBus.addReceiver(messages::add);
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), messageBus, EventLoggerStdOut.INSTANCE);
+        event.beforeTest();
+        assertTrue(messages.stream().noneMatch(m -> "Go!".equals(m.getMessage())), "no Go! before the line is printed");
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (messages.stream().noneMatch(m -> "Go!".equals(m.getMessage())) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(messages.stream().anyMatch(m -> "Go!".equals(m.getMessage())), "Go! after the line is printed");
+
+        Thread.sleep(500);
+        assertThrows(StopTestRunException.class, event::keepAlive);
+        event.afterTest();
+    }
+
+    @Test
+    void goOnlyFromBeforeTestOutputOfReadyForStartParticipant() throws Exception {
+        CommandRunnerEventConfig eventConfig = new CommandRunnerEventConfig();
+        eventConfig.setName("mockServer2");
+        eventConfig.setReadyForStartParticipant(true);
+        eventConfig.setOnBeforeTest("echo starting");
+        eventConfig.setOnKeepAlive("echo Server started on port 8080");
+        // the message shows the line was matched
+        eventConfig.setOutputMatchers(List.of("go:regex:Server started on port \\d+", "message:literal:Server started"));
+
+        EventMessageBusSimple messageBus = new EventMessageBusSimple();
+        List<EventMessage> messages = new CopyOnWriteArrayList<>();
+        messageBus.addReceiver(messages::add);
+
+        CommandRunnerEvent event = new CommandRunnerEvent(eventConfig.toContext(), TestConfig.builder().build().toContext(), messageBus, EventLoggerStdOut.INSTANCE);
+        event.beforeTest();
+        event.keepAlive();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (messages.stream().noneMatch(m -> m.getMessage().startsWith("Server started")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertTrue(messages.stream().anyMatch(m -> m.getMessage().startsWith("Server started")), "keep-alive output is matched");
+        assertTrue(messages.stream().noneMatch(m -> "Go!".equals(m.getMessage())), "no Go! for keep-alive output");
+        event.afterTest();
+
+        CommandRunnerEventConfig notReady = new CommandRunnerEventConfig();
+        notReady.setName("mockServer3");
+        notReady.setOnBeforeTest("echo Server started on port 8080");
+        notReady.setOutputMatchers(List.of("go:regex:Server started on port \\d+"));
+        messages.clear();
+        CommandRunnerEvent notReadyEvent = new CommandRunnerEvent(notReady.toContext(), TestConfig.builder().build().toContext(), messageBus, EventLoggerStdOut.INSTANCE);
+        notReadyEvent.beforeTest();
+        assertTrue(messages.stream().noneMatch(m -> "Go!".equals(m.getMessage())), "no Go! when not a readyForStartParticipant");
+        notReadyEvent.afterTest();
+    }
+
+    private static void scan(PrefixedRedirectOutput.LineListener listener, String line) {
+        byte[] bytes = ("xx" + line).getBytes(StandardCharsets.UTF_8);
+        listener.onLine(bytes, 2, bytes.length - 2, STDOUT);
+    }
+}
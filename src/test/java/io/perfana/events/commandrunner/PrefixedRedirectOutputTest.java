@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static io.perfana.events.commandrunner.PrefixedRedirectOutput.RedirectType.STDERR;
+import static io.perfana.events.commandrunner.PrefixedRedirectOutput.RedirectType.STDOUT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PrefixedRedirectOutputTest {
+
+    private static final String NL = System.lineSeparator();
+
+    @Test
+    void prefixEachLine() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrefixedRedirectOutput output = new PrefixedRedirectOutput("p: ", out, STDOUT);
+
+        output.write(("one" + NL + "two" + NL + "thr").getBytes(StandardCharsets.UTF_8));
+        String[] lines = out.toString(StandardCharsets.UTF_8).split(NL);
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].matches("\\d\\d:\\d\\d:\\d\\d\\.\\d\\d\\d STDOUT p: one"), lines[0]);
+        assertTrue(lines[1].endsWith(" STDOUT p: two"), lines[1]);
+
+        // single byte writes continue the partial line
+        output.write('e');
+        output.write('e');
+        for (byte b : NL.getBytes(StandardCharsets.UTF_8)) {
+            output.write(b);
+        }
+        lines = out.toString(StandardCharsets.UTF_8).split(NL);
+        assertEquals(3, lines.length);
+        assertTrue(lines[2].endsWith(" STDOUT p: three"), lines[2]);
+    }
+
+    @Test
+    void longLinesArePassedOnInParts() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrefixedRedirectOutput output = new PrefixedRedirectOutput("p: ", out, STDOUT);
+
+        String longLine = "x".repeat(20_000);
+        output.write((longLine + NL).getBytes(StandardCharsets.UTF_8));
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split(NL);
+        assertEquals(1, lines.length);
+        assertTrue(lines[0].endsWith(" STDOUT p: " + longLine));
+    }
+
+    @Test
+    void flushWritesPartialLine() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrefixedRedirectOutput output = new PrefixedRedirectOutput("p: ", out, STDOUT);
+
+        output.write("progress...".getBytes(StandardCharsets.UTF_8));
+        assertEquals(0, out.size());
+        output.flush();
+        assertTrue(out.toString(StandardCharsets.UTF_8).endsWith(" STDOUT p: progress..."));
+    }
+
+    @Test
+    void listenerSeesLastLineWithoutLineEnd() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<String> heard = new ArrayList<>();
+        PrefixedRedirectOutput output = new PrefixedRedirectOutput("p: ", out, STDOUT,
+                (bytes, offset, length, type) -> heard.add(new String(bytes, offset, length, StandardCharsets.UTF_8)));
+
+        // like printf ready
+        output.write(("starting" + NL + "ready").getBytes(StandardCharsets.UTF_8));
+        assertEquals(List.of("starting"), heard);
+        output.flush();
+        assertEquals(List.of("starting", "ready"), heard);
+        assertTrue(out.toString(StandardCharsets.UTF_8).endsWith(" STDOUT p: ready"));
+
+        // the stream pumps flush the line once more when they stop
+        output.flush();
+        assertEquals(List.of("starting", "ready"), heard);
+
+        // the end message is not output of the command
+        output.close();
+        assertEquals(List.of("starting", "ready"), heard);
+        assertTrue(out.toString(StandardCharsets.UTF_8).contains("END!"));
+    }
+
+    @Test
+    void listenerSeesLongLineAsWhole() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<String> heard = new ArrayList<>();
+        PrefixedRedirectOutput output = new PrefixedRedirectOutput("p: ", out, STDOUT,
+                (bytes, offset, length, type) -> heard.add(new String(bytes, offset, length, StandardCharsets.UTF_8)));
+
+        // the marker crosses the end of the buffer
+        String longLine = "x".repeat(8190) + "MARKER" + "y".repeat(20_000);
+        output.write((longLine + NL + "short" + NL).getBytes(StandardCharsets.UTF_8));
+        output.write("z".repeat(10_000).getBytes(StandardCharsets.UTF_8));
+        output.flush();
+
+        assertEquals(List.of(longLine, "short", "z".repeat(10_000)), heard);
+        assertTrue(out.toString(StandardCharsets.UTF_8).contains(" STDOUT p: " + longLine + NL));
+    }
+
+    @Test
+    void rateLimitSuppressesLinesButListenerSeesAll() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<String> heard = new ArrayList<>();
+        OutputPolicy policy = new OutputPolicy(OutputPolicy.Mode.RATE_LIMIT, 2, 1, true);
+        PrefixedRedirectOutput.Counters counters = new PrefixedRedirectOutput.Counters();
+        PrefixedRedirectOutput output = new PrefixedRedirectOutput("p: ", out, STDOUT,
+                (bytes, offset, length, type) -> heard.add(new String(bytes, offset, length, StandardCharsets.UTF_8)), policy, counters);
+
+        for (int i = 0; i < 10; i++) {
+            output.write(("line " + i + NL).getBytes(StandardCharsets.UTF_8));
+        }
+        output.close();
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split(NL);
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].endsWith(" STDOUT p: line 0"), lines[0]);
+        assertTrue(lines[1].endsWith(" STDOUT p: line 1"), lines[1]);
+        assertTrue(lines[2].endsWith(" STDOUT p: 8 lines suppressed by output policy RATE_LIMIT"), lines[2]);
+        assertTrue(lines[3].endsWith(" END!"), lines[3]);
+        assertEquals("line 9", heard.get(9));
+        assertEquals(8, policy.getSuppressedLines());
+        // counters see the output of the command, not the summary and end lines
+        assertEquals(10, counters.getLines());
+        assertEquals(10 * ("line 0" + NL).length(), counters.getBytes());
+    }
+
+    @Test
+    void onlyMatcherSkipsSuppressedLines() throws IOException {
+        List<String> heard = new ArrayList<>();
+        List<String> matched = new ArrayList<>();
+        OutputPolicy stderrOnly = new OutputPolicy(OutputPolicy.Mode.STDERR_ONLY, 1, 1, false);
+        PrefixedRedirectOutput output = new PrefixedRedirectOutput("p: ", new ByteArrayOutputStream(), STDOUT,
+                (bytes, offset, length, type) -> heard.add(new String(bytes, offset, length, StandardCharsets.UTF_8)),
+                (bytes, offset, length, type) -> matched.add(new String(bytes, offset, length, StandardCharsets.UTF_8)),
+                stderrOnly, null);
+
+        output.write(("line 0" + NL + "line 1" + NL).getBytes(StandardCharsets.UTF_8));
+        output.flush();
+        assertEquals(List.of("line 0", "line 1"), heard);
+        assertEquals(List.of(), matched);
+    }
+
+    @Test
+    void sampleAndStderrOnly() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputPolicy sample = new OutputPolicy(OutputPolicy.Mode.SAMPLE, 1, 3, false);
+        PrefixedRedirectOutput output = new PrefixedRedirectOutput("p: ", out, STDOUT, null, sample, null);
+        for (int i = 0; i < 7; i++) {
+            output.write(("line " + i + NL).getBytes(StandardCharsets.UTF_8));
+        }
+        // the stream pumps flush when the process has ended, they do not close
+        output.flush();
+        String[] lines = out.toString(StandardCharsets.UTF_8).split(NL);
+        assertEquals(4, lines.length);
+        assertTrue(lines[1].endsWith(" STDOUT p: line 3"), lines[1]);
+        assertTrue(lines[2].endsWith(" STDOUT p: line 6"), lines[2]);
+        assertTrue(lines[3].endsWith(" STDOUT p: 4 lines suppressed by output policy SAMPLE"), lines[3]);
+
+        OutputPolicy stderrOnly = new OutputPolicy(OutputPolicy.Mode.STDERR_ONLY, 1, 1, true);
+        assertFalse(stderrOnly.keep(STDOUT));
+        assertTrue(stderrOnly.keep(STDERR));
+    }
+
+    @Test
+    void tokenBucketRefills() {
+        OutputPolicy policy = new OutputPolicy(OutputPolicy.Mode.RATE_LIMIT, 10, 1, true);
+        long now = System.nanoTime();
+        int kept = 0;
+        for (int i = 0; i < 20; i++) {
+            kept += policy.keep(STDOUT, now) ? 1 : 0;
+        }
+        assertEquals(10, kept);
+        // 100 ms later there is room for one more line
+        assertTrue(policy.keep(STDOUT, now + TimeUnit.MILLISECONDS.toNanos(100)));
+        assertFalse(policy.keep(STDOUT, now + TimeUnit.MILLISECONDS.toNanos(100)));
+        assertThrows(IllegalArgumentException.class, () -> new OutputPolicy(OutputPolicy.Mode.SAMPLE, 1, 0, true));
+    }
+
+    @Test
+    void renderTimestamp() {
+        long millis = LocalTime.of(13, 5, 9, 42_000_000).toSecondOfDay() * 1000L + 42;
+        TimestampRenderer renderer = new TimestampRenderer(ZoneOffset.UTC, () -> millis);
+        byte[] dest = new byte[TimestampRenderer.LENGTH + 1];
+        int end = renderer.render(dest, 1);
+        assertEquals(dest.length, end);
+        assertEquals("13:05:09.042", new String(dest, 1, TimestampRenderer.LENGTH, StandardCharsets.US_ASCII));
+    }
+}
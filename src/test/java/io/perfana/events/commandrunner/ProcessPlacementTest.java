@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.log.EventLoggerStdOut;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProcessPlacementTest {
+
+    @Test
+    void prefixPerCommandType() throws Exception {
+        Path bin = Files.createTempDirectory("bin");
+        for (String tool : List.of("taskset", "nice")) {
+            Files.writeString(bin.resolve(tool), "#!/bin/sh\n");
+            assertTrue(bin.resolve(tool).toFile().setExecutable(true));
+        }
+        ProcessPlacement placement = ProcessPlacement.parse(List.of(
+                "startTest: cpus=2-7 nice=-5",
+                "keepAlive,scheduledEvent: cpus=0-1 nice=10 ionice=idle",
+                "*: nice=5"));
+
+        // ionice is not on this PATH: left out
+        Map<String, List<String>> prefixes = placement.prefixes(bin.toString(), ProcessPlacement.CGROUP_ROOT, EventLoggerStdOut.INSTANCE);
+        String taskset = bin.resolve("taskset").toString();
+        String nice = bin.resolve("nice").toString();
+        assertEquals(List.of(taskset, "-c", "2-7", nice, "-n", "-5", "java", "-jar", "load.jar"),
+                ProcessPlacement.placed(prefixes, "startTest", List.of("java", "-jar", "load.jar")));
+        assertEquals(List.of(taskset, "-c", "0-1", nice, "-n", "10", "sh", "-c", "curl app"),
+                ProcessPlacement.placed(prefixes, "scheduledEvent", List.of("sh", "-c", "curl app")));
+        assertEquals(List.of(nice, "-n", "5", "sh"), ProcessPlacement.placed(prefixes, "afterTest", List.of("sh")));
+
+        for (String tool : List.of("taskset", "nice")) {
+            Files.delete(bin.resolve(tool));
+        }
+        Files.delete(bin);
+    }
+
+    @Test
+    void cgroupWithCpuMax() throws Exception {
+        Path root = Files.createTempDirectory("cgroup");
+        ProcessPlacement placement = ProcessPlacement.parse(List.of("keepAlive: cgroup=perfana/helpers cpuMax=0.5"));
+
+        Map<String, List<String>> prefixes = placement.prefixes("", root, EventLoggerStdOut.INSTANCE);
+        Path group = root.resolve("perfana/helpers");
+        assertEquals("50000 100000", Files.readString(group.resolve("cpu.max")));
+        assertEquals("+cpu", Files.readString(root.resolve("perfana/cgroup.subtree_control")));
+        assertEquals(List.of("sh", "-c", "echo $$ > \"$0\" && exec \"$@\"", group.resolve("cgroup.procs").toString(), "true"),
+                ProcessPlacement.placed(prefixes, "keepAlive", List.of("true")));
+
+        // the shell moves itself into the group before it becomes the command
+        Process process = new ProcessBuilder(ProcessPlacement.placed(prefixes, "keepAlive", List.of("true"))).start();
+        assertEquals(0, process.waitFor());
+        assertEquals(String.valueOf(process.pid()), Files.readString(group.resolve("cgroup.procs")).trim());
+
+        for (Path file : List.of(group.resolve("cpu.max"), group.resolve("cgroup.procs"), group, root.resolve("perfana/cgroup.subtree_control"), group.getParent(),
+                root.resolve("cgroup.subtree_control"), root)) {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void invalidPlacements() {
+        assertThrows(IllegalArgumentException.class, () -> ProcessPlacement.parse(List.of("cpus=1")));
+        assertThrows(IllegalArgumentException.class, () -> ProcessPlacement.parse(List.of("startTest: cpus=all")));
+        assertThrows(IllegalArgumentException.class, () -> ProcessPlacement.parse(List.of("startTest: nice=20")));
+        assertThrows(IllegalArgumentException.class, () -> ProcessPlacement.parse(List.of("startTest: ionice=idle:3")));
+        assertThrows(IllegalArgumentException.class, () -> ProcessPlacement.parse(List.of("startTest: cpuMax=2")));
+        assertThrows(IllegalArgumentException.class, () -> ProcessPlacement.parse(List.of("startTest: cgroup=../escape")));
+        assertThrows(IllegalArgumentException.class, () -> ProcessPlacement.parse(List.of("startTest: affinity=1")));
+        assertTrue(ProcessPlacement.parse(List.of()).isEmpty());
+    }
+}
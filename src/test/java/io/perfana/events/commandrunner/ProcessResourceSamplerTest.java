@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.log.EventLoggerStdOut;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProcessResourceSamplerTest {
+
+    @Test
+    void sampleProcessTree() throws Exception {
+        Assumptions.assumeTrue(ProcessResourceSampler.isSupported(), "needs /proc");
+
+        Path timeSeriesFile = Files.createTempFile("resources", ".csv");
+        ProcessResourceSampler sampler = new ProcessResourceSampler("test", 20, timeSeriesFile, EventLoggerStdOut.INSTANCE);
+
+        // the busy loop runs in a child process of the sh wrapper
+        Process process = new ProcessBuilder("sh", "-c", "sh -c 'i=0; while [ $i -lt 200000 ]; do i=$((i+1)); done'; echo done").start();
+        sampler.track(process.pid(), "startTest");
+        process.waitFor();
+
+        Map<String, String> summary = sampler.stop();
+        assertEquals("1", summary.get("startTest.commands"), summary.toString());
+        assertTrue(Integer.parseInt(summary.get("startTest.processes")) >= 2, summary.toString());
+        assertTrue(Long.parseLong(summary.get("startTest.cpuTimeMs")) > 0, summary.toString());
+        assertTrue(Long.parseLong(summary.get("startTest.peakRssKb")) > 0, summary.toString());
+
+        List<String> lines = Files.readAllLines(timeSeriesFile, StandardCharsets.UTF_8);
+        assertTrue(lines.get(0).startsWith("timestamp,participant,commandType"), lines.get(0));
+        assertTrue(lines.size() > 1, "expected samples in time series file");
+        Files.delete(timeSeriesFile);
+    }
+
+    @Test
+    void endedCommandsAreNotTracked() throws Exception {
+        Assumptions.assumeTrue(ProcessResourceSampler.isSupported(), "needs /proc");
+
+        ProcessResourceSampler sampler = new ProcessResourceSampler("test", 10, null, EventLoggerStdOut.INSTANCE);
+        // like the keep-alive command that runs every few seconds
+        for (int i = 0; i < 3; i++) {
+            Process process = new ProcessBuilder("sh", "-c", "exit 0").start();
+            sampler.track(process.pid(), "keepAlive");
+            process.waitFor();
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sampler.trackedCommands() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, sampler.trackedCommands());
+
+        Map<String, String> summary = sampler.stop();
+        assertEquals("3", summary.get("keepAlive.commands"), summary.toString());
+    }
+}
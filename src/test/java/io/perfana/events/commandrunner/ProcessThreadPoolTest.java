@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import org.junit.jupiter.api.Test;
+import org.zeroturnaround.exec.ProcessResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProcessThreadPoolTest {
+
+    @Test
+    void runProcessesOnSharedThreads() throws Exception {
+        ProcessThreadPool pool = new ProcessThreadPool(false);
+        assertFalse(pool.isVirtualThreads());
+
+        AtomicInteger finished = new AtomicInteger();
+        for (int i = 0; i < 5; i++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Future<ProcessResult> future = pool.newProcessExecutor(finished::incrementAndGet)
+                    .command("sh", "-c", "echo hello " + i)
+                    .redirectErrorStream(false)
+                    .streams(pool.newPumpStreamHandler(out, new ByteArrayOutputStream()))
+                    .start().getFuture();
+            assertEquals(0, future.get(10, TimeUnit.SECONDS).getExitValue());
+            assertEquals("hello " + i, out.toString(StandardCharsets.UTF_8).trim());
+        }
+
+        assertEquals(5, finished.get());
+        // the wait thread is reused, each process gets its own two pump threads
+        assertTrue(pool.getThreadsCreated() <= 5 * 2 + 1, pool.describe());
+        assertTrue(pool.getPeakActiveTasks() >= 1);
+    }
+
+    @Test
+    void finishWhenProcessCannotStart() {
+        ProcessThreadPool pool = new ProcessThreadPool(false);
+
+        AtomicInteger finished = new AtomicInteger();
+        assertThrows(IOException.class, () -> pool.start(pool.newProcessExecutor(finished::incrementAndGet)
+                .command("no-such-command-" + System.nanoTime())
+                .streams(pool.newPumpStreamHandler(new ByteArrayOutputStream(), new ByteArrayOutputStream()))));
+
+        assertEquals(1, finished.get());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProcessTreeTest {
+
+    @Test
+    void stopGrandchildren() throws Exception {
+        Process process = new ProcessBuilder("sh", "-c", "sleep 30 & sleep 30; wait").start();
+        List<ProcessHandle> descendants = awaitDescendants(process, 2);
+
+        ProcessTree.Termination termination = ProcessTree.terminate(process.toHandle(), Duration.ofSeconds(5));
+
+        assertEquals(3, termination.getProcesses(), termination.toString());
+        assertEquals(3, termination.getStopped(), termination.toString());
+        assertEquals(0, termination.getKilled(), termination.toString());
+        assertFalse(process.isAlive());
+        descendants.forEach(child -> assertFalse(ProcessTree.isRunning(child), "still running: " + child.pid()));
+    }
+
+    @Test
+    void killWhenTermIsIgnored() throws Exception {
+        // ignored signals are inherited by the sleep child
+        Process process = new ProcessBuilder("sh", "-c", "trap '' TERM; sleep 30; echo done").start();
+        List<ProcessHandle> descendants = awaitDescendants(process, 1);
+
+        ProcessTree.Termination termination = ProcessTree.terminate(process.toHandle(), Duration.ofMillis(300));
+
+        assertEquals(2, termination.getKilled(), termination.toString());
+        assertTrue(termination.getDurationMillis() >= 300, termination.toString());
+        assertFalse(process.isAlive());
+        descendants.forEach(child -> assertFalse(ProcessTree.isRunning(child), "still running: " + child.pid()));
+    }
+
+    private static List<ProcessHandle> awaitDescendants(Process process, int count) throws InterruptedException {
+        for (int i = 0; i < 50; i++) {
+            List<ProcessHandle> descendants = process.descendants().collect(Collectors.toList());
+            if (descendants.size() >= count) {
+                return descendants;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("expected " + count + " child processes");
+    }
+}
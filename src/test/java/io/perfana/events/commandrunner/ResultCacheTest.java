@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ResultCacheTest {
+
+    @Test
+    void keyChangesWithInputsAndEnv() throws Exception {
+        Path dir = Files.createTempDirectory("result-cache");
+        Path input = dir.resolve("data");
+        Files.createDirectories(input);
+        Files.writeString(input.resolve("set.csv"), "v42");
+
+        String key = ResultCache.key("unpack data", List.of(input.toString()), Map.of("DATA_VERSION", "42"));
+        assertEquals(key, ResultCache.key("unpack data", List.of(input.toString()), Map.of("DATA_VERSION", "42")));
+        assertNotEquals(key, ResultCache.key("unpack data ", List.of(input.toString()), Map.of("DATA_VERSION", "42")));
+        assertNotEquals(key, ResultCache.key("unpack data", List.of(input.toString()), Map.of("DATA_VERSION", "43")));
+
+        Files.writeString(input.resolve("set.csv"), "v43");
+        assertNotEquals(key, ResultCache.key("unpack data", List.of(input.toString()), Map.of("DATA_VERSION", "42")));
+    }
+
+    @Test
+    void storeAndLookup() throws Exception {
+        Path dir = Files.createTempDirectory("result-cache");
+        ResultCache cache = new ResultCache(dir.resolve("cache"), 1024 * 1024);
+        assertFalse(cache.lookup("abc").isPresent());
+
+        ResultCache.Recorder recorder = cache.recorder("abc", true);
+        line(recorder, "downloading", PrefixedRedirectOutput.RedirectType.STDOUT);
+        line(recorder, "", PrefixedRedirectOutput.RedirectType.STDOUT);
+        line(recorder, "warning: slow mirror", PrefixedRedirectOutput.RedirectType.STDERR);
+        recorder.store(0);
+
+        ResultCache.Result result = cache.lookup("abc").orElseThrow();
+        assertEquals(0, result.getExitCode());
+        assertEquals(3, result.getLines().size());
+        assertEquals("downloading\n", new String(result.getLines().get(0).getBytes(), StandardCharsets.UTF_8));
+        assertEquals("\n", new String(result.getLines().get(1).getBytes(), StandardCharsets.UTF_8));
+        assertEquals(PrefixedRedirectOutput.RedirectType.STDERR, result.getLines().get(2).getType());
+        assertEquals("warning: slow mirror\n", new String(result.getLines().get(2).getBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void evictLeastRecentlyUsed() throws Exception {
+        Path dir = Files.createTempDirectory("result-cache");
+        ResultCache cache = new ResultCache(dir, 50);
+        for (String key : List.of("old", "used", "new")) {
+            ResultCache.Recorder recorder = cache.recorder(key, true);
+            line(recorder, "x".repeat(30), PrefixedRedirectOutput.RedirectType.STDOUT);
+            recorder.store(0);
+        }
+        long now = System.currentTimeMillis();
+        Files.setLastModifiedTime(dir.resolve("old" + ResultCache.SUFFIX), FileTime.fromMillis(now - 30_000));
+        Files.setLastModifiedTime(dir.resolve("used" + ResultCache.SUFFIX), FileTime.fromMillis(now - 20_000));
+        Files.setLastModifiedTime(dir.resolve("new" + ResultCache.SUFFIX), FileTime.fromMillis(now - 10_000));
+        // a hit makes it the most recently used
+        assertTrue(cache.lookup("used").isPresent());
+
+        assertEquals(2, cache.evict());
+        assertFalse(Files.exists(dir.resolve("old" + ResultCache.SUFFIX)));
+        assertFalse(Files.exists(dir.resolve("new" + ResultCache.SUFFIX)));
+        assertTrue(cache.lookup("used").isPresent());
+    }
+
+    private static void line(ResultCache.Recorder recorder, String line, PrefixedRedirectOutput.RedirectType type) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        recorder.onLine(bytes, 0, bytes.length, type);
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.log.EventLoggerStdOut;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RunCommandRouterTest {
+
+    @Test
+    void settingsAreParsedOnce() {
+        RunCommandRouter router = new RunCommandRouter();
+        router.register("k8sCommand", List.of());
+
+        RunCommandRouter.Route route = router.route("name=k8sCommand;app=myapp;replicas=3", EventLoggerStdOut.INSTANCE);
+        assertSame(route, router.route("name=k8sCommand;app=myapp;replicas=3", EventLoggerStdOut.INSTANCE));
+        assertEquals(Map.of("name", "k8sCommand", "app", "myapp", "replicas", "3"), route.getSettings());
+        assertTrue(route.isFor("k8sCommand", Set.of()));
+        assertFalse(route.isFor("k8sCommand2", Set.of()));
+    }
+
+    @Test
+    void routeByNameGlobAndGroup() {
+        RunCommandRouter.Route route = RunCommandRouter.Route.parse("name=db, k6-*, @load;word=hello");
+        assertTrue(route.isFor("db", Set.of()));
+        assertTrue(route.isFor("k6-eu", Set.of()));
+        assertFalse(route.isFor("k6", Set.of()));
+        assertTrue(route.isFor("gatling", Set.of("load", "eu")));
+        assertFalse(route.isFor("gatling", Set.of("eu")));
+
+        RunCommandRouter.Route all = RunCommandRouter.Route.parse("word=hello");
+        assertTrue(all.isFor("anyone", Set.of()));
+        assertTrue(RunCommandRouter.Route.parse(null).isFor("anyone", Set.of()));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StdinPipeTest {
+
+    @Test
+    void writerWaitsForReader() throws Exception {
+        StdinPipe pipe = new StdinPipe("generator -> parser", 16);
+        byte[] data = new byte[100_000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try (OutputStream out = pipe.outputStream()) {
+                out.write(data, 0, data.length);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        try (InputStream in = pipe.inputStream()) {
+            in.transferTo(received);
+        }
+        writer.get(10, TimeUnit.SECONDS);
+        assertArrayEquals(data, received.toByteArray());
+        assertEquals(data.length, pipe.getTransferredBytes());
+    }
+
+    @Test
+    void closedReaderDiscardsWrites() throws Exception {
+        StdinPipe pipe = new StdinPipe("generator -> parser", 4);
+        pipe.write("abc".getBytes(StandardCharsets.UTF_8), 0, 3);
+        pipe.closeReader();
+        // does not block on the full buffer
+        pipe.write("defgh".getBytes(StandardCharsets.UTF_8), 0, 5);
+        assertEquals(8, pipe.getDiscardedBytes());
+        assertEquals(-1, pipe.read(new byte[4], 0, 4));
+    }
+
+    @Test
+    void onePipePerConsumer() {
+        StdinPipes pipes = new StdinPipes();
+        StdinSource.Source source = StdinSource.parse(List.of("startTest: participant=generator")).forCommandType("startTest").orElseThrow();
+        StdinPipe pipe = pipes.connect("run-1", "parser", source, 1024);
+
+        assertEquals(List.of(pipe), pipes.from("run-1", "generator", "startTest"));
+        assertEquals(List.of(), pipes.from("run-1", "generator", "beforeTest"));
+        assertEquals(List.of(), pipes.from("run-2", "generator", "startTest"));
+        assertTrue(pipe.claim());
+        assertFalse(pipe.claim());
+
+        pipes.disconnect("run-1", source, pipe);
+        assertEquals(List.of(), pipes.from("run-1", "generator", "startTest"));
+    }
+
+    @Test
+    void parseSources() {
+        StdinSource sources = StdinSource.parse(List.of(
+                "startTest: participant=tokenGenerator/beforeTestNoWait",
+                "beforeTest,*: file=/data/test users.csv"));
+
+        StdinSource.Source startTest = sources.forCommandType("startTest").orElseThrow();
+        assertEquals("tokenGenerator", startTest.getParticipant());
+        assertEquals("beforeTestNoWait", startTest.getParticipantCommandType());
+        assertEquals("/data/test users.csv", sources.forCommandType("keepAlive").orElseThrow().getFile().toString());
+        assertEquals(List.of(startTest), sources.participantSources());
+        assertFalse(StdinSource.NONE.forCommandType("startTest").isPresent());
+
+        assertThrows(IllegalArgumentException.class, () -> StdinSource.parse(List.of("file=/data/users.csv")));
+        assertThrows(IllegalArgumentException.class, () -> StdinSource.parse(List.of("startTest: socket=localhost:80")));
+        assertThrows(IllegalArgumentException.class, () -> StdinSource.parse(List.of("startTest: participant=")));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2020-2022 Peter Paul Bakker - Perfana
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.perfana.events.commandrunner;
+
+import io.perfana.eventscheduler.api.CustomEvent;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamingScheduleTest {
+
+    @Test
+    void expressionWithRamp() {
+        StreamingSchedule schedule = StreamingSchedule.expression("every 30s from 5m to 55m ramp replicas 1 to 10", "name=k8sCommand", "scale");
+
+        assertEquals(101, schedule.size());
+        CustomEvent first = schedule.get(0);
+        assertEquals(Duration.ofMinutes(5), first.getDuration());
+        assertEquals(StreamingSchedule.RUN_COMMAND, first.getName());
+        assertEquals("name=k8sCommand;replicas=1", first.getSettings());
+        assertEquals("name=k8sCommand;replicas=6", schedule.get(50).getSettings());
+        CustomEvent last = schedule.get(100);
+        assertEquals(Duration.ofMinutes(55), last.getDuration());
+        assertEquals("name=k8sCommand;replicas=10", last.getSettings());
+
+        int count = 0;
+        for (CustomEvent ignored : schedule) {
+            count++;
+        }
+        assertEquals(101, count);
+
+        assertThrows(IllegalArgumentException.class, () -> StreamingSchedule.expression("every 30s from 55m to 5m", "", "scale"));
+        assertThrows(IllegalArgumentException.class, () -> StreamingSchedule.expression("each 30s", "", "scale"));
+    }
+
+    @Test
+    void csvAndJsonlFiles() throws Exception {
+        Path dir = Files.createTempDirectory("schedule");
+        Path csv = dir.resolve("schedule.csv");
+        Files.write(csv, List.of("# chaos", "PT30S,kill pod,name=chaos;pods=a,b", "", "1m,restore"));
+        Path jsonl = dir.resolve("schedule.jsonl");
+        Files.write(jsonl, List.of("{\"at\":\"1h30m\",\"description\":\"scale\",\"settings\":{\"name\":\"k8sCommand\",\"replicas\":3}}"));
+
+        List<CustomEvent> events = new ArrayList<>(StreamingSchedule.file(csv));
+        assertEquals(2, events.size());
+        assertEquals(Duration.ofSeconds(30), events.get(0).getDuration());
+        assertEquals("kill pod", events.get(0).getDescription());
+        assertEquals("name=chaos;pods=a,b", events.get(0).getSettings());
+        assertEquals("", events.get(1).getSettings());
+
+        CustomEvent scale = StreamingSchedule.file(jsonl).get(0);
+        assertEquals(Duration.ofMinutes(90), scale.getDuration());
+        assertEquals("name=k8sCommand;replicas=3", scale.getSettings());
+
+        Path bad = dir.resolve("bad.csv");
+        Files.write(bad, List.of("1m,ok", "soon,not ok"));
+        IllegalArgumentException exception = assertThrows(IllegalArgumentException.class, () -> StreamingSchedule.file(bad).validate(Duration.ofSeconds(10)));
+        assertTrue(exception.getMessage().contains("line 2"), exception.getMessage());
+
+        for (Path file : List.of(csv, jsonl, bad)) {
+            Files.delete(file);
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    void closesScheduleFile() throws Exception {
+        Path fds = Path.of("/proc/self/fd");
+        Assumptions.assumeTrue(Files.isDirectory(fds), "needs /proc");
+
+        Path csv = Files.createTempFile("schedule", ".csv");
+        Files.write(csv, List.of("10s,a", "20s,b", "30s,c"));
+        StreamingSchedule schedule = StreamingSchedule.file(csv);
+
+        assertEquals("b", schedule.get(1).getDescription());
+        assertEquals(1, openFiles(fds, csv));
+        // going back reopens the file
+        assertEquals("a", schedule.get(0).getDescription());
+        assertEquals(1, openFiles(fds, csv));
+        // the last event closes the file
+        assertEquals("c", schedule.get(2).getDescription());
+        assertEquals(0, openFiles(fds, csv));
+
+        Iterator<CustomEvent> iterator = schedule.iterator();
+        iterator.next();
+        assertEquals(1, openFiles(fds, csv));
+        ((Closeable) iterator).close();
+        assertFalse(iterator.hasNext());
+        assertEquals(0, openFiles(fds, csv));
+
+        Files.delete(csv);
+    }
+
+    private static long openFiles(Path fds, Path file) throws IOException {
+        Path target = file.toRealPath();
+        try (Stream<Path> links = Files.list(fds)) {
+            return links.filter(link -> {
+                try {
+                    return Files.readSymbolicLink(link).equals(target);
+                } catch (IOException e) {
+                    // closed while listing
+                    return false;
+                }
+            }).count();
+        }
+    }
+
+    @Test
+    void validationFindsDensestWindow() {
+        StreamingSchedule schedule = StreamingSchedule.expression("every 2s to 1h", "", "tick");
+        StreamingSchedule.Validation validation = schedule.validate(Duration.ofMinutes(1));
+        assertEquals(1801, validation.getCount());
+        assertEquals(30, validation.getDensestCount());
+        assertEquals(Duration.ZERO, validation.getDensestStart());
+    }
+
+    @Test
+    void parseTime() {
+        assertEquals(Duration.ofSeconds(30), StreamingSchedule.parseTime("PT30S"));
+        assertEquals(Duration.ofMinutes(90), StreamingSchedule.parseTime("1h30m"));
+        assertEquals(Duration.ofMillis(500), StreamingSchedule.parseTime("500ms"));
+        assertThrows(IllegalArgumentException.class, () -> StreamingSchedule.parseTime("30 s"));
+        assertThrows(IllegalArgumentException.class, () -> StreamingSchedule.parseTime("30x"));
+    }
+}